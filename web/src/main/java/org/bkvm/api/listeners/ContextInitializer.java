@@ -19,9 +19,17 @@
  */
 package org.bkvm.api.listeners;
 
+import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_INDEXED_KEYS;
+import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_INDEXED_KEYS_DEFAULT;
 import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_REFRESH_AT_BOOT;
+import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_SNAPSHOT_DIRECTORY;
+import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_SNAPSHOT_DIRECTORY_DEFAULT;
 import herddb.jdbc.HerdDBEmbeddedDataSource;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
@@ -73,7 +81,17 @@ public class ContextInitializer implements ServletContextListener {
             AuthManager authManager = new AuthManager(configStore);
             context.setAttribute("authManager", authManager);
 
-            MetadataCache metadataCache = new MetadataCache(datasource);
+            List<String> indexedKeys = new ArrayList<>();
+            for (String key : configStore.getProperty(PROPERTY_METADATA_INDEXED_KEYS, PROPERTY_METADATA_INDEXED_KEYS_DEFAULT).split(",")) {
+                if (!key.trim().isEmpty()) {
+                    indexedKeys.add(key.trim());
+                }
+            }
+            context.log("metadata.indexedKeys=" + indexedKeys);
+            String snapshotDirectory = configStore.getProperty(PROPERTY_METADATA_SNAPSHOT_DIRECTORY, PROPERTY_METADATA_SNAPSHOT_DIRECTORY_DEFAULT).trim();
+            context.log("metadata.snapshotDirectory=" + snapshotDirectory);
+            Path snapshotPath = snapshotDirectory.isEmpty() ? null : Paths.get(snapshotDirectory).toAbsolutePath();
+            MetadataCache metadataCache = new MetadataCache(datasource, indexedKeys, snapshotPath);
 
             context.setAttribute("metadataCache", metadataCache);
             BookkeeperManager bookkeeperManager = new BookkeeperManager(configStore, metadataCache);
@@ -67,6 +67,7 @@ public class BookiesResource extends AbstractBookkeeperResource {
         final Map<Integer, Cluster> allClusters = getBookkeeperManager().getAllClusters()
                 .stream().collect(Collectors.toMap(Cluster::getClusterId, Function.identity()));
 
+        final Map<Integer, Map<String, Long>> ledgersByCluster = new HashMap<>();
         final List<BookieBean> bookies = new ArrayList<>();
         for (Bookie bookie : filteredBookies) {
             BookieBean b = new BookieBean();
@@ -89,6 +90,11 @@ public class BookiesResource extends AbstractBookkeeperResource {
             b.setFreeDiskSpace(bookie.getFreeDiskspace());
             b.setTotalDiskSpace(bookie.getTotalDiskspace());
             b.setLastScan(bookie.getScanTime().getTime());
+            b.setLedgers(ledgersByCluster.computeIfAbsent(bookie.getClusterId(), getBookkeeperManager()::countLedgersByBookie)
+                    .getOrDefault(bookie.getBookieId(), 0L));
+            if (bookie.getStateChangeTime() != null) {
+                b.setLastStateChange(bookie.getStateChangeTime().getTime());
+            }
             Bookie.BookieInfo parsedBookieInfo = Bookie.parseBookieInfo(bookie.getBookieInfo());
             Map<String, String> endpoints = new HashMap<>();
             parsedBookieInfo.getEndpoints().forEach(info -> {
@@ -122,6 +128,8 @@ public class BookiesResource extends AbstractBookkeeperResource {
         private long freeDiskSpace;
         private long totalDiskSpace;
         private long lastScan;
+        private long lastStateChange;
+        private long ledgers;
         private Map<String, String> endpoints;
         private Map<String, String> properties;
 
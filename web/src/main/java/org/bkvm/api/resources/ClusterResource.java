@@ -19,6 +19,7 @@
  */
 package org.bkvm.api.resources;
 
+import static org.bkvm.bookkeeper.BookkeeperManager.ClusterRefreshStatus;
 import static org.bkvm.bookkeeper.BookkeeperManager.ClusterWideConfiguration;
 import static org.bkvm.bookkeeper.BookkeeperManager.RefreshCacheWorkerStatus;
 import java.io.IOException;
@@ -56,6 +57,7 @@ public class ClusterResource extends AbstractBookkeeperResource {
     public List<ClusterBean> getClusters() throws Exception {
         RefreshCacheWorkerStatus status = getBookkeeperManager().getRefreshWorkerStatus();
         Map<Integer, ClusterWideConfiguration> clusterWideConfigurations = status.getLastClusterWideConfiguration();
+        Map<Integer, ClusterRefreshStatus> clusterRefreshStatus = status.getClusterRefreshStatus();
 
         List<ClusterBean> res = new ArrayList<>();
         Collection<Cluster> clusters = getBookkeeperManager().getAllClusters();
@@ -84,6 +86,13 @@ public class ClusterResource extends AbstractBookkeeperResource {
                 );
                 bean.setStatus(clusterStatus);
             }
+            ClusterRefreshStatus refreshStatus = clusterRefreshStatus.get(cluster.getClusterId());
+            if (refreshStatus != null) {
+                bean.setRefreshStatus(refreshStatus.getStatus().toString());
+                bean.setLastRefreshStart(refreshStatus.getLastRefreshStart());
+                bean.setLastRefreshEnd(refreshStatus.getLastRefreshEnd());
+                bean.setLastRefreshError(refreshStatus.getLastError());
+            }
             res.add(bean);
         }
 
@@ -170,6 +179,9 @@ public class ClusterResource extends AbstractBookkeeperResource {
         private String configuration;
 
         private String refreshStatus;
+        private long lastRefreshStart;
+        private long lastRefreshEnd;
+        private String lastRefreshError;
         private ClusterStatus status;
 
     }
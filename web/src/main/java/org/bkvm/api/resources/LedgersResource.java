@@ -19,13 +19,15 @@
  */
 package org.bkvm.api.resources;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
 import javax.annotation.security.DeclareRoles;
 import javax.annotation.security.PermitAll;
 import javax.ws.rs.GET;
@@ -33,7 +35,10 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import org.apache.bookkeeper.client.api.LedgerMetadata;
@@ -42,12 +47,22 @@ import org.bkvm.bookkeeper.BookkeeperManager;
 import org.bkvm.bookkeeper.BookkeeperManagerException;
 import org.bkvm.cache.Cluster;
 import org.bkvm.cache.Ledger;
+import org.bkvm.cache.LedgerKey;
+import org.bkvm.cache.LedgerSearchCriteria;
 import org.bkvm.config.ServerConfiguration;
+import org.roaringbitmap.longlong.LongIterator;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
 
 @Path("ledger")
 @DeclareRoles({UserRole.Fields.Admin, UserRole.Fields.User})
 public class LedgersResource extends AbstractBookkeeperResource {
 
+    private static final int DEFAULT_SCAN_PAGE_SIZE = 1000;
+    private static final int MAX_SCAN_PAGE_SIZE = 10000;
+    static final int EXPORT_CHUNK_SIZE = 1000;
+    private static final String NDJSON = "application/x-ndjson";
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
     @Data
     @AllArgsConstructor
     public static final class GetLedgersResult {
@@ -72,6 +87,75 @@ public class LedgersResource extends AbstractBookkeeperResource {
                                        @QueryParam("page") int page,
                                        @QueryParam("size") int size
     ) throws Exception {
+        LedgerSearchCriteria criteria = buildSearchCriteria(term, bookieId, clusterId, ledgerIds, minLength, maxLength, minAge);
+        int firstResult = Math.max(0, (page - 1) * size);
+        BookkeeperManager.LedgerSearchResult result = getBookkeeperManager()
+                .searchLedgers(criteria, firstResult, Math.max(0, size));
+        return new GetLedgersResult(convertLedgerBeans(result.getLedgers()), result.getTotalLedgers(), result.getTotalSize());
+    }
+
+    @Data
+    @AllArgsConstructor
+    public static final class ScanLedgersResult {
+
+        private List<LedgerBean> ledgers;
+        /**
+         * Pass it back in order to read the next page, null when there are no more ledgers
+         */
+        private String nextToken;
+    }
+
+    /**
+     * Read all the ledgers matching a search, one page after the other, sorted by cluster and ledger id.
+     * Unlike /all the position is kept by the token, so pages are not shifted by ledgers created or deleted meanwhile.
+     */
+    @GET
+    @Secured
+    @PermitAll
+    @Path("scan")
+    @Produces(MediaType.APPLICATION_JSON)
+    public ScanLedgersResult scanLedgers(@QueryParam("term") String term,
+                                         @QueryParam("bookie") String bookieId,
+                                         @QueryParam("cluster") String clusterId,
+                                         @QueryParam("ledgerIds") String ledgerIds,
+                                         @QueryParam("minLength") String minLength,
+                                         @QueryParam("maxLength") String maxLength,
+                                         @QueryParam("minAge") String minAge,
+                                         @QueryParam("token") String token,
+                                         @QueryParam("size") int size
+    ) throws Exception {
+        LedgerSearchCriteria criteria = buildSearchCriteria(term, bookieId, clusterId, ledgerIds, minLength, maxLength, minAge);
+        LedgerKey after = decodeScanToken(token);
+        int pageSize = size <= 0 ? DEFAULT_SCAN_PAGE_SIZE : Math.min(size, MAX_SCAN_PAGE_SIZE);
+        List<Ledger> ledgers = getBookkeeperManager().scanLedgers(criteria, after, pageSize);
+        String nextToken = null;
+        if (ledgers.size() == pageSize) {
+            Ledger last = ledgers.get(ledgers.size() - 1);
+            nextToken = encodeScanToken(new LedgerKey(last.getLedgerId(), last.getClusterId()));
+        }
+        return new ScanLedgersResult(convertLedgerBeans(ledgers), nextToken);
+    }
+
+    private static String encodeScanToken(LedgerKey key) {
+        String position = key.getClusterId() + ":" + key.getLedgerId();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static LedgerKey decodeScanToken(String token) {
+        if (token == null || token.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            String position = new String(Base64.getUrlDecoder().decode(token.trim()), StandardCharsets.UTF_8);
+            String[] parts = position.split(":", 2);
+            return new LedgerKey(Long.parseLong(parts[1]), Integer.parseInt(parts[0]));
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException err) {
+            throw new WebApplicationException("Invalid token " + token, Response.Status.BAD_REQUEST);
+        }
+    }
+
+    private LedgerSearchCriteria buildSearchCriteria(String term, String bookieId, String clusterId, String ledgerIds,
+                                                     String minLength, String maxLength, String minAge) {
         List<Long> searchLedgerIds = null;
         if (ledgerIds != null && !ledgerIds.trim().isEmpty()) {
             try {
@@ -80,36 +164,142 @@ public class LedgersResource extends AbstractBookkeeperResource {
                 searchLedgerIds = new ArrayList<>();
             }
         }
+        return LedgerSearchCriteria.builder()
+                .term(term)
+                .bookieId(bookieId)
+                .clusterId(convertParamInt(clusterId))
+                .ledgerIds(searchLedgerIds)
+                .minLength(convertParamLong(minLength))
+                .maxLength(convertParamLong(maxLength))
+                .minAge(convertParamInt(minAge))
+                .build();
+    }
 
-        List<Map.Entry<Integer, Long>> resultLedgerIds = getBookkeeperManager()
-                .searchLedgers(term,
-                        bookieId, convertParamInt(clusterId),
-                        searchLedgerIds, convertParamInt(minLength),
-                        convertParamInt(maxLength), convertParamInt(minAge)
-                );
-
-        List<LedgerBean> allLedgers = new ArrayList<>();
-        long totalSize = 0;
-        for (Map.Entry<Integer, Long> lId : resultLedgerIds) {
-            long id = lId.getValue();
-            int ledgerClusterId = lId.getKey();
-            LedgerBean bean = getLedgerMetadata(ledgerClusterId, id);
-            if (bean != null) {
-                allLedgers.add(bean);
-                totalSize += bean.getLength();
+    @Data
+    @AllArgsConstructor
+    public static final class LedgerPlacementResult {
+
+        private long totalLedgers;
+        /**
+         * The first ledger ids, sorted
+         */
+        private List<Long> ledgerIds;
+    }
+
+    /**
+     * Ledgers stored on a set of bookies of a cluster: on all of them (match=all, the default) or on any of them (match=any).
+     * With zone only ledgers with at least one copy on a bookie of the zone are returned, this needs the bookies topology.
+     */
+    @GET
+    @Secured
+    @PermitAll
+    @Path("placement")
+    @Produces(MediaType.APPLICATION_JSON)
+    public LedgerPlacementResult getLedgerPlacement(@QueryParam("cluster") Integer clusterId,
+                                                    @QueryParam("bookie") List<String> bookieIds,
+                                                    @QueryParam("match") String match,
+                                                    @QueryParam("zone") String zone,
+                                                    @QueryParam("size") int size
+    ) throws Exception {
+        if (clusterId == null) {
+            throw new WebApplicationException("cluster is required", Response.Status.BAD_REQUEST);
+        }
+        Roaring64NavigableMap ledgers = null;
+        if (bookieIds != null && !bookieIds.isEmpty()) {
+            ledgers = getBookkeeperManager().getLedgersForBookies(clusterId, bookieIds, !"any".equalsIgnoreCase(match));
+        }
+        if (zone != null && !zone.trim().isEmpty()) {
+            Roaring64NavigableMap inZone = getBookkeeperManager().getLedgersForZone(clusterId, zone.trim());
+            if (inZone == null) {
+                throw new WebApplicationException("Bookies topology is not enabled", Response.Status.BAD_REQUEST);
             }
+            if (ledgers == null) {
+                ledgers = inZone;
+            } else {
+                ledgers.and(inZone);
+            }
+        }
+        if (ledgers == null) {
+            throw new WebApplicationException("At least one bookie or a zone is required", Response.Status.BAD_REQUEST);
+        }
+        int limit = size <= 0 ? DEFAULT_SCAN_PAGE_SIZE : Math.min(size, MAX_SCAN_PAGE_SIZE);
+        List<Long> page = new ArrayList<>();
+        LongIterator it = ledgers.getLongIterator();
+        while (page.size() < limit && it.hasNext()) {
+            page.add(it.next());
         }
+        return new LedgerPlacementResult(ledgers.getLongCardinality(), page);
+    }
+
+    /**
+     * Export all the ledgers matching a search, as one JSON document per line.
+     * Ledgers are read and written in chunks, memory usage does not depend on the number of ledgers.
+     */
+    @GET
+    @Secured
+    @PermitAll
+    @Path("export")
+    @Produces(NDJSON)
+    public Response exportLedgers(@QueryParam("term") String term,
+                                  @QueryParam("bookie") String bookieId,
+                                  @QueryParam("cluster") String clusterId,
+                                  @QueryParam("ledgerIds") String ledgerIds,
+                                  @QueryParam("minLength") String minLength,
+                                  @QueryParam("maxLength") String maxLength,
+                                  @QueryParam("minAge") String minAge
+    ) throws Exception {
+        LedgerSearchCriteria criteria = buildSearchCriteria(term, bookieId, clusterId, ledgerIds, minLength, maxLength, minAge);
+        BookkeeperManager bookkeeperManager = getBookkeeperManager();
+        Map<Integer, String> clusterNames = getClusterNames();
+        String descriptionPattern = getDescriptionPattern();
+        StreamingOutput output = (OutputStream out) -> {
+            try {
+                LedgerKey after = null;
+                while (true) {
+                    List<Ledger> ledgers = bookkeeperManager.scanLedgers(criteria, after, EXPORT_CHUNK_SIZE);
+                    for (LedgerBean bean : convertLedgerBeans(ledgers, clusterNames, descriptionPattern)) {
+                        out.write(MAPPER.writeValueAsBytes(bean));
+                        out.write('\n');
+                    }
+                    out.flush();
+                    if (ledgers.size() < EXPORT_CHUNK_SIZE) {
+                        return;
+                    }
+                    Ledger last = ledgers.get(ledgers.size() - 1);
+                    after = new LedgerKey(last.getLedgerId(), last.getClusterId());
+                }
+            } catch (BookkeeperManagerException err) {
+                throw new IOException(err);
+            }
+        };
+        return Response.ok(output, NDJSON).build();
+    }
+
+    private Map<Integer, String> getClusterNames() throws BookkeeperManagerException {
+        Map<Integer, String> clusterNames = new HashMap<>();
+        for (Cluster cluster : getBookkeeperManager().getAllClusters()) {
+            clusterNames.put(cluster.getClusterId(), cluster.getName());
+        }
+        return clusterNames;
+    }
+
+    private String getDescriptionPattern() {
+        return getBookkeeperManager().getConfigStore().getProperty(ServerConfiguration.PROPERTY_BK_METADATA_DESCRIPTION, ServerConfiguration.PROPERTY_BK_METADATA_DESCRIPTION_DEFAULT);
+    }
 
-        List<LedgerBean> ledgers = filterLedgers(allLedgers, page, size);
-        return new GetLedgersResult(ledgers, allLedgers.size(), totalSize);
+    private List<LedgerBean> convertLedgerBeans(List<Ledger> ledgers) throws BookkeeperManagerException {
+        return convertLedgerBeans(ledgers, getClusterNames(), getDescriptionPattern());
     }
 
-    private List<LedgerBean> filterLedgers(List<LedgerBean> ledgers, int offset, int limit) {
-        int skipIndex = (offset - 1) * limit;
-        return ledgers.stream()
-                .skip(skipIndex)
-                .limit(limit)
-                .collect(Collectors.toList());
+    private List<LedgerBean> convertLedgerBeans(List<Ledger> ledgers, Map<Integer, String> clusterNames,
+                                                String descriptionPattern) throws BookkeeperManagerException {
+        List<LedgerBean> result = new ArrayList<>(ledgers.size());
+        for (Ledger ledger : ledgers) {
+            LedgerMetadata ledgerMetadata = getBookkeeperManager().getLedgerMetadata(ledger);
+            result.add(convertLedgerBean(ledger.getClusterId(), clusterNames.get(ledger.getClusterId()),
+                    ledger.getLedgerId(), ledgerMetadata, ledger, descriptionPattern));
+        }
+        return result;
     }
 
     @GET
@@ -130,7 +320,9 @@ public class LedgersResource extends AbstractBookkeeperResource {
         b.setClusterId(clusterId);
         b.setClusterName(clusterName);
         b.setId(ledgerId);
-        b.applyLedgerMetadata(ledgerMetadata, descriptionPattern);
+        b.applyLedgerMetadata(ledgerMetadata, ledger.getDescription() != null
+                ? ledger.getDescription()
+                : BookkeeperManager.buildDescription(ledgerMetadata, descriptionPattern));
         b.setAge(ledger.getAge());
         b.setEnsembleSize(ledgerMetadata.getEnsembleSize());
         b.setWriteQuorumSize(ledgerMetadata.getWriteQuorumSize());
@@ -143,10 +335,21 @@ public class LedgersResource extends AbstractBookkeeperResource {
         b.setClosed(ledgerMetadata.isClosed());
         b.setState(ledgerMetadata.getState() + "");
         b.setMetadataFormatVersion(ledgerMetadata.getMetadataFormatVersion());
-        b.setEnsembles(new HashMap<>(BookkeeperManager.buildEnsembleMap(ledgerMetadata)));
+        b.setEnsembles(new HashMap<>(getBookkeeperManager().getEnsembles(ledger)));
         return b;
     }
 
+    private Long convertParamLong(String s) {
+        if (s == null || s.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException err) {
+            return null;
+        }
+    }
+
     private Integer convertParamInt(String s) {
         if (s == null || s.trim().isEmpty()) {
             return null;
@@ -203,41 +406,14 @@ public class LedgersResource extends AbstractBookkeeperResource {
         private int metadataFormatVersion;
         private Map<Long, List<String>> ensembles;
 
-        private void setMetadataValue(String key, byte[] value) {
-            String svalue;
-            try {
-                svalue = new String(value, StandardCharsets.UTF_8);
-            } catch (Throwable t) {
-                svalue = Arrays.toString(value);
-            }
-            this.metadata.put(key, svalue);
-        }
-
-        public void applyLedgerMetadata(LedgerMetadata metadata, String descriptionPattern) {
-            Map<String, byte[]> customMetadata = metadata.getCustomMetadata();
-            for (Map.Entry<String, byte[]> currentCustomMetadata : customMetadata.entrySet()) {
-                setMetadataValue(currentCustomMetadata.getKey(), currentCustomMetadata.getValue());
-
-            }
-            String[] specialMetadataNames = descriptionPattern != null ? descriptionPattern.toLowerCase().split("\\,") : new String[]{};
-            boolean descriptionFound = false;
-
-            // descriptionPattern=tablespacename,pulsar/managed-ledger,application
-            // pickup the first metadata name that matches
-            for (String metadataField : specialMetadataNames) {
-                for (Map.Entry<String, String> currentCustomMetadata : this.metadata.entrySet()) {
-                    if (!descriptionFound) {
-                        if (currentCustomMetadata.getKey().contains(metadataField)) {
-                            this.description = currentCustomMetadata.getValue();
-                            descriptionFound = true;
-                            break;
-                        }
-                    }
-                }
-            }
-            if (!descriptionFound) {
-                description = "";
-            }
+        /**
+         * @param description precomputed description, see {@link BookkeeperManager#buildDescription(LedgerMetadata, String)}
+         */
+        public void applyLedgerMetadata(LedgerMetadata metadata, String description) {
+            metadata.getCustomMetadata().forEach((key, value) -> {
+                this.metadata.put(key, BookkeeperManager.convertMetadataValue(value));
+            });
+            this.description = description;
         }
     }
 
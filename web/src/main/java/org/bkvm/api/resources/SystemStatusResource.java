@@ -33,6 +33,8 @@ import lombok.Setter;
 import org.bkvm.auth.UserRole;
 import org.bkvm.bookkeeper.BookkeeperManager;
 import org.bkvm.bookkeeper.BookkeeperManager.RefreshCacheWorkerStatus;
+import org.bkvm.bookkeeper.ParsedLedgerMetadataCache;
+import org.bkvm.cache.MetadataSnapshot;
 import org.bkvm.config.ConfigurationStore;
 
 @Path("cache")
@@ -46,6 +48,11 @@ public class SystemStatusResource extends AbstractBookkeeperResource {
         private final String status;
         private final long lastCacheRefresh;
         private Integer metadataRefreshPeriod;
+        private long parsedMetadataCacheSize;
+        private long parsedMetadataCacheHits;
+        private long parsedMetadataCacheMisses;
+        private long snapshotGeneration;
+        private long snapshotCreatedAt;
 
         public SystemStatus(RefreshCacheWorkerStatus status) {
             this.status = status.getStatus().toString();
@@ -66,6 +73,15 @@ public class SystemStatusResource extends AbstractBookkeeperResource {
         Integer metadataRefreshPeriod = Integer.parseInt(configStore.getProperty(PROPERTY_METADATA_REFRESH_PERIOD, PROPERTY_METADATA_REFRESH_PERIOD_DEFAULT));
         SystemStatus ss = new SystemStatus(bookkeeperManager.getRefreshWorkerStatus());
         ss.setMetadataRefreshPeriod(metadataRefreshPeriod);
+        ParsedLedgerMetadataCache parsedMetadataCache = bookkeeperManager.getParsedMetadataCache();
+        ss.setParsedMetadataCacheSize(parsedMetadataCache.size());
+        ss.setParsedMetadataCacheHits(parsedMetadataCache.getHits());
+        ss.setParsedMetadataCacheMisses(parsedMetadataCache.getMisses());
+        MetadataSnapshot snapshot = bookkeeperManager.getSnapshot();
+        if (snapshot != null) {
+            ss.setSnapshotGeneration(snapshot.getGeneration());
+            ss.setSnapshotCreatedAt(snapshot.getCreatedAt());
+        }
 
         return ss;
     }
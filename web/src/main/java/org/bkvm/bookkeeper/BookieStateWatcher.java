@@ -0,0 +1,138 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.bookkeeper;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.bookkeeper.common.concurrent.FutureUtils;
+import org.apache.bookkeeper.discover.RegistrationClient;
+import org.apache.bookkeeper.discover.RegistrationClient.RegistrationListener;
+import org.apache.bookkeeper.net.BookieId;
+import org.apache.bookkeeper.versioning.Versioned;
+
+/**
+ * Receives the writable and read-only bookies of a cluster as soon as they change on the metadata service,
+ * so that a failed bookie does not have to wait for the next poll in order to be seen as down.
+ * <p>
+ * The writable and the read-only lists are notified by two listeners, and a bookie which turns read-only
+ * changes both. Notifications are coalesced for {@link #COALESCE_DELAY_MILLIS}, then the handler receives
+ * the latest lists once.
+ */
+public class BookieStateWatcher implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(BookieStateWatcher.class.getName());
+
+    static final long COALESCE_DELAY_MILLIS = 200;
+
+    public interface BookieStateHandler {
+
+        void bookiesChanged(int clusterId, Set<BookieId> writable, Set<BookieId> readOnly) throws Exception;
+    }
+
+    private final int clusterId;
+    private final RegistrationClient registrationClient;
+    private final ScheduledExecutorService executor;
+    private final long coalesceDelayMillis;
+    private final BookieStateHandler handler;
+    private final RegistrationListener writableListener = this::onWritableBookiesChanged;
+    private final RegistrationListener readOnlyListener = this::onReadOnlyBookiesChanged;
+    private volatile Set<BookieId> writable;
+    private volatile Set<BookieId> readOnly;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile boolean closed;
+
+    public BookieStateWatcher(int clusterId, RegistrationClient registrationClient, ScheduledExecutorService executor,
+                              BookieStateHandler handler) {
+        this(clusterId, registrationClient, executor, COALESCE_DELAY_MILLIS, handler);
+    }
+
+    BookieStateWatcher(int clusterId, RegistrationClient registrationClient, ScheduledExecutorService executor,
+                       long coalesceDelayMillis, BookieStateHandler handler) {
+        this.clusterId = clusterId;
+        this.registrationClient = registrationClient;
+        this.executor = executor;
+        this.coalesceDelayMillis = coalesceDelayMillis;
+        this.handler = handler;
+    }
+
+    public int getClusterId() {
+        return clusterId;
+    }
+
+    /**
+     * Register the listeners, the current bookies are notified as a change.
+     *
+     * @throws Exception
+     */
+    public void start() throws Exception {
+        FutureUtils.result(registrationClient.watchWritableBookies(writableListener));
+        FutureUtils.result(registrationClient.watchReadOnlyBookies(readOnlyListener));
+    }
+
+    private void onWritableBookiesChanged(Versioned<Set<BookieId>> bookies) {
+        writable = Collections.unmodifiableSet(bookies.getValue());
+        notifyChanged();
+    }
+
+    private void onReadOnlyBookiesChanged(Versioned<Set<BookieId>> bookies) {
+        readOnly = Collections.unmodifiableSet(bookies.getValue());
+        notifyChanged();
+    }
+
+    private void notifyChanged() {
+        if (closed || writable == null || readOnly == null) {
+            // wait for both lists, otherwise read-only bookies would look down
+            return;
+        }
+        if (scheduled.compareAndSet(false, true)) {
+            executor.schedule(this::applyChanges, coalesceDelayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void applyChanges() {
+        // a notification from now on schedules another run, which will see the lists notified meanwhile
+        scheduled.set(false);
+        Set<BookieId> currentWritable = writable;
+        Set<BookieId> currentReadOnly = readOnly;
+        if (closed) {
+            return;
+        }
+        try {
+            LOG.log(Level.FINE, "Bookies of cluster {0} changed, writable {1}, read-only {2}",
+                    new Object[]{clusterId, currentWritable, currentReadOnly});
+            handler.bookiesChanged(clusterId, currentWritable, currentReadOnly);
+        } catch (Throwable err) {
+            LOG.log(Level.SEVERE, "Cannot apply change of bookies of cluster " + clusterId, err);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        registrationClient.unwatchWritableBookies(writableListener);
+        registrationClient.unwatchReadOnlyBookies(readOnlyListener);
+    }
+
+}
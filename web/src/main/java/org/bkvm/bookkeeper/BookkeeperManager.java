@@ -19,34 +19,79 @@
  */
 package org.bkvm.bookkeeper;
 
+import static org.bkvm.config.ServerConfiguration.PROPERTY_BK_METADATA_DESCRIPTION;
+import static org.bkvm.config.ServerConfiguration.PROPERTY_BK_METADATA_DESCRIPTION_DEFAULT;
+import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_BOOKIES_REFRESH_PERIOD;
+import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_BOOKIES_REFRESH_PERIOD_DEFAULT;
+import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_BOOKIES_REFRESH_TIMEOUT;
+import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_BOOKIES_REFRESH_TIMEOUT_DEFAULT;
+import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_BOOKIES_WATCH;
+import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_BOOKIES_WATCH_DEFAULT;
+import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_CLOSED_LEDGERS_VERIFY_PERIOD;
+import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_CLOSED_LEDGERS_VERIFY_PERIOD_DEFAULT;
+import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_COMPRESSION;
+import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_COMPRESSION_DEFAULT;
+import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_INCREMENTAL_FULL_REFRESH_PERIOD;
+import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_INCREMENTAL_FULL_REFRESH_PERIOD_DEFAULT;
+import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_INCREMENTAL_LIST_PERIOD;
+import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_INCREMENTAL_LIST_PERIOD_DEFAULT;
+import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_INCREMENTAL_REFRESH;
+import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_INCREMENTAL_REFRESH_DEFAULT;
+import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_OPEN_LEDGERS_REFRESH_PERIOD;
+import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_OPEN_LEDGERS_REFRESH_PERIOD_DEFAULT;
+import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_PARSED_CACHE_SIZE;
+import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_PARSED_CACHE_SIZE_DEFAULT;
+import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_REFRESH_BATCH_SIZE;
+import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_REFRESH_BATCH_SIZE_DEFAULT;
+import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_REFRESH_CLUSTER_TIMEOUT;
+import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_REFRESH_CLUSTER_TIMEOUT_DEFAULT;
+import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_REFRESH_MAX_INFLIGHT_READS;
+import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_REFRESH_MAX_INFLIGHT_READS_DEFAULT;
 import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_REFRESH_PERIOD;
 import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_REFRESH_PERIOD_DEFAULT;
+import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_REFRESH_THREADS;
+import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_REFRESH_THREADS_DEFAULT;
+import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_SNAPSHOT_REFRESH_PERIOD;
+import static org.bkvm.config.ServerConfiguration.PROPERTY_METADATA_SNAPSHOT_REFRESH_PERIOD_DEFAULT;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.PrimitiveIterator;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
 import lombok.Getter;
 import org.apache.bookkeeper.client.BKException.BKBookieHandleNotAvailableException;
-import org.apache.bookkeeper.client.BKException.BKNoSuchLedgerExistsOnMetadataServerException;
 import org.apache.bookkeeper.client.BookKeeper;
 import org.apache.bookkeeper.client.BookKeeperAdmin;
 import org.apache.bookkeeper.client.BookieInfoReader.BookieInfo;
@@ -56,13 +101,15 @@ import org.apache.bookkeeper.conf.ClientConfiguration;
 import org.apache.bookkeeper.discover.BookieServiceInfo;
 import org.apache.bookkeeper.discover.RegistrationClient;
 import org.apache.bookkeeper.meta.LedgerLayout;
-import org.apache.bookkeeper.meta.LedgerManager;
 import org.apache.bookkeeper.meta.LedgerMetadataSerDe;
 import org.apache.bookkeeper.meta.LedgerUnderreplicationManager;
 import org.apache.bookkeeper.meta.exceptions.MetadataException;
 import org.apache.bookkeeper.net.BookieId;
 import org.apache.bookkeeper.replication.ReplicationException;
 import org.apache.bookkeeper.tools.cli.helpers.CommandHelpers;
+import org.apache.bookkeeper.versioning.LongVersion;
+import org.apache.bookkeeper.versioning.Version;
+import org.apache.bookkeeper.versioning.Versioned;
 import org.apache.zookeeper.KeeperException;
 import org.bkvm.bookkeeper.BookkeeperClusterPool.BookkeeperCluster;
 import org.bkvm.bookkeeper.topology.BookieTopologyCache;
@@ -70,9 +117,17 @@ import org.bkvm.cache.Bookie;
 import org.bkvm.cache.Cluster;
 import org.bkvm.cache.Ledger;
 import org.bkvm.cache.LedgerBookie;
+import org.bkvm.cache.LedgerKey;
 import org.bkvm.cache.LedgerMetadataEntry;
+import org.bkvm.cache.LedgerSearchCriteria;
+import org.bkvm.cache.LedgerSearchSummary;
+import org.bkvm.cache.LedgerUpdate;
+import org.bkvm.cache.LedgerVersionTable;
+import org.bkvm.cache.MetadataBlob;
 import org.bkvm.cache.MetadataCache;
+import org.bkvm.cache.MetadataSnapshot;
 import org.bkvm.config.ConfigurationStore;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
 
 /**
  * @author matteo
@@ -80,6 +135,7 @@ import org.bkvm.config.ConfigurationStore;
 public class BookkeeperManager implements AutoCloseable {
 
     private static final Logger LOG = Logger.getLogger(BookkeeperManager.class.getName());
+    private static final long CLUSTER_TASKS_POLL_MILLIS = 1000;
 
     private final ConfigurationStore configStore;
     private final BookkeeperClusterPool bkClusterPool;
@@ -132,23 +188,101 @@ public class BookkeeperManager implements AutoCloseable {
 
     private volatile long lastMetadataCacheRefresh;
     private final ConcurrentHashMap<Integer, ClusterWideConfiguration> lastClusterWideConfiguration = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, ClusterRefreshStatus> clusterRefreshStatus = new ConcurrentHashMap<>();
     private final AtomicReference<RefreshStatus> refreshStatus = new AtomicReference<>(RefreshStatus.IDLE);
+    private final ExecutorService clusterRefreshPool;
+    private final long clusterRefreshTimeoutSeconds;
+    private final int maxInflightReads;
+    private final int refreshBatchSize;
+    private final boolean incrementalRefresh;
+    private final ScheduledExecutorService incrementalRefreshThread;
+    private final ConcurrentHashMap<Integer, IncrementalLedgerWatcher> ledgerWatchers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService openLedgersRefreshThread;
+    private final long closedLedgersVerifyPeriodMillis;
+    private final ConcurrentHashMap<Integer, Long> lastClosedLedgersVerification = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService bookiesRefreshThread;
+    private final ExecutorService bookiesRefreshPool;
+    private final long bookiesRefreshTimeoutSeconds;
+    private final ConcurrentHashMap<Integer, Object> bookiesRefreshLocks = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, ReentrantLock> ledgersRefreshLocks = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Set<String>> unresponsiveBookies = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService bookiesWatchThread;
+    private final ConcurrentHashMap<Integer, BookieStateWatcher> bookieWatchers = new ConcurrentHashMap<>();
+    private final boolean compressMetadata;
+    private final ParsedLedgerMetadataCache parsedMetadataCache;
+    private final String descriptionPattern;
+    private final ScheduledExecutorService snapshotRefreshThread;
+    private final AtomicBoolean snapshotRefreshQueued = new AtomicBoolean();
 
     public BookkeeperManager(ConfigurationStore configStore, MetadataCache metadataCache) throws BookkeeperManagerException {
+        // checked before any thread is started
+        String compression = configStore.getProperty(PROPERTY_METADATA_COMPRESSION, PROPERTY_METADATA_COMPRESSION_DEFAULT).trim();
+        if ("deflate".equalsIgnoreCase(compression)) {
+            this.compressMetadata = true;
+        } else if ("none".equalsIgnoreCase(compression)) {
+            this.compressMetadata = false;
+        } else {
+            throw new BookkeeperManagerException("Invalid " + PROPERTY_METADATA_COMPRESSION + "=" + compression
+                    + ", use deflate or none");
+        }
         int refreshSeconds = Integer.parseInt(configStore.getProperty(PROPERTY_METADATA_REFRESH_PERIOD, PROPERTY_METADATA_REFRESH_PERIOD_DEFAULT));
-        final ThreadFactory threadFactory = new ThreadFactory() {
-            @Override
-            public Thread newThread(Runnable r) {
-                Thread t = new Thread(r, "bk-visual-manager-cache-refresh");
-                t.setDaemon(true);
-                t.setUncaughtExceptionHandler((Thread t1, Throwable e) -> {
-                    e.printStackTrace();
-                });
-                return t;
-            }
-        };
-        this.refreshThread = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        int refreshThreads = Integer.parseInt(configStore.getProperty(PROPERTY_METADATA_REFRESH_THREADS, PROPERTY_METADATA_REFRESH_THREADS_DEFAULT));
+        this.clusterRefreshTimeoutSeconds = Long.parseLong(configStore.getProperty(PROPERTY_METADATA_REFRESH_CLUSTER_TIMEOUT, PROPERTY_METADATA_REFRESH_CLUSTER_TIMEOUT_DEFAULT));
+        this.refreshThread = Executors.newSingleThreadScheduledExecutor(newThreadFactory("bk-visual-manager-cache-refresh"));
+        this.refreshBatchSize = Math.max(1, Integer.parseInt(configStore.getProperty(PROPERTY_METADATA_REFRESH_BATCH_SIZE, PROPERTY_METADATA_REFRESH_BATCH_SIZE_DEFAULT)));
+        this.maxInflightReads = Integer.parseInt(configStore.getProperty(PROPERTY_METADATA_REFRESH_MAX_INFLIGHT_READS, PROPERTY_METADATA_REFRESH_MAX_INFLIGHT_READS_DEFAULT));
+        LOG.log(Level.INFO, "Refreshing up to {0} clusters concurrently, with up to {1} metadata reads in flight for each cluster",
+                new Object[]{refreshThreads, maxInflightReads});
+        this.clusterRefreshPool = Executors.newFixedThreadPool(Math.max(1, refreshThreads), newThreadFactory("bk-visual-manager-cluster-refresh"));
         this.topologyCache = new BookieTopologyCache(configStore, metadataCache);
+        this.descriptionPattern = configStore.getProperty(PROPERTY_BK_METADATA_DESCRIPTION, PROPERTY_BK_METADATA_DESCRIPTION_DEFAULT);
+        this.parsedMetadataCache = new ParsedLedgerMetadataCache(Integer.parseInt(
+                configStore.getProperty(PROPERTY_METADATA_PARSED_CACHE_SIZE, PROPERTY_METADATA_PARSED_CACHE_SIZE_DEFAULT)));
+        this.incrementalRefresh = Boolean.parseBoolean(configStore.getProperty(PROPERTY_METADATA_INCREMENTAL_REFRESH, PROPERTY_METADATA_INCREMENTAL_REFRESH_DEFAULT));
+        if (incrementalRefresh) {
+            int listSeconds = Integer.parseInt(configStore.getProperty(PROPERTY_METADATA_INCREMENTAL_LIST_PERIOD, PROPERTY_METADATA_INCREMENTAL_LIST_PERIOD_DEFAULT));
+            int fullRefreshSeconds = Integer.parseInt(configStore.getProperty(PROPERTY_METADATA_INCREMENTAL_FULL_REFRESH_PERIOD, PROPERTY_METADATA_INCREMENTAL_FULL_REFRESH_PERIOD_DEFAULT));
+            this.incrementalRefreshThread = Executors.newSingleThreadScheduledExecutor(newThreadFactory("bk-visual-manager-incremental-refresh"));
+            if (listSeconds > 0) {
+                LOG.log(Level.INFO, "Incremental refresh of metadata, looking for new ledgers every {0} seconds", listSeconds);
+                incrementalRefreshThread.scheduleWithFixedDelay(() -> {
+                    watchNewLedgers();
+                }, listSeconds, listSeconds, TimeUnit.SECONDS);
+            }
+            refreshSeconds = fullRefreshSeconds;
+        } else {
+            this.incrementalRefreshThread = null;
+        }
+        this.closedLedgersVerifyPeriodMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(configStore.getProperty(PROPERTY_METADATA_CLOSED_LEDGERS_VERIFY_PERIOD, PROPERTY_METADATA_CLOSED_LEDGERS_VERIFY_PERIOD_DEFAULT)));
+        int openLedgersRefreshSeconds = Integer.parseInt(configStore.getProperty(PROPERTY_METADATA_OPEN_LEDGERS_REFRESH_PERIOD, PROPERTY_METADATA_OPEN_LEDGERS_REFRESH_PERIOD_DEFAULT));
+        if (!incrementalRefresh && openLedgersRefreshSeconds > 0) {
+            // with the incremental refresh every change is notified
+            LOG.log(Level.INFO, "Scheduling refresh of ledgers that are not closed, every {0} seconds", openLedgersRefreshSeconds);
+            this.openLedgersRefreshThread = Executors.newSingleThreadScheduledExecutor(newThreadFactory("bk-visual-manager-open-ledgers-refresh"));
+            openLedgersRefreshThread.scheduleWithFixedDelay(() -> {
+                refreshOpenLedgers();
+            }, openLedgersRefreshSeconds, openLedgersRefreshSeconds, TimeUnit.SECONDS);
+        } else {
+            this.openLedgersRefreshThread = null;
+        }
+        this.bookiesRefreshPool = Executors.newFixedThreadPool(Math.max(1, refreshThreads), newThreadFactory("bk-visual-manager-cluster-bookies-refresh"));
+        this.bookiesRefreshTimeoutSeconds = Long.parseLong(configStore.getProperty(PROPERTY_METADATA_BOOKIES_REFRESH_TIMEOUT, PROPERTY_METADATA_BOOKIES_REFRESH_TIMEOUT_DEFAULT));
+        int bookiesRefreshSeconds = Integer.parseInt(configStore.getProperty(PROPERTY_METADATA_BOOKIES_REFRESH_PERIOD, PROPERTY_METADATA_BOOKIES_REFRESH_PERIOD_DEFAULT));
+        if (bookiesRefreshSeconds > 0) {
+            LOG.log(Level.INFO, "Scheduling refresh of bookies, every {0} seconds", bookiesRefreshSeconds);
+            this.bookiesRefreshThread = Executors.newSingleThreadScheduledExecutor(newThreadFactory("bk-visual-manager-bookies-refresh"));
+            bookiesRefreshThread.scheduleWithFixedDelay(() -> {
+                refreshBookies();
+            }, bookiesRefreshSeconds, bookiesRefreshSeconds, TimeUnit.SECONDS);
+        } else {
+            this.bookiesRefreshThread = null;
+        }
+        if (Boolean.parseBoolean(configStore.getProperty(PROPERTY_METADATA_BOOKIES_WATCH, PROPERTY_METADATA_BOOKIES_WATCH_DEFAULT))) {
+            // a single thread, so that changes are applied in the order they are notified
+            this.bookiesWatchThread = Executors.newSingleThreadScheduledExecutor(newThreadFactory("bk-visual-manager-bookies-watch"));
+        } else {
+            this.bookiesWatchThread = null;
+        }
         if (refreshSeconds > 0) {
             LOG.log(Level.INFO, "Scheduling automatic refresh of metadata, every {0} seconds", refreshSeconds);
             refreshThread.scheduleWithFixedDelay(() -> {
@@ -158,6 +292,25 @@ public class BookkeeperManager implements AutoCloseable {
         this.configStore = configStore;
         this.metadataCache = metadataCache;
         this.bkClusterPool = new BookkeeperClusterPool();
+        int snapshotRefreshSeconds = Integer.parseInt(configStore.getProperty(PROPERTY_METADATA_SNAPSHOT_REFRESH_PERIOD, PROPERTY_METADATA_SNAPSHOT_REFRESH_PERIOD_DEFAULT));
+        if (snapshotRefreshSeconds > 0) {
+            LOG.log(Level.INFO, "Serving reads from a snapshot of the cache, refreshed every {0} seconds after changes", snapshotRefreshSeconds);
+            this.snapshotRefreshThread = Executors.newSingleThreadScheduledExecutor(newThreadFactory("bk-visual-manager-snapshot-refresh"));
+            snapshotRefreshThread.scheduleWithFixedDelay(this::buildSnapshot, 0, snapshotRefreshSeconds, TimeUnit.SECONDS);
+        } else {
+            this.snapshotRefreshThread = null;
+        }
+    }
+
+    private static ThreadFactory newThreadFactory(String name) {
+        return (Runnable r) -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            t.setUncaughtExceptionHandler((Thread t1, Throwable e) -> {
+                e.printStackTrace();
+            });
+            return t;
+        };
     }
 
     @Getter
@@ -166,12 +319,40 @@ public class BookkeeperManager implements AutoCloseable {
         private final RefreshStatus status;
         private final long lastMetadataCacheRefresh;
         private final Map<Integer, ClusterWideConfiguration> lastClusterWideConfiguration;
+        private final Map<Integer, ClusterRefreshStatus> clusterRefreshStatus;
 
         public RefreshCacheWorkerStatus(RefreshStatus status, long lastMetadataCacheRefresh,
-                                        Map<Integer, ClusterWideConfiguration> lastClusterWideConfiguration) {
+                                        Map<Integer, ClusterWideConfiguration> lastClusterWideConfiguration,
+                                        Map<Integer, ClusterRefreshStatus> clusterRefreshStatus) {
             this.status = status;
             this.lastMetadataCacheRefresh = lastMetadataCacheRefresh;
             this.lastClusterWideConfiguration = lastClusterWideConfiguration;
+            this.clusterRefreshStatus = clusterRefreshStatus;
+        }
+
+    }
+
+    /**
+     * Outcome of the last refresh of a single cluster
+     */
+    @Getter
+    public static final class ClusterRefreshStatus {
+
+        private final int clusterId;
+        private final String clusterName;
+        private final RefreshStatus status;
+        private final long lastRefreshStart;
+        private final long lastRefreshEnd;
+        private final String lastError;
+
+        public ClusterRefreshStatus(int clusterId, String clusterName, RefreshStatus status,
+                                    long lastRefreshStart, long lastRefreshEnd, String lastError) {
+            this.clusterId = clusterId;
+            this.clusterName = clusterName;
+            this.status = status;
+            this.lastRefreshStart = lastRefreshStart;
+            this.lastRefreshEnd = lastRefreshEnd;
+            this.lastError = lastError;
         }
 
     }
@@ -180,6 +361,10 @@ public class BookkeeperManager implements AutoCloseable {
         return configStore;
     }
 
+    public ParsedLedgerMetadataCache getParsedMetadataCache() {
+        return parsedMetadataCache;
+    }
+
     public RefreshCacheWorkerStatus refreshMetadataCache() {
         if (refreshStatus.compareAndSet(RefreshStatus.IDLE, RefreshStatus.WORKING)) {
             this.refreshThread.submit(() -> {
@@ -192,149 +377,707 @@ public class BookkeeperManager implements AutoCloseable {
     }
 
     public RefreshCacheWorkerStatus getRefreshWorkerStatus() {
-        return new RefreshCacheWorkerStatus(refreshStatus.get(), lastMetadataCacheRefresh, lastClusterWideConfiguration);
+        return new RefreshCacheWorkerStatus(refreshStatus.get(), lastMetadataCacheRefresh, lastClusterWideConfiguration,
+                clusterRefreshStatus);
     }
 
     public void doRefreshMetadataCache() {
         LOG.info("Refreshing Metadata Cache");
         try {
+            List<ClusterTask> tasks = new ArrayList<>();
             for (Cluster cluster : this.metadataCache.listClusters()) {
-                String clusterName = cluster.getName();
-                LOG.log(Level.INFO, "Refreshing cluster {0} at {1}", new Object[]{clusterName, cluster.getMetadataServiceUri()});
-
-                BookkeeperCluster bkCluster = this.bkClusterPool.ensureCluster(
-                        cluster.getClusterId(),
-                        cluster.getMetadataServiceUri(),
-                        cluster.getConfiguration()
-                );
-
-                int clusterId = bkCluster.getId();
-                ClientConfiguration conf = bkCluster.getConf();
-                BookKeeper bkClient = bkCluster.getBkClient();
-                BookKeeperAdmin bkAdmin = bkCluster.getBkAdmin();
-
-                lastClusterWideConfiguration.put(clusterId, getClusterWideConfiguration(clusterId, cluster.getName(),
-                        cluster.getConfiguration(), bkClient, conf, bkAdmin));
-                RegistrationClient metadataClient = bkClient.getMetadataClientDriver().getRegistrationClient();
-                final Collection<BookieId> bookiesCookie = metadataClient.getAllBookies().get().getValue();
-                final Collection<BookieId> available = metadataClient.getWritableBookies().get().getValue();
-                final Collection<BookieId> readonly = metadataClient.getReadOnlyBookies().get().getValue();
-                LOG.log(Level.INFO, "all Bookies {0}", bookiesCookie);
-                LOG.log(Level.INFO, "writable Bookies {0}", available);
-                LOG.log(Level.INFO, "readonly Bookies {0}", readonly);
-                final Map<BookieId, BookieInfo> bookieInfo;
-                if (available.size() + readonly.size() > 0) {
-                    // https://github.com/apache/bookkeeper/pull/2498
-                    bookieInfo = bkClient.getBookieInfo();
-                } else {
-                    bookieInfo = Collections.emptyMap();
+                ClusterRefreshStatus current = clusterRefreshStatus.get(cluster.getClusterId());
+                if (current != null && current.getStatus() == RefreshStatus.WORKING) {
+                    LOG.log(Level.WARNING, "Refresh of cluster {0} is still in progress, skipping", cluster.getName());
+                    continue;
                 }
-                java.sql.Timestamp now = new java.sql.Timestamp(System.currentTimeMillis());
-                List<Bookie> bookiesBefore = metadataCache.listBookies(clusterId);
-                List<String> currentKnownBookiesOnMetadataServer = new ArrayList<>();
-                for (BookieId bookieId : bookiesCookie) {
-                    LOG.log(Level.INFO, "Discovered Bookie {0}", bookieId);
-                    Bookie b = metadataCache.getBookie(clusterId, bookieId.toString());
-                    if (b == null) {
-                        b = new Bookie();
-                    }
-                    b.setClusterId(clusterId);
-                    b.setBookieId(bookieId.toString());
-                    b.setDescription(bookieId.toString());
+                clusterRefreshStatus.put(cluster.getClusterId(), new ClusterRefreshStatus(cluster.getClusterId(),
+                        cluster.getName(), RefreshStatus.WORKING, System.currentTimeMillis(), 0, null));
+                tasks.add(submitClusterTask(clusterRefreshPool, cluster, () -> {
+                    refreshClusterAndRecordStatus(cluster);
+                }));
+            }
+            for (ClusterTask task : awaitClusterTasks(tasks, clusterRefreshTimeoutSeconds)) {
+                Cluster cluster = task.getCluster();
+                LOG.log(Level.SEVERE, "Refresh of cluster {0} did not complete within {1} seconds",
+                        new Object[]{cluster.getName(), clusterRefreshTimeoutSeconds});
+                clusterRefreshStatus.computeIfPresent(cluster.getClusterId(), (id, current) ->
+                        new ClusterRefreshStatus(id, current.getClusterName(), current.getStatus(),
+                                current.getLastRefreshStart(), current.getLastRefreshEnd(),
+                                "Timed out after " + clusterRefreshTimeoutSeconds + " seconds"));
+            }
+            topologyCache.refreshBookiesTopology();
+            // not a request thread, the refreshed cache is served as soon as the refresh completes
+            buildSnapshot();
+
+            lastMetadataCacheRefresh = System.currentTimeMillis();
+            LOG.info("Refreshing Metadata Cache Finished");
+        } catch (Throwable e) {
+            LOG.log(Level.SEVERE, "Cannot refresh metadata {}", e);
+        } finally {
+            refreshStatus.compareAndSet(RefreshStatus.WORKING, RefreshStatus.IDLE);
+        }
+    }
+
+    /**
+     * A task working on a single cluster, its timeout starts when it leaves the queue of the pool
+     */
+    private static final class ClusterTask {
+
+        @Getter
+        private final Cluster cluster;
+        private final AtomicLong startTime = new AtomicLong();
+        private Future<?> future;
+
+        private ClusterTask(Cluster cluster) {
+            this.cluster = cluster;
+        }
+    }
+
+    private static ClusterTask submitClusterTask(ExecutorService pool, Cluster cluster, Runnable action) {
+        ClusterTask task = new ClusterTask(cluster);
+        task.future = pool.submit(() -> {
+            task.startTime.set(System.currentTimeMillis());
+            action.run();
+        });
+        return task;
+    }
+
+    /**
+     * Wait for the tasks of a pass. Each task gets timeoutSeconds from the moment it starts running, so a cluster
+     * that hangs neither shortens nor extends the time given to the others. A task that cannot start, because the
+     * pool is busy with hung tasks, is given up after timeoutSeconds for each task of the pass.
+     *
+     * @param timeoutSeconds 0 in order to wait without limits
+     * @return the tasks cancelled because of the timeout
+     */
+    private static List<ClusterTask> awaitClusterTasks(List<ClusterTask> tasks, long timeoutSeconds) throws InterruptedException {
+        long timeoutMillis = TimeUnit.SECONDS.toMillis(timeoutSeconds);
+        long passDeadline = System.currentTimeMillis() + timeoutMillis * tasks.size();
+        List<ClusterTask> pending = new ArrayList<>(tasks);
+        List<ClusterTask> timedOut = new ArrayList<>();
+        while (!pending.isEmpty()) {
+            long now = System.currentTimeMillis();
+            long waitMillis = CLUSTER_TASKS_POLL_MILLIS;
+            for (Iterator<ClusterTask> it = pending.iterator(); it.hasNext();) {
+                ClusterTask task = it.next();
+                if (task.future.isDone()) {
+                    it.remove();
                     try {
-                        BookieServiceInfo bookieServiceInfo = FutureUtils.result(metadataClient.getBookieServiceInfo(bookieId)).getValue();
-                        Bookie.BookieInfo info = convertBookieServiceInfo(bookieServiceInfo);
-                        b.setBookieInfo(Bookie.formatBookieInfo(info));
-                    } catch (BKBookieHandleNotAvailableException err) {
-                        LOG.log(Level.INFO, "Bookie " + bookieId + " is not available (" + err + ")");
-                        // keep current bookieInfo
+                        task.future.get();
+                    } catch (ExecutionException | CancellationException err) {
+                        LOG.log(Level.SEVERE, "Unexpected error while working on cluster " + task.getCluster().getName(), err);
                     }
-                    int state;
-                    if (available.contains(bookieId)) {
-                        state = Bookie.STATE_AVAILABLE;
-                    } else if (readonly.contains(bookieId)) {
-                        state = Bookie.STATE_READONLY;
-                    } else {
-                        state = Bookie.STATE_DOWN;
+                    continue;
+                }
+                if (timeoutMillis <= 0) {
+                    continue;
+                }
+                long start = task.startTime.get();
+                long deadline = start > 0 ? start + timeoutMillis : passDeadline;
+                if (now >= deadline) {
+                    task.future.cancel(true);
+                    timedOut.add(task);
+                    it.remove();
+                } else {
+                    waitMillis = Math.min(waitMillis, deadline - now);
+                }
+            }
+            if (!pending.isEmpty()) {
+                try {
+                    pending.get(0).future.get(waitMillis, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException | ExecutionException | CancellationException err) {
+                    // checked at the next round
+                }
+            }
+        }
+        return timedOut;
+    }
+
+    private void refreshClusterAndRecordStatus(Cluster cluster) {
+        long start = System.currentTimeMillis();
+        clusterRefreshStatus.put(cluster.getClusterId(), new ClusterRefreshStatus(cluster.getClusterId(),
+                cluster.getName(), RefreshStatus.WORKING, start, 0, null));
+        String error = null;
+        try {
+            refreshCluster(cluster);
+        } catch (Throwable e) {
+            LOG.log(Level.SEVERE, "Cannot refresh metadata of cluster " + cluster.getName(), e);
+            error = e + "";
+        } finally {
+            clusterRefreshStatus.put(cluster.getClusterId(), new ClusterRefreshStatus(cluster.getClusterId(),
+                    cluster.getName(), RefreshStatus.IDLE, start, System.currentTimeMillis(), error));
+        }
+    }
+
+    private void refreshCluster(Cluster cluster) throws Exception {
+        String clusterName = cluster.getName();
+        LOG.log(Level.INFO, "Refreshing cluster {0} at {1}", new Object[]{clusterName, cluster.getMetadataServiceUri()});
+
+        BookkeeperCluster bkCluster = this.bkClusterPool.ensureCluster(
+                cluster.getClusterId(),
+                cluster.getMetadataServiceUri(),
+                cluster.getConfiguration()
+        );
+
+        int clusterId = bkCluster.getId();
+        ClientConfiguration conf = bkCluster.getConf();
+        BookKeeper bkClient = bkCluster.getBkClient();
+        BookKeeperAdmin bkAdmin = bkCluster.getBkAdmin();
+
+        lastClusterWideConfiguration.put(clusterId, getClusterWideConfiguration(clusterId, cluster.getName(),
+                cluster.getConfiguration(), bkClient, conf, bkAdmin));
+        refreshBookies(clusterId, clusterName, bkClient);
+        // the refresh of open ledgers must not write back a version read before this refresh wrote a newer one
+        ReentrantLock lock = ledgersRefreshLocks.computeIfAbsent(clusterId, id -> new ReentrantLock());
+        lock.lock();
+        try {
+            refreshLedgers(cluster, bkClient, bkAdmin);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void refreshLedgers(Cluster cluster, BookKeeper bkClient, BookKeeperAdmin bkAdmin) throws Exception {
+        int clusterId = cluster.getClusterId();
+        String clusterName = cluster.getName();
+        refreshDescriptions(cluster);
+
+        // ledgers not found on the metadata service will be deleted
+        LedgerVersionTable cachedVersions = metadataCache.getLedgerVersions(clusterId);
+        IncrementalLedgerWatcher watcher = incrementalRefresh ? ensureLedgerWatcher(clusterId, bkClient) : null;
+
+        long now = System.currentTimeMillis();
+        Long lastVerification = lastClosedLedgersVerification.get(clusterId);
+        boolean verifyClosedLedgers = lastVerification == null || now - lastVerification >= closedLedgersVerifyPeriodMillis;
+        AtomicLong existingClosedLedgers = new AtomicLong();
+        Iterable<Long> ledgerIds = bkAdmin.listLedgers();
+        Iterable<Long> ledgersToRead = () -> StreamSupport.stream(ledgerIds.spliterator(), false)
+                .filter(ledgerId -> {
+                    int index = cachedVersions.indexOf(ledgerId);
+                    if (verifyClosedLedgers || index < 0 || !cachedVersions.isClosedAt(index)) {
+                        return true;
                     }
-                    LOG.log(Level.INFO, "Discovered Bookie {0} state {1}", new Object[]{bookieId, state});
-                    b.setState(state);
-                    b.setScanTime(now);
-                    if (b.getState() != Bookie.STATE_DOWN) {
-                        BookieInfo bookieSpaceInfo = bookieInfo.get(bookieId);
-                        LOG.log(Level.INFO, "Bookie info {0}", bookieSpaceInfo);
-                        if (bookieSpaceInfo != null) {
-                            b.setFreeDiskspace(bookieSpaceInfo.getFreeDiskSpace());
-                            b.setTotalDiskspace(bookieSpaceInfo.getTotalDiskSpace());
-                        } else {
-                            // bookie did not anwer to getBookieInfo, this is not good
-                            state = Bookie.STATE_DOWN;
-                            b.setState(state);
-                        }
+                    // closed ledgers only need to be checked for existence
+                    cachedVersions.markSeenAt(index);
+                    existingClosedLedgers.incrementAndGet();
+                    if (watcher != null) {
+                        watcher.ledgerClosed(ledgerId);
                     }
-                    metadataCache.updateBookie(b);
-                    currentKnownBookiesOnMetadataServer.add(b.getBookieId());
+                    return false;
+                })
+                .iterator();
+
+        long count = readAndUpdateLedgers(clusterId, bkClient, ledgersToRead, cachedVersions, watcher);
+        int deleted = deleteLedgersNotSeen(clusterId, cachedVersions);
+        if (verifyClosedLedgers) {
+            lastClosedLedgersVerification.put(clusterId, now);
+        }
+        LOG.log(Level.INFO, "Read metadata of {0} ledgers of cluster {1}, {2} closed ledgers not read, {3} deleted",
+                new Object[]{count, clusterName, existingClosedLedgers.get(), deleted});
+    }
+
+    /**
+     * Compute again the descriptions and the ensembles of the ledgers of a cluster if the descriptions were built
+     * with another pattern or some ledgers were written without their ensembles
+     */
+    private void refreshDescriptions(Cluster cluster) throws BookkeeperManagerException {
+        if (descriptionPattern.equals(cluster.getDescriptionPattern())
+                && !metadataCache.hasLedgersWithoutEnsembles(cluster.getClusterId())) {
+            return;
+        }
+        int clusterId = cluster.getClusterId();
+        LedgerSearchCriteria criteria = LedgerSearchCriteria.builder().clusterId(clusterId).build();
+        LedgerKey after = null;
+        long count = 0;
+        while (true) {
+            List<Ledger> ledgers = metadataCache.scanLedgers(criteria, after, refreshBatchSize);
+            List<LedgerUpdate> updates = new ArrayList<>(ledgers.size());
+            Set<Long> ledgerIds = new HashSet<>();
+            for (Ledger ledger : ledgers) {
+                LedgerMetadata ledgerMetadata = convertLedgerMetadata(ledger);
+                ledger.setDescription(buildDescription(ledgerMetadata, descriptionPattern));
+                updates.add(new LedgerUpdate(ledger, Collections.emptyList(), Collections.emptyList(),
+                        buildEnsembleMap(ledgerMetadata)));
+                ledgerIds.add(ledger.getLedgerId());
+            }
+            metadataCache.updateDescriptions(updates);
+            parsedMetadataCache.invalidate(clusterId, ledgerIds);
+            count += ledgers.size();
+            if (ledgers.size() < refreshBatchSize) {
+                break;
+            }
+            Ledger last = ledgers.get(ledgers.size() - 1);
+            after = new LedgerKey(last.getLedgerId(), last.getClusterId());
+        }
+        cluster.setDescriptionPattern(descriptionPattern);
+        Cluster current = metadataCache.getCluster(clusterId);
+        if (current != null) {
+            current.setDescriptionPattern(descriptionPattern);
+            metadataCache.updateCluster(current);
+        }
+        LOG.log(Level.INFO, "Computed the description and the ensembles of {0} ledgers of cluster {1} with pattern {2}",
+                new Object[]{count, cluster.getName(), descriptionPattern});
+    }
+
+    /**
+     * Discover bookies of a cluster and update their state and disk usage.
+     * This runs during the refresh and on its own much shorter period, it never waits for the ledger scan.
+     */
+    private void refreshBookies(int clusterId, String clusterName, BookKeeper bkClient) throws Exception {
+        Object lock = bookiesRefreshLocks.computeIfAbsent(clusterId, id -> new Object());
+        synchronized (lock) {
+            doRefreshBookies(clusterId, bkClient);
+        }
+        LOG.log(Level.FINE, "Refreshed bookies of cluster {0}", clusterName);
+        ensureBookieWatcher(clusterId, bkClient);
+    }
+
+    private void ensureBookieWatcher(int clusterId, BookKeeper bkClient) throws Exception {
+        if (bookiesWatchThread == null || bookieWatchers.containsKey(clusterId)) {
+            return;
+        }
+        BookieStateWatcher watcher = new BookieStateWatcher(clusterId,
+                bkClient.getMetadataClientDriver().getRegistrationClient(), bookiesWatchThread, this::applyBookieStates);
+        if (bookieWatchers.putIfAbsent(clusterId, watcher) != null) {
+            return;
+        }
+        LOG.log(Level.INFO, "Watching bookies of cluster {0}", clusterId);
+        try {
+            watcher.start();
+        } catch (Exception err) {
+            bookieWatchers.remove(clusterId, watcher);
+            watcher.close();
+            throw err;
+        }
+    }
+
+    /**
+     * Apply the state of bookies notified by the metadata service, disk usage is updated by the next poll.
+     * A bookie which did not answer to the last poll stays down until a poll sees it answering again.
+     */
+    private void applyBookieStates(int clusterId, Set<BookieId> writable, Set<BookieId> readOnly) {
+        Object lock = bookiesRefreshLocks.computeIfAbsent(clusterId, id -> new Object());
+        List<Bookie> changed = new ArrayList<>();
+        synchronized (lock) {
+            Set<String> unresponsive = unresponsiveBookies.getOrDefault(clusterId, Collections.emptySet());
+            java.sql.Timestamp now = new java.sql.Timestamp(System.currentTimeMillis());
+            Map<String, BookieId> registered = new HashMap<>();
+            writable.forEach(bookieId -> registered.put(bookieId.toString(), bookieId));
+            readOnly.forEach(bookieId -> registered.put(bookieId.toString(), bookieId));
+            for (Bookie b : metadataCache.listBookies(clusterId)) {
+                BookieId bookieId = registered.remove(b.getBookieId());
+                int state = bookieId == null ? Bookie.STATE_DOWN : getBookieState(bookieId, writable, readOnly, unresponsive);
+                if (state != b.getState()) {
+                    LOG.log(Level.INFO, "Bookie {0} of cluster {1} changed state from {2} to {3}",
+                            new Object[]{b.getBookieId(), clusterId, b.getState(), state});
+                    b.setState(state);
+                    b.setStateChangeTime(now);
+                    changed.add(b);
                 }
-                for (Bookie b : bookiesBefore) {
-                    if (!currentKnownBookiesOnMetadataServer.contains(b.getBookieId())) {
-                        // bookie decommissioned
-                        LOG.log(Level.INFO, "Found decommissioned bookie {0}", b.getBookieId());
-                        metadataCache.deleteBookie(b.getClusterId(), b.getBookieId());
-                    }
+            }
+            for (BookieId bookieId : registered.values()) {
+                LOG.log(Level.INFO, "Bookie {0} of cluster {1} appeared", new Object[]{bookieId, clusterId});
+                Bookie b = new Bookie(bookieId.toString(), clusterId, bookieId.toString(),
+                        getBookieState(bookieId, writable, readOnly, unresponsive), now, 0, 0, null);
+                b.setStateChangeTime(now);
+                changed.add(b);
+            }
+            metadataCache.updateBookies(clusterId, changed, Collections.emptyList());
+        }
+        if (!changed.isEmpty()) {
+            publishSnapshotLists();
+        }
+    }
+
+    /**
+     * The state of a registered bookie, the same rule for the poll and for the watcher.
+     *
+     * @param unresponsive bookies which are registered but did not answer to getBookieInfo at the last poll
+     */
+    private static int getBookieState(BookieId bookieId, Collection<BookieId> writable, Collection<BookieId> readOnly,
+                                      Set<String> unresponsive) {
+        if (unresponsive.contains(bookieId.toString())) {
+            return Bookie.STATE_DOWN;
+        } else if (writable.contains(bookieId)) {
+            return Bookie.STATE_AVAILABLE;
+        } else if (readOnly.contains(bookieId)) {
+            return Bookie.STATE_READONLY;
+        } else {
+            return Bookie.STATE_DOWN;
+        }
+    }
+
+    private void doRefreshBookies(int clusterId, BookKeeper bkClient) throws Exception {
+        RegistrationClient metadataClient = bkClient.getMetadataClientDriver().getRegistrationClient();
+        CompletableFuture<Versioned<Set<BookieId>>> allBookiesFuture = metadataClient.getAllBookies();
+        CompletableFuture<Versioned<Set<BookieId>>> availableFuture = metadataClient.getWritableBookies();
+        CompletableFuture<Versioned<Set<BookieId>>> readonlyFuture = metadataClient.getReadOnlyBookies();
+        final Collection<BookieId> bookiesCookie = allBookiesFuture.get().getValue();
+        final Collection<BookieId> available = availableFuture.get().getValue();
+        final Collection<BookieId> readonly = readonlyFuture.get().getValue();
+        LOG.log(Level.INFO, "all Bookies {0}", bookiesCookie);
+        LOG.log(Level.INFO, "writable Bookies {0}", available);
+        LOG.log(Level.INFO, "readonly Bookies {0}", readonly);
+        // ask for the info of all the bookies at once, instead of one round trip after the other
+        Map<BookieId, CompletableFuture<Versioned<BookieServiceInfo>>> serviceInfos = new HashMap<>();
+        for (BookieId bookieId : bookiesCookie) {
+            serviceInfos.put(bookieId, metadataClient.getBookieServiceInfo(bookieId));
+        }
+        final Map<BookieId, BookieInfo> bookieInfo;
+        if (available.size() + readonly.size() > 0) {
+            // https://github.com/apache/bookkeeper/pull/2498
+            bookieInfo = bkClient.getBookieInfo();
+        } else {
+            bookieInfo = Collections.emptyMap();
+        }
+        // a bookie which is registered but does not answer to getBookieInfo is not good
+        Set<String> unresponsive = new HashSet<>();
+        for (BookieId bookieId : bookiesCookie) {
+            if ((available.contains(bookieId) || readonly.contains(bookieId)) && !bookieInfo.containsKey(bookieId)) {
+                unresponsive.add(bookieId.toString());
+            }
+        }
+        unresponsiveBookies.put(clusterId, unresponsive);
+        java.sql.Timestamp now = new java.sql.Timestamp(System.currentTimeMillis());
+        Map<String, Bookie> bookiesBefore = new HashMap<>();
+        for (Bookie b : metadataCache.listBookies(clusterId)) {
+            bookiesBefore.put(b.getBookieId(), b);
+        }
+        List<Bookie> bookies = new ArrayList<>();
+        for (BookieId bookieId : bookiesCookie) {
+            LOG.log(Level.INFO, "Discovered Bookie {0}", bookieId);
+            Bookie b = bookiesBefore.remove(bookieId.toString());
+            if (b == null) {
+                b = new Bookie();
+            }
+            b.setClusterId(clusterId);
+            b.setBookieId(bookieId.toString());
+            b.setDescription(bookieId.toString());
+            try {
+                BookieServiceInfo bookieServiceInfo = FutureUtils.result(serviceInfos.get(bookieId)).getValue();
+                Bookie.BookieInfo info = convertBookieServiceInfo(bookieServiceInfo);
+                b.setBookieInfo(Bookie.formatBookieInfo(info));
+            } catch (BKBookieHandleNotAvailableException err) {
+                LOG.log(Level.INFO, "Bookie " + bookieId + " is not available (" + err + ")");
+                // keep current bookieInfo
+            }
+            // new bookies, and bookies never seen changing, get their first transition time now
+            int previousState = b.getStateChangeTime() == null ? -1 : b.getState();
+            int state = getBookieState(bookieId, available, readonly, unresponsive);
+            LOG.log(Level.INFO, "Discovered Bookie {0} state {1}", new Object[]{bookieId, state});
+            b.setState(state);
+            b.setScanTime(now);
+            BookieInfo bookieSpaceInfo = bookieInfo.get(bookieId);
+            LOG.log(Level.INFO, "Bookie info {0}", bookieSpaceInfo);
+            if (state != Bookie.STATE_DOWN && bookieSpaceInfo != null) {
+                b.setFreeDiskspace(bookieSpaceInfo.getFreeDiskSpace());
+                b.setTotalDiskspace(bookieSpaceInfo.getTotalDiskSpace());
+            }
+            if (b.getState() != previousState) {
+                b.setStateChangeTime(now);
+            }
+            bookies.add(b);
+        }
+        // bookies not found anymore have been decommissioned
+        for (String bookieId : bookiesBefore.keySet()) {
+            LOG.log(Level.INFO, "Found decommissioned bookie {0}", bookieId);
+        }
+        metadataCache.updateBookies(clusterId, bookies, bookiesBefore.keySet());
+    }
+
+    /**
+     * Refresh the bookies of every cluster concurrently, a cluster that does not answer does not delay the others
+     */
+    public void refreshBookies() {
+        List<ClusterTask> tasks = new ArrayList<>();
+        for (Cluster cluster : metadataCache.listClusters()) {
+            tasks.add(submitClusterTask(bookiesRefreshPool, cluster, () -> {
+                try {
+                    BookkeeperCluster bkCluster = this.bkClusterPool.ensureCluster(
+                            cluster.getClusterId(),
+                            cluster.getMetadataServiceUri(),
+                            cluster.getConfiguration()
+                    );
+                    refreshBookies(cluster.getClusterId(), cluster.getName(), bkCluster.getBkClient());
+                } catch (Throwable err) {
+                    LOG.log(Level.SEVERE, "Cannot refresh bookies of cluster " + cluster.getName(), err);
+                }
+            }));
+        }
+        try {
+            for (ClusterTask task : awaitClusterTasks(tasks, bookiesRefreshTimeoutSeconds)) {
+                LOG.log(Level.SEVERE, "Refresh of bookies of cluster {0} did not complete within {1} seconds",
+                        new Object[]{task.getCluster().getName(), bookiesRefreshTimeoutSeconds});
+            }
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        publishSnapshotLists();
+    }
+
+    /**
+     * Read the metadata of the ledgers and write to the cache the ones that changed.
+     * The ledgers found on the metadata service are marked as seen in cachedVersions.
+     */
+    private long readAndUpdateLedgers(int clusterId, BookKeeper bkClient, Iterable<Long> ledgerIds,
+                                      LedgerVersionTable cachedVersions, IncrementalLedgerWatcher watcher) throws Exception {
+        AtomicLong unchanged = new AtomicLong();
+        List<LedgerUpdate> batch = new ArrayList<>(refreshBatchSize);
+        PipelinedLedgerMetadataReader reader = new PipelinedLedgerMetadataReader(bkClient.getLedgerManager(), maxInflightReads);
+        long count = reader.readAll(ledgerIds, (ledgerId, versionedMetadata) -> {
+            int index = cachedVersions.indexOf(ledgerId);
+            Long cachedVersion = null;
+            if (index >= 0) {
+                cachedVersions.markSeenAt(index);
+                cachedVersion = cachedVersions.getVersionAt(index);
+            }
+            long version = getMetadataVersion(versionedMetadata);
+            if (isUpToDate(cachedVersion, version)) {
+                unchanged.incrementAndGet();
+            } else {
+                batch.add(buildLedgerUpdate(clusterId, ledgerId, versionedMetadata.getValue(), version));
+                if (batch.size() >= refreshBatchSize) {
+                    updateLedgers(batch);
+                    batch.clear();
+                }
+            }
+            if (watcher == null) {
+                return;
+            }
+            if (versionedMetadata.getValue().isClosed()) {
+                watcher.ledgerClosed(ledgerId);
+            } else {
+                watcher.watch(ledgerId, version);
+            }
+        });
+        updateLedgers(batch);
+        LOG.log(Level.FINE, "Read metadata of {0} ledgers of cluster {1}, {2} unchanged",
+                new Object[]{count, clusterId, unchanged.get()});
+        return count;
+    }
+
+    private int deleteLedgersNotSeen(int clusterId, LedgerVersionTable cachedVersions) {
+        int deleted = cachedVersions.countNotSeen();
+        if (deleted == 0) {
+            return 0;
+        }
+        List<Long> batch = new ArrayList<>(Math.min(deleted, refreshBatchSize));
+        cachedVersions.forEachNotSeen(ledgerId -> {
+            batch.add(ledgerId);
+            if (batch.size() >= refreshBatchSize) {
+                deleteLedgers(clusterId, batch);
+                batch.clear();
+            }
+        });
+        deleteLedgers(clusterId, batch);
+        return deleted;
+    }
+
+    private void updateLedgers(List<LedgerUpdate> batch) {
+        metadataCache.updateLedgers(batch);
+        for (LedgerUpdate update : batch) {
+            parsedMetadataCache.invalidate(update.getLedger().getClusterId(), update.getLedger().getLedgerId());
+        }
+    }
+
+    private void deleteLedgers(int clusterId, List<Long> batch) {
+        metadataCache.deleteLedgers(clusterId, batch);
+        parsedMetadataCache.invalidate(clusterId, batch);
+    }
+
+    /**
+     * Read again the ledgers that are not closed yet, this is cheaper than a full refresh
+     * as usually most of the ledgers are closed.
+     * A cluster whose full refresh holds the ledgers lock is skipped, the full refresh is going to read them.
+     */
+    public void refreshOpenLedgers() {
+        for (Cluster cluster : metadataCache.listClusters()) {
+            int clusterId = cluster.getClusterId();
+            BookkeeperCluster bkCluster = bkClusterPool.getCluster(clusterId);
+            if (bkCluster == null) {
+                continue;
+            }
+            ReentrantLock lock = ledgersRefreshLocks.computeIfAbsent(clusterId, id -> new ReentrantLock());
+            if (!lock.tryLock()) {
+                continue;
+            }
+            try {
+                LedgerVersionTable cachedVersions = metadataCache.getOpenLedgerVersions(clusterId);
+                if (cachedVersions.isEmpty()) {
+                    continue;
                 }
-                Set<Long> deletedLedgers = new HashSet<>(metadataCache.listLedgers(clusterId));
+                Iterable<Long> ledgerIds = () -> new PrimitiveIterator.OfLong() {
+                    private int index;
 
-                Iterable<Long> ledgersIds = bkAdmin.listLedgers();
-                for (long ledgerId : ledgersIds) {
-                    LedgerMetadata ledgerMetadata = readLedgerMetadata(ledgerId, clusterId);
-                    if (ledgerMetadata == null) {
-                        continue;
+                    @Override
+                    public boolean hasNext() {
+                        return index < cachedVersions.size();
+                    }
+
+                    @Override
+                    public long nextLong() {
+                        return cachedVersions.getLedgerIdAt(index++);
+                    }
+                };
+                long count = readAndUpdateLedgers(clusterId, bkCluster.getBkClient(), ledgerIds, cachedVersions, null);
+                int deleted = deleteLedgersNotSeen(clusterId, cachedVersions);
+                LOG.log(Level.FINE, "Refreshed {0} ledgers that are not closed of cluster {1}, {2} deleted",
+                        new Object[]{count, cluster.getName(), deleted});
+            } catch (Throwable err) {
+                LOG.log(Level.SEVERE, "Cannot refresh ledgers that are not closed of cluster " + cluster.getName(), err);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private IncrementalLedgerWatcher ensureLedgerWatcher(int clusterId, BookKeeper bkClient) {
+        return ledgerWatchers.computeIfAbsent(clusterId, id -> {
+            LOG.log(Level.INFO, "Starting incremental refresh of cluster {0}", id);
+            return new IncrementalLedgerWatcher(id, bkClient.getLedgerManager(), incrementalRefreshThread,
+                    new IncrementalLedgerWatcher.LedgerChangeHandler() {
+                @Override
+                public void ledgerChanged(int clusterId, long ledgerId, Versioned<LedgerMetadata> metadata) throws Exception {
+                    Ledger cached = metadataCache.getLedgerMetadata(clusterId, ledgerId);
+                    long version = getMetadataVersion(metadata);
+                    if (!isUpToDate(cached == null ? null : cached.getMetadataVersion(), version)) {
+                        updateLedgers(Collections.singletonList(
+                                buildLedgerUpdate(clusterId, ledgerId, metadata.getValue(), version)));
                     }
-                    deletedLedgers.remove(ledgerId);
-                    Ledger ledger = new Ledger(ledgerId, clusterId,
-                            ledgerMetadata.getLength(),
-                            new java.sql.Timestamp(ledgerMetadata.getCtime()),
-                            new java.sql.Timestamp(System.currentTimeMillis()),
-                            Base64.getEncoder().encodeToString(serDe.serialize(ledgerMetadata)));
-                    List<LedgerMetadataEntry> metadataEntries = new ArrayList<>();
-                    ledgerMetadata.getCustomMetadata().forEach((n, v) -> {
-                        metadataEntries.add(new LedgerMetadataEntry(ledgerId, clusterId,
-                                n, new String(v, StandardCharsets.UTF_8)));
-                    });
-                    List<LedgerBookie> bookies = new ArrayList<>();
-                    Set<String> bookieAddresses = getBookieList(ledgerMetadata);
-                    bookieAddresses.forEach(bookieId -> {
-                        bookies.add(new LedgerBookie(ledgerId, bookieId, clusterId));
-                    });
-                    LOG.log(Level.FINE, "Updating ledger {0} metadata", ledgerId);
-                    metadataCache.updateLedger(ledger, bookies, metadataEntries);
                 }
-                for (Long deletedLedger : deletedLedgers) {
-                    metadataCache.deleteLedger(clusterId, deletedLedger);
+
+                @Override
+                public void ledgerDeleted(int clusterId, long ledgerId) {
+                    metadataCache.deleteLedger(clusterId, ledgerId);
+                    parsedMetadataCache.invalidate(clusterId, ledgerId);
                 }
+            });
+        });
+    }
 
+    /**
+     * Incremental refresh: start watching the ledgers created after the last scan.
+     * Ledgers are watched for the first time by the full refresh.
+     */
+    void watchNewLedgers() {
+        for (IncrementalLedgerWatcher watcher : ledgerWatchers.values()) {
+            int clusterId = watcher.getClusterId();
+            try {
+                BookkeeperCluster bkCluster = bkClusterPool.getCluster(clusterId);
+                if (bkCluster == null) {
+                    continue;
+                }
+                int newLedgers = 0;
+                for (long ledgerId : bkCluster.getBkAdmin().listLedgers()) {
+                    if (watcher.watch(ledgerId, Ledger.UNKNOWN_VERSION)) {
+                        newLedgers++;
+                    }
+                }
+                LOG.log(Level.FINE, "Found {0} new ledgers on cluster {1}, watching {2} ledgers",
+                        new Object[]{newLedgers, clusterId, watcher.getWatchedLedgersCount()});
+            } catch (Throwable err) {
+                LOG.log(Level.SEVERE, "Cannot list ledgers of cluster " + clusterId, err);
             }
-            topologyCache.refreshBookiesTopology();
+        }
+    }
 
-            lastMetadataCacheRefresh = System.currentTimeMillis();
-            LOG.info("Refreshing Metadata Cache Finished");
-        } catch (Throwable e) {
-            LOG.log(Level.SEVERE, "Cannot refresh metadata {}", e);
-        } finally {
-            refreshStatus.compareAndSet(RefreshStatus.WORKING, RefreshStatus.IDLE);
+    static long getMetadataVersion(Versioned<LedgerMetadata> metadata) {
+        Version version = metadata.getVersion();
+        if (version instanceof LongVersion) {
+            return ((LongVersion) version).getLongVersion();
         }
+        return Ledger.UNKNOWN_VERSION;
     }
 
-    private static Set<String> getBookieList(LedgerMetadata ledgerMetadata) {
-        Set<String> bookieAddresses = new HashSet<>();
-        ledgerMetadata.getAllEnsembles().values().forEach(bookieList -> {
-            bookieList.forEach(bookieAddress -> {
-                bookieAddresses.add(bookieAddress.toString());
-            });
+    /**
+     * Metadata versions only grow, so a cached copy with the same or a newer version does not need to be written.
+     */
+    private static boolean isUpToDate(Long cachedVersion, long version) {
+        return cachedVersion != null
+                && version != Ledger.UNKNOWN_VERSION
+                && cachedVersion >= version;
+    }
+
+    private LedgerUpdate buildLedgerUpdate(int clusterId, long ledgerId, LedgerMetadata ledgerMetadata, long version) throws IOException {
+        Ledger ledger = new Ledger(ledgerId, clusterId,
+                ledgerMetadata.getLength(),
+                new java.sql.Timestamp(ledgerMetadata.getCtime()),
+                new java.sql.Timestamp(System.currentTimeMillis()),
+                null,
+                version);
+        ledger.setMetadata(MetadataBlob.encode(serDe.serialize(ledgerMetadata), compressMetadata));
+        ledger.setState(ledgerMetadata.getState().name());
+        ledger.setDescription(buildDescription(ledgerMetadata, descriptionPattern));
+        List<LedgerMetadataEntry> metadataEntries = new ArrayList<>();
+        ledgerMetadata.getCustomMetadata().forEach((n, v) -> {
+            metadataEntries.add(new LedgerMetadataEntry(ledgerId, clusterId,
+                    n, new String(v, StandardCharsets.UTF_8)));
+        });
+        Map<Long, List<String>> ensembles = buildEnsembleMap(ledgerMetadata);
+        List<LedgerBookie> bookies = new ArrayList<>();
+        Set<String> bookieAddresses = getBookieList(ensembles);
+        bookieAddresses.forEach(bookieId -> {
+            bookies.add(new LedgerBookie(ledgerId, bookieId, clusterId));
         });
+        LOG.log(Level.FINE, "Updating ledger {0} metadata", ledgerId);
+        return new LedgerUpdate(ledger, bookies, metadataEntries, ensembles);
+    }
+
+    /**
+     * All the bookies of a ledger, each distinct ensemble is visited once
+     */
+    private static Set<String> getBookieList(Map<Long, List<String>> ensembles) {
+        Set<String> bookieAddresses = new HashSet<>();
+        new HashSet<>(ensembles.values()).forEach(bookieAddresses::addAll);
         return bookieAddresses;
     }
 
+    /**
+     * Ensembles of a cached ledger, read from the ensembles shared by all the ledgers of the cluster.
+     * Ledgers cached without ensembles have none until the next refresh of their cluster.
+     */
+    public Map<Long, List<String>> getEnsembles(Ledger ledger) {
+        Map<Long, List<String>> ensembles = metadataCache.getEnsembles(ledger);
+        return ensembles != null ? ensembles : Collections.emptyMap();
+    }
+
+    /**
+     * Custom metadata value as shown to the user
+     */
+    public static String convertMetadataValue(byte[] value) {
+        try {
+            return new String(value, StandardCharsets.UTF_8);
+        } catch (Throwable t) {
+            return Arrays.toString(value);
+        }
+    }
+
+    /**
+     * Description of a ledger: the value of the first custom metadata whose name contains one of the names
+     * of the pattern, in pattern order.
+     *
+     * @param ledgerMetadata
+     * @param descriptionPattern comma separated names, for instance tablespacename,pulsar/managed-ledger,application
+     * @return the description, empty if no metadata matches
+     */
+    public static String buildDescription(LedgerMetadata ledgerMetadata, String descriptionPattern) {
+        if (descriptionPattern == null) {
+            return "";
+        }
+        Map<String, String> metadata = new HashMap<>();
+        ledgerMetadata.getCustomMetadata().forEach((key, value) -> metadata.put(key, convertMetadataValue(value)));
+        for (String metadataField : descriptionPattern.toLowerCase().split("\\,")) {
+            for (Map.Entry<String, String> entry : metadata.entrySet()) {
+                if (entry.getKey().contains(metadataField)) {
+                    return entry.getValue();
+                }
+            }
+        }
+        return "";
+    }
+
     /**
      * Build ensemble map
      *
@@ -360,6 +1103,29 @@ public class BookkeeperManager implements AutoCloseable {
         if (refreshThread != null) {
             refreshThread.shutdown();
         }
+        if (clusterRefreshPool != null) {
+            clusterRefreshPool.shutdownNow();
+        }
+        if (incrementalRefreshThread != null) {
+            incrementalRefreshThread.shutdownNow();
+        }
+        if (openLedgersRefreshThread != null) {
+            openLedgersRefreshThread.shutdownNow();
+        }
+        if (bookiesRefreshThread != null) {
+            bookiesRefreshThread.shutdownNow();
+        }
+        bookiesRefreshPool.shutdownNow();
+        if (snapshotRefreshThread != null) {
+            snapshotRefreshThread.shutdownNow();
+        }
+        bookieWatchers.values().forEach(BookieStateWatcher::close);
+        bookieWatchers.clear();
+        if (bookiesWatchThread != null) {
+            bookiesWatchThread.shutdownNow();
+        }
+        ledgerWatchers.values().forEach(IncrementalLedgerWatcher::close);
+        ledgerWatchers.clear();
         try {
             // Close the cluster pool
             if (bkClusterPool != null) {
@@ -371,15 +1137,114 @@ public class BookkeeperManager implements AutoCloseable {
         }
     }
 
+    /**
+     * Publish a new snapshot for the readers if the cache changed. The snapshot is built by its own thread, never by
+     * the caller, and a request made while another one is queued is merged with it.
+     */
+    private void refreshSnapshot() {
+        if (snapshotRefreshThread == null || !snapshotRefreshQueued.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            snapshotRefreshThread.execute(this::buildSnapshot);
+        } catch (RejectedExecutionException closed) {
+            snapshotRefreshQueued.set(false);
+        }
+    }
+
+    private void buildSnapshot() {
+        if (snapshotRefreshThread == null) {
+            return;
+        }
+        snapshotRefreshQueued.set(false);
+        try {
+            metadataCache.refreshSnapshotIfChanged();
+        } catch (Throwable err) {
+            LOG.log(Level.SEVERE, "Cannot refresh the snapshot of the cache", err);
+        }
+    }
+
+    /**
+     * Make a change of the clusters or of the bookies visible at once, the ledgers of the snapshot are not touched
+     */
+    private void publishSnapshotLists() {
+        if (snapshotRefreshThread == null) {
+            return;
+        }
+        try {
+            metadataCache.refreshSnapshotLists();
+        } catch (RuntimeException err) {
+            LOG.log(Level.SEVERE, "Cannot refresh the snapshot of the cache", err);
+        }
+    }
+
+    /**
+     * The snapshot that serves the reads, readers never wait for the refresh
+     *
+     * @return null if snapshots are disabled or the first one is not ready, then reads go to the database
+     */
+    public MetadataSnapshot getSnapshot() {
+        return snapshotRefreshThread == null ? null : metadataCache.getSnapshot();
+    }
+
     public List<Long> getLedgersForBookie(int clusterId, String bookieId) throws BookkeeperManagerException {
         return metadataCache.getLedgersForBookie(clusterId, bookieId);
     }
 
+    /**
+     * Ledgers placed on all the given bookies, or on any of them
+     */
+    public Roaring64NavigableMap getLedgersForBookies(int clusterId, Collection<String> bookieIds, boolean onAllBookies) {
+        MetadataSnapshot snapshot = getSnapshot();
+        if (snapshot != null) {
+            return snapshot.getLedgersForBookies(clusterId, bookieIds, onAllBookies);
+        }
+        return metadataCache.getLedgersForBookies(clusterId, bookieIds, onAllBookies);
+    }
+
+    /**
+     * Ledgers with at least one copy on a bookie of the zone
+     *
+     * @return null if the bookies topology is not available
+     */
+    public Roaring64NavigableMap getLedgersForZone(int clusterId, String zone) {
+        Map<String, BookieTopologyCache.BookieTopology> topology = topologyCache.getBookiesTopology();
+        if (topology == null) {
+            return null;
+        }
+        List<String> bookieIds = topology.entrySet().stream()
+                .filter(e -> zone.equals(e.getValue().getZone()))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+        return getLedgersForBookies(clusterId, bookieIds, false);
+    }
+
+    public Map<String, Long> countLedgersByBookie(int clusterId) {
+        MetadataSnapshot snapshot = getSnapshot();
+        if (snapshot != null) {
+            return snapshot.countLedgersByBookie(clusterId);
+        }
+        return metadataCache.countLedgersByBookie(clusterId);
+    }
+
     public Ledger getLedger(int clusterId, long ledgerId) throws BookkeeperManagerException {
-        return metadataCache.getLedgerMetadata(clusterId, ledgerId);
+        ParsedLedgerMetadataCache.Entry cached = parsedMetadataCache.get(clusterId, ledgerId);
+        if (cached != null) {
+            return cached.getLedger();
+        }
+        long invalidationSequence = parsedMetadataCache.getInvalidationSequence();
+        Ledger ledger = metadataCache.getLedgerMetadata(clusterId, ledgerId);
+        if (ledger != null && parsedMetadataCache.isEnabled()) {
+            convertLedgerMetadata(ledger, invalidationSequence);
+        }
+        return ledger;
     }
 
     public Cluster getCluster(int clusterId) {
+        MetadataSnapshot snapshot = getSnapshot();
+        if (snapshot != null) {
+            return snapshot.getClusters().stream().filter(c -> c.getClusterId() == clusterId).findFirst().orElse(null);
+        }
         return metadataCache.getCluster(clusterId);
     }
 
@@ -388,41 +1253,41 @@ public class BookkeeperManager implements AutoCloseable {
     }
 
     public LedgerMetadata getLedgerMetadata(int clusterId, long ledgerId) throws BookkeeperManagerException {
-        Ledger ledger = metadataCache.getLedgerMetadata(clusterId, ledgerId);
-        return convertLedgerMetadata(ledger);
+        return convertLedgerMetadata(getLedger(clusterId, ledgerId));
     }
 
     private LedgerMetadata convertLedgerMetadata(Ledger ledger) throws BookkeeperManagerException {
+        return convertLedgerMetadata(ledger, -1);
+    }
+
+    /**
+     * @param invalidationSequence taken before the row was read, in order to cache the parsed metadata,
+     * -1 if it is unknown
+     */
+    private LedgerMetadata convertLedgerMetadata(Ledger ledger, long invalidationSequence) throws BookkeeperManagerException {
         try {
             if (ledger == null) {
                 return null;
             }
-            return serDe.parseConfig(
-                    Base64.getDecoder().decode(ledger.getSerializedMetadata()),
+            LedgerMetadata cached = parsedMetadataCache.get(ledger);
+            if (cached != null) {
+                return cached;
+            }
+            byte[] serialized = ledger.getMetadata() != null
+                    ? MetadataBlob.decode(ledger.getMetadata())
+                    : Base64.getDecoder().decode(ledger.getSerializedMetadata());
+            LedgerMetadata metadata = serDe.parseConfig(serialized,
                     ledger.getLedgerId(),
                     Optional.of(ledger.getCtime().getTime()));
+            if (invalidationSequence >= 0) {
+                parsedMetadataCache.put(ledger, metadata, invalidationSequence);
+            }
+            return metadata;
         } catch (IOException ex) {
             throw new BookkeeperManagerException(ex);
         }
     }
 
-    private LedgerMetadata readLedgerMetadata(long ledgerId, int clusterId) throws BookkeeperManagerException {
-        AtomicReference<LedgerMetadata> ledgerMetadata = new AtomicReference<>();
-        try {
-            LedgerManager lm = this.bkClusterPool.getLedgerManager(clusterId);
-            FutureUtils.result(lm.readLedgerMetadata(ledgerId).whenComplete((metadata, exception) -> {
-                if (exception == null) {
-                    ledgerMetadata.set(metadata.getValue());
-                }
-            }));
-            return ledgerMetadata.get();
-        } catch (BKNoSuchLedgerExistsOnMetadataServerException e) {
-            return null;
-        } catch (Throwable e) {
-            throw new BookkeeperManagerException(e);
-        }
-    }
-
     public List<Long> getAllLedgers() throws BookkeeperManagerException {
         return metadataCache
                 .listLedgers()
@@ -432,34 +1297,99 @@ public class BookkeeperManager implements AutoCloseable {
 
     }
 
-    public List<Map.Entry<Integer, Long>> searchLedgers(String term,
-                                                        String bookieId,
-                                                        Integer clusterId,
-                                                        List<Long> ledgerIds,
-                                                        Integer minLength,
-                                                        Integer maxLength,
-                                                        Integer minAge) throws BookkeeperManagerException {
-        return metadataCache
-                .searchLedgers(term, bookieId, clusterId, ledgerIds)
-                .stream()
-                .filter(l -> {
-                    if (minLength != null && l.getSize() < minLength) {
-                        return false;
-                    }
-                    if (maxLength != null && l.getSize() > maxLength) {
-                        return false;
-                    }
-                    if (minAge != null && l.getAge() < minAge) {
-                        return false;
-                    }
-                    return true;
-                })
-                .map(l -> new AbstractMap.SimpleImmutableEntry<>(l.getClusterId(), l.getLedgerId()))
-                .collect(Collectors.toList());
+    @Getter
+    public static final class LedgerSearchResult {
+
+        private final List<Ledger> ledgers;
+        private final long totalLedgers;
+        private final long totalSize;
+
+        public LedgerSearchResult(List<Ledger> ledgers, long totalLedgers, long totalSize) {
+            this.ledgers = ledgers;
+            this.totalLedgers = totalLedgers;
+            this.totalSize = totalSize;
+        }
+    }
+
+    /**
+     * Search ledgers, only the requested page is loaded from the cache
+     *
+     * @param criteria
+     * @param firstResult number of ledgers to skip
+     * @param maxResults maximum number of ledgers to return, a negative value means no limit
+     * @return the page of ledgers, sorted by clusterId and ledgerId, and the totals of the whole search
+     */
+    public LedgerSearchResult searchLedgers(LedgerSearchCriteria criteria, int firstResult, int maxResults) throws BookkeeperManagerException {
+        MetadataSnapshot snapshot = getSnapshot();
+        if (snapshot != null && MetadataSnapshot.supports(criteria)) {
+            LedgerSearchSummary summary = snapshot.summarize(criteria);
+            List<Ledger> page = getLedgers(snapshot.findLedgers(criteria, null, firstResult, maxResults));
+            return new LedgerSearchResult(page, summary.getTotalLedgers(), summary.getTotalSize());
+        }
+        LedgerSearchSummary summary = metadataCache.summarizeLedgers(criteria);
+        long invalidationSequence = parsedMetadataCache.getInvalidationSequence();
+        List<Ledger> page = cacheLedgers(metadataCache.searchLedgers(criteria, firstResult, maxResults), invalidationSequence);
+        return new LedgerSearchResult(page, summary.getTotalLedgers(), summary.getTotalSize());
+    }
+
+    public List<Ledger> scanLedgers(LedgerSearchCriteria criteria, LedgerKey after, int maxResults) throws BookkeeperManagerException {
+        MetadataSnapshot snapshot = getSnapshot();
+        if (snapshot != null && MetadataSnapshot.supports(criteria)) {
+            return getLedgers(snapshot.findLedgers(criteria, after, 0, maxResults));
+        }
+        long invalidationSequence = parsedMetadataCache.getInvalidationSequence();
+        return cacheLedgers(metadataCache.scanLedgers(criteria, after, maxResults), invalidationSequence);
+    }
 
+    /**
+     * Parse the rows just read, the callers always need the metadata and lookups by id will find them
+     */
+    private List<Ledger> cacheLedgers(List<Ledger> ledgers, long invalidationSequence) throws BookkeeperManagerException {
+        if (parsedMetadataCache.isEnabled()) {
+            for (Ledger ledger : ledgers) {
+                convertLedgerMetadata(ledger, invalidationSequence);
+            }
+        }
+        return ledgers;
+    }
+
+    /**
+     * Rows of the ledgers found in a snapshot, parsed ledgers are not read again.
+     * Ledgers deleted after the snapshot was built are skipped.
+     */
+    private List<Ledger> getLedgers(List<LedgerKey> keys) throws BookkeeperManagerException {
+        Map<LedgerKey, Ledger> cached = new HashMap<>();
+        List<LedgerKey> missing = new ArrayList<>();
+        for (LedgerKey key : keys) {
+            ParsedLedgerMetadataCache.Entry entry = parsedMetadataCache.get(key.getClusterId(), key.getLedgerId());
+            if (entry != null) {
+                cached.put(key, entry.getLedger());
+            } else {
+                missing.add(key);
+            }
+        }
+        long invalidationSequence = parsedMetadataCache.getInvalidationSequence();
+        if (cached.isEmpty()) {
+            return cacheLedgers(metadataCache.getLedgers(keys), invalidationSequence);
+        }
+        for (Ledger ledger : cacheLedgers(metadataCache.getLedgers(missing), invalidationSequence)) {
+            cached.put(new LedgerKey(ledger.getLedgerId(), ledger.getClusterId()), ledger);
+        }
+        List<Ledger> result = new ArrayList<>(keys.size());
+        for (LedgerKey key : keys) {
+            Ledger ledger = cached.get(key);
+            if (ledger != null) {
+                result.add(ledger);
+            }
+        }
+        return result;
     }
 
     public Collection<Bookie> getAllBookies() {
+        MetadataSnapshot snapshot = getSnapshot();
+        if (snapshot != null) {
+            return snapshot.getBookies();
+        }
         return metadataCache.listBookies();
     }
 
@@ -477,17 +1407,41 @@ public class BookkeeperManager implements AutoCloseable {
     }
 
     public Collection<Cluster> getAllClusters() throws BookkeeperManagerException {
+        MetadataSnapshot snapshot = getSnapshot();
+        if (snapshot != null) {
+            return snapshot.getClusters();
+        }
         return metadataCache.listClusters();
     }
 
     public void updateCluster(Cluster cluster) throws BookkeeperManagerException {
         metadataCache.updateCluster(cluster);
         bkClusterPool.ensureCluster(cluster.getClusterId(), cluster.getMetadataServiceUri(), cluster.getConfiguration());
+        // the change is visible as soon as the call returns
+        publishSnapshotLists();
     }
 
     public void deleteCluster(int clusterId) throws BookkeeperManagerException {
+        IncrementalLedgerWatcher watcher = ledgerWatchers.remove(clusterId);
+        if (watcher != null) {
+            watcher.close();
+        }
+        BookieStateWatcher bookieWatcher = bookieWatchers.remove(clusterId);
+        if (bookieWatcher != null) {
+            bookieWatcher.close();
+        }
         metadataCache.deleteCluster(clusterId);
+        publishSnapshotLists();
+        // the ledgers of the cluster are dropped by the next generation
+        refreshSnapshot();
+        parsedMetadataCache.invalidateCluster(clusterId);
         bkClusterPool.removeCluster(clusterId);
+        lastClusterWideConfiguration.remove(clusterId);
+        clusterRefreshStatus.remove(clusterId);
+        lastClosedLedgersVerification.remove(clusterId);
+        bookiesRefreshLocks.remove(clusterId);
+        ledgersRefreshLocks.remove(clusterId);
+        unresponsiveBookies.remove(clusterId);
     }
 
     @SuppressFBWarnings("RCN_REDUNDANT_NULLCHECK_WOULD_HAVE_BEEN_A_NPE")
@@ -0,0 +1,234 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.bookkeeper;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.bookkeeper.client.api.LedgerMetadata;
+import org.apache.bookkeeper.meta.LedgerManager;
+import org.apache.bookkeeper.proto.BookkeeperInternalCallbacks.LedgerMetadataListener;
+import org.apache.bookkeeper.versioning.Versioned;
+import org.bkvm.cache.Ledger;
+import org.roaringbitmap.longlong.LongIterator;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+
+/**
+ * Keeps the cache of a cluster up to date by listening for changes on the metadata of the ledgers that are not closed.
+ * The metadata service does not notify about new ledgers, they have to be passed to {@link #watch(long, long)},
+ * usually after listing the ledgers.
+ * <p>
+ * The metadata of a closed ledger does not change anymore, so closed ledgers are only remembered, without
+ * a listener, and a ledger stops being watched as soon as it is closed. The deletion of a closed ledger is found
+ * by the full refresh.
+ */
+public class IncrementalLedgerWatcher implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(IncrementalLedgerWatcher.class.getName());
+
+    public interface LedgerChangeHandler {
+
+        void ledgerChanged(int clusterId, long ledgerId, Versioned<LedgerMetadata> metadata) throws Exception;
+
+        void ledgerDeleted(int clusterId, long ledgerId) throws Exception;
+    }
+
+    private final int clusterId;
+    private final LedgerManager ledgerManager;
+    private final Executor executor;
+    private final LedgerChangeHandler handler;
+    /**
+     * Ledgers with a listener, guarded by itself
+     */
+    private final Roaring64NavigableMap watchedLedgers = new Roaring64NavigableMap();
+    /**
+     * Closed ledgers, which are not watched again, guarded by watchedLedgers
+     */
+    private final Roaring64NavigableMap closedLedgers = new Roaring64NavigableMap();
+    /**
+     * Version already in the cache of the ledgers just registered, their first notification is the current
+     * metadata and it is skipped if the version did not change. Entries are removed by the first notification,
+     * so there are only a few of them, kept sorted by ledger id in primitive arrays. Guarded by watchedLedgers.
+     */
+    private long[] knownVersionLedgerIds = new long[16];
+    private long[] knownVersions = new long[16];
+    private int knownVersionsCount;
+    private final LedgerMetadataListener listener = this::onChanged;
+    private volatile boolean closed;
+
+    public IncrementalLedgerWatcher(int clusterId, LedgerManager ledgerManager, Executor executor, LedgerChangeHandler handler) {
+        this.clusterId = clusterId;
+        this.ledgerManager = ledgerManager;
+        this.executor = executor;
+        this.handler = handler;
+    }
+
+    public int getClusterId() {
+        return clusterId;
+    }
+
+    public long getWatchedLedgersCount() {
+        synchronized (watchedLedgers) {
+            return watchedLedgers.getLongCardinality();
+        }
+    }
+
+    public boolean isWatched(long ledgerId) {
+        synchronized (watchedLedgers) {
+            return watchedLedgers.contains(ledgerId);
+        }
+    }
+
+    /**
+     * Start watching a ledger that is not closed, the current metadata is notified as a change unless its version
+     * is knownVersion.
+     *
+     * @param ledgerId
+     * @param knownVersion version of the metadata in the cache, {@link Ledger#UNKNOWN_VERSION} in order to always
+     * notify the current metadata
+     * @return true if the ledger was neither watched nor known to be closed
+     */
+    public boolean watch(long ledgerId, long knownVersion) {
+        if (closed) {
+            return false;
+        }
+        synchronized (watchedLedgers) {
+            if (watchedLedgers.contains(ledgerId) || closedLedgers.contains(ledgerId)) {
+                return false;
+            }
+            watchedLedgers.addLong(ledgerId);
+            if (knownVersion != Ledger.UNKNOWN_VERSION) {
+                putKnownVersion(ledgerId, knownVersion);
+            }
+        }
+        ledgerManager.registerLedgerMetadataListener(ledgerId, listener);
+        return true;
+    }
+
+    /**
+     * Remember a closed ledger, its metadata does not change anymore. A watched ledger stops being watched.
+     *
+     * @param ledgerId
+     */
+    public void ledgerClosed(long ledgerId) {
+        boolean wasWatched;
+        synchronized (watchedLedgers) {
+            closedLedgers.addLong(ledgerId);
+            wasWatched = watchedLedgers.contains(ledgerId);
+            if (wasWatched) {
+                watchedLedgers.removeLong(ledgerId);
+                removeKnownVersion(ledgerId);
+            }
+        }
+        if (wasWatched) {
+            ledgerManager.unregisterLedgerMetadataListener(ledgerId, listener);
+        }
+    }
+
+    public boolean isClosed(long ledgerId) {
+        synchronized (watchedLedgers) {
+            return closedLedgers.contains(ledgerId);
+        }
+    }
+
+    private void onChanged(long ledgerId, Versioned<LedgerMetadata> metadata) {
+        if (closed) {
+            return;
+        }
+        long knownVersion;
+        synchronized (watchedLedgers) {
+            knownVersion = removeKnownVersion(ledgerId);
+            if (metadata == null) {
+                // the ledger manager drops the listeners of deleted ledgers
+                watchedLedgers.removeLong(ledgerId);
+            }
+        }
+        if (metadata != null && metadata.getValue().isClosed()) {
+            ledgerClosed(ledgerId);
+        }
+        if (metadata != null && knownVersion != Ledger.UNKNOWN_VERSION
+                && knownVersion == BookkeeperManager.getMetadataVersion(metadata)) {
+            // registration notifies the metadata that has just been read
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                if (metadata == null) {
+                    LOG.log(Level.FINE, "Ledger {0} of cluster {1} has been deleted", new Object[]{ledgerId, clusterId});
+                    handler.ledgerDeleted(clusterId, ledgerId);
+                } else {
+                    LOG.log(Level.FINE, "Ledger {0} of cluster {1} has changed", new Object[]{ledgerId, clusterId});
+                    handler.ledgerChanged(clusterId, ledgerId, metadata);
+                }
+            } catch (Throwable err) {
+                LOG.log(Level.SEVERE, "Cannot apply change of ledger " + ledgerId + " of cluster " + clusterId, err);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (watchedLedgers) {
+            for (LongIterator it = watchedLedgers.getLongIterator(); it.hasNext();) {
+                ledgerManager.unregisterLedgerMetadataListener(it.next(), listener);
+            }
+            watchedLedgers.clear();
+            closedLedgers.clear();
+            knownVersionsCount = 0;
+        }
+    }
+
+    private void putKnownVersion(long ledgerId, long version) {
+        int index = Arrays.binarySearch(knownVersionLedgerIds, 0, knownVersionsCount, ledgerId);
+        if (index >= 0) {
+            knownVersions[index] = version;
+            return;
+        }
+        index = -index - 1;
+        if (knownVersionsCount == knownVersionLedgerIds.length) {
+            int newCapacity = knownVersionLedgerIds.length * 2;
+            knownVersionLedgerIds = Arrays.copyOf(knownVersionLedgerIds, newCapacity);
+            knownVersions = Arrays.copyOf(knownVersions, newCapacity);
+        }
+        System.arraycopy(knownVersionLedgerIds, index, knownVersionLedgerIds, index + 1, knownVersionsCount - index);
+        System.arraycopy(knownVersions, index, knownVersions, index + 1, knownVersionsCount - index);
+        knownVersionLedgerIds[index] = ledgerId;
+        knownVersions[index] = version;
+        knownVersionsCount++;
+    }
+
+    /**
+     * @return the known version of the ledger, or {@link Ledger#UNKNOWN_VERSION}
+     */
+    private long removeKnownVersion(long ledgerId) {
+        int index = Arrays.binarySearch(knownVersionLedgerIds, 0, knownVersionsCount, ledgerId);
+        if (index < 0) {
+            return Ledger.UNKNOWN_VERSION;
+        }
+        long version = knownVersions[index];
+        System.arraycopy(knownVersionLedgerIds, index + 1, knownVersionLedgerIds, index, knownVersionsCount - index - 1);
+        System.arraycopy(knownVersions, index + 1, knownVersions, index, knownVersionsCount - index - 1);
+        knownVersionsCount--;
+        return version;
+    }
+
+}
@@ -0,0 +1,175 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.bookkeeper;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.apache.bookkeeper.client.api.LedgerMetadata;
+import org.bkvm.cache.Ledger;
+import org.bkvm.cache.LedgerKey;
+
+/**
+ * Size bounded LRU cache of parsed ledger metadata, together with the cached row it was parsed from.
+ * <p>
+ * An entry is valid for the scan generation of the row (scanTime and metadataVersion), so a row written
+ * by another path is never served stale. BookkeeperManager also invalidates the ledgers it writes,
+ * which allows lookups by id without reading the row.
+ * <p>
+ * A row read before an invalidation must not be put after it, otherwise the lookups by id would serve
+ * it until the next change of the ledger. Readers take {@link #getInvalidationSequence()} before reading
+ * the rows and {@link #put(Ledger, LedgerMetadata, long)} drops the rows invalidated meanwhile.
+ * The last invalidation is kept per stripe of ledgers, so a collision only skips a put.
+ */
+public class ParsedLedgerMetadataCache {
+
+    @Getter
+    @AllArgsConstructor
+    public static final class Entry {
+
+        private final Ledger ledger;
+        private final LedgerMetadata metadata;
+    }
+
+    private static final int INVALIDATION_STRIPES = 1024;
+
+    private final int maxSize;
+    private final Map<LedgerKey, Entry> entries;
+    private final long[] lastInvalidations = new long[INVALIDATION_STRIPES];
+    private long invalidationSequence;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxSize maximum number of ledgers, 0 disables the cache
+     */
+    public ParsedLedgerMetadataCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<LedgerKey, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<LedgerKey, ParsedLedgerMetadataCache.Entry> eldest) {
+                if (size() > ParsedLedgerMetadataCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Parsed metadata of a row, only if it was parsed from the same scan generation
+     */
+    public LedgerMetadata get(Ledger ledger) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(new LedgerKey(ledger.getLedgerId(), ledger.getClusterId()));
+        }
+        if (entry != null && isSameGeneration(entry.getLedger(), ledger)) {
+            hits.incrementAndGet();
+            return entry.getMetadata();
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Lookup by id, it does not change the counters
+     */
+    public synchronized Entry get(int clusterId, long ledgerId) {
+        return entries.get(new LedgerKey(ledgerId, clusterId));
+    }
+
+    /**
+     * To be taken before reading from the database the rows that will be put
+     */
+    public synchronized long getInvalidationSequence() {
+        return invalidationSequence;
+    }
+
+    /**
+     * @param invalidationSequence the value of {@link #getInvalidationSequence()} before the row was read
+     * @return false if the ledger was invalidated after the row was read, then nothing is cached
+     */
+    public synchronized boolean put(Ledger ledger, LedgerMetadata metadata, long invalidationSequence) {
+        if (maxSize <= 0
+                || lastInvalidations[stripe(ledger.getClusterId(), ledger.getLedgerId())] > invalidationSequence) {
+            return false;
+        }
+        entries.put(new LedgerKey(ledger.getLedgerId(), ledger.getClusterId()), new Entry(ledger, metadata));
+        return true;
+    }
+
+    public synchronized void invalidate(int clusterId, long ledgerId) {
+        long sequence = ++invalidationSequence;
+        entries.remove(new LedgerKey(ledgerId, clusterId));
+        lastInvalidations[stripe(clusterId, ledgerId)] = sequence;
+    }
+
+    public synchronized void invalidate(int clusterId, Collection<Long> ledgerIds) {
+        long sequence = ++invalidationSequence;
+        for (Long ledgerId : ledgerIds) {
+            entries.remove(new LedgerKey(ledgerId, clusterId));
+            lastInvalidations[stripe(clusterId, ledgerId)] = sequence;
+        }
+    }
+
+    public synchronized void invalidateCluster(int clusterId) {
+        long sequence = ++invalidationSequence;
+        entries.keySet().removeIf(key -> key.getClusterId() == clusterId);
+        Arrays.fill(lastInvalidations, sequence);
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    private static int stripe(int clusterId, long ledgerId) {
+        return (int) ((ledgerId * 31 + clusterId) & (INVALIDATION_STRIPES - 1));
+    }
+
+    private static boolean isSameGeneration(Ledger cached, Ledger ledger) {
+        return cached.getMetadataVersion() == ledger.getMetadataVersion()
+                && cached.getScanTime() != null
+                && cached.getScanTime().equals(ledger.getScanTime());
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.bookkeeper;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.apache.bookkeeper.client.BKException.BKNoSuchLedgerExistsOnMetadataServerException;
+import org.apache.bookkeeper.client.api.LedgerMetadata;
+import org.apache.bookkeeper.meta.LedgerManager;
+import org.apache.bookkeeper.versioning.Versioned;
+
+/**
+ * Reads ledger metadata keeping a bounded number of requests in flight.
+ * Results are handed to the consumer on the calling thread as soon as they are available,
+ * ledgers deleted in the meantime are silently skipped.
+ */
+public class PipelinedLedgerMetadataReader {
+
+    @FunctionalInterface
+    public interface LedgerMetadataConsumer {
+
+        void accept(long ledgerId, Versioned<LedgerMetadata> metadata) throws Exception;
+    }
+
+    private static final class ReadResult {
+
+        private final long ledgerId;
+        private final Versioned<LedgerMetadata> metadata;
+        private final Throwable error;
+
+        ReadResult(long ledgerId, Versioned<LedgerMetadata> metadata, Throwable error) {
+            this.ledgerId = ledgerId;
+            this.metadata = metadata;
+            this.error = error;
+        }
+    }
+
+    private final LedgerManager ledgerManager;
+    private final int maxInflightReads;
+
+    public PipelinedLedgerMetadataReader(LedgerManager ledgerManager, int maxInflightReads) {
+        this.ledgerManager = ledgerManager;
+        this.maxInflightReads = Math.max(1, maxInflightReads);
+    }
+
+    /**
+     * Read the metadata of every ledger.
+     *
+     * @param ledgerIds
+     * @param consumer
+     * @return the number of ledgers passed to the consumer
+     * @throws BookkeeperManagerException
+     */
+    public long readAll(Iterable<Long> ledgerIds, LedgerMetadataConsumer consumer) throws BookkeeperManagerException {
+        BlockingQueue<ReadResult> completed = new LinkedBlockingQueue<>();
+        int inflight = 0;
+        long count = 0;
+        try {
+            for (long ledgerId : ledgerIds) {
+                while (inflight >= maxInflightReads) {
+                    count += consume(completed.take(), consumer);
+                    inflight--;
+                }
+                ledgerManager.readLedgerMetadata(ledgerId).whenComplete((metadata, error) -> {
+                    completed.add(new ReadResult(ledgerId, metadata, error));
+                });
+                inflight++;
+                ReadResult result;
+                while ((result = completed.poll()) != null) {
+                    count += consume(result, consumer);
+                    inflight--;
+                }
+            }
+            while (inflight > 0) {
+                count += consume(completed.take(), consumer);
+                inflight--;
+            }
+            return count;
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+            throw new BookkeeperManagerException(err);
+        }
+    }
+
+    private static int consume(ReadResult result, LedgerMetadataConsumer consumer) throws BookkeeperManagerException {
+        Throwable error = result.error;
+        while ((error instanceof CompletionException || error instanceof ExecutionException) && error.getCause() != null) {
+            error = error.getCause();
+        }
+        if (error instanceof BKNoSuchLedgerExistsOnMetadataServerException) {
+            // ledger deleted after listing
+            return 0;
+        }
+        if (error != null) {
+            throw new BookkeeperManagerException(error);
+        }
+        try {
+            consumer.accept(result.ledgerId, result.metadata);
+            return 1;
+        } catch (BookkeeperManagerException err) {
+            throw err;
+        } catch (Exception err) {
+            throw new BookkeeperManagerException(err);
+        }
+    }
+
+}
@@ -65,6 +65,12 @@ public class Bookie implements Serializable {
     @Column(columnDefinition = "timestamp")
     private java.sql.Timestamp scanTime;
 
+    /**
+     * Last time the state has been seen changing
+     */
+    @Column(columnDefinition = "timestamp")
+    private java.sql.Timestamp stateChangeTime;
+
     @Column(columnDefinition = "long")
     private long freeDiskspace;
 
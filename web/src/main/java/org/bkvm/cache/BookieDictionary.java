@@ -0,0 +1,71 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In memory copy of bookie_dictionary, in both directions
+ */
+public class BookieDictionary {
+
+    private static final class ClusterDictionary {
+
+        private final Map<String, Integer> refs = new HashMap<>();
+        private final Map<Integer, String> bookieIds = new HashMap<>();
+        private int maxRef = -1;
+    }
+
+    private final Map<Integer, ClusterDictionary> clusters = new HashMap<>();
+
+    public synchronized void add(BookieDictionaryEntry entry) {
+        ClusterDictionary cluster = clusters.computeIfAbsent(entry.getClusterId(), id -> new ClusterDictionary());
+        cluster.refs.put(entry.getBookieId(), entry.getBookieRef());
+        cluster.bookieIds.put(entry.getBookieRef(), entry.getBookieId());
+        cluster.maxRef = Math.max(cluster.maxRef, entry.getBookieRef());
+    }
+
+    /**
+     * @return the surrogate id, or null if the bookie is not in the dictionary
+     */
+    public synchronized Integer getRef(int clusterId, String bookieId) {
+        ClusterDictionary cluster = clusters.get(clusterId);
+        return cluster == null ? null : cluster.refs.get(bookieId);
+    }
+
+    public synchronized String getBookieId(int clusterId, int bookieRef) {
+        ClusterDictionary cluster = clusters.get(clusterId);
+        return cluster == null ? null : cluster.bookieIds.get(bookieRef);
+    }
+
+    /**
+     * The surrogate id to assign to a new bookie, it is not reserved until the entry is added
+     */
+    public synchronized int nextRef(int clusterId) {
+        ClusterDictionary cluster = clusters.get(clusterId);
+        return cluster == null ? 0 : cluster.maxRef + 1;
+    }
+
+    public synchronized void deleteCluster(int clusterId) {
+        clusters.remove(clusterId);
+    }
+
+}
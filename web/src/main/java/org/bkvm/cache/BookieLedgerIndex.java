@@ -0,0 +1,140 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.cache;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+
+/**
+ * In memory index of the ledgers stored on each bookie, as a bitmap of ledger ids for each (clusterId, bookieId).
+ * It is exact, so placement queries and ledger counts do not need to scan ledger_bookie.
+ */
+public class BookieLedgerIndex {
+
+    private final Map<Integer, Map<String, Roaring64NavigableMap>> clusters = new HashMap<>();
+
+    /**
+     * Replace the bookies of a batch of ledgers of a cluster
+     *
+     * @param clusterId
+     * @param ledgerIds every ledger of the batch, also the ones without bookies
+     * @param bookies the new placement
+     */
+    public synchronized void updateLedgers(int clusterId, Roaring64NavigableMap ledgerIds, Collection<LedgerBookie> bookies) {
+        Map<String, Roaring64NavigableMap> cluster = clusters.computeIfAbsent(clusterId, id -> new HashMap<>());
+        removeLedgers(cluster, ledgerIds);
+        addBookies(clusterId, bookies);
+    }
+
+    public synchronized void addBookies(int clusterId, Collection<LedgerBookie> bookies) {
+        Map<String, Roaring64NavigableMap> cluster = clusters.computeIfAbsent(clusterId, id -> new HashMap<>());
+        for (LedgerBookie bookie : bookies) {
+            cluster.computeIfAbsent(bookie.getBookieId(), id -> new Roaring64NavigableMap()).addLong(bookie.getLedgerId());
+        }
+    }
+
+    public synchronized void deleteLedgers(int clusterId, Roaring64NavigableMap ledgerIds) {
+        Map<String, Roaring64NavigableMap> cluster = clusters.get(clusterId);
+        if (cluster != null) {
+            removeLedgers(cluster, ledgerIds);
+        }
+    }
+
+    public synchronized void deleteCluster(int clusterId) {
+        clusters.remove(clusterId);
+    }
+
+    /**
+     * @return a copy of the ledgers on the bookie
+     */
+    public synchronized Roaring64NavigableMap getLedgers(int clusterId, String bookieId) {
+        Roaring64NavigableMap ledgers = getBookie(clusterId, bookieId);
+        return ledgers == null ? new Roaring64NavigableMap() : copyOf(ledgers);
+    }
+
+    /**
+     * Ledgers placed on all the given bookies (intersection) or on any of them (union)
+     */
+    public synchronized Roaring64NavigableMap getLedgers(int clusterId, Collection<String> bookieIds, boolean onAllBookies) {
+        Roaring64NavigableMap result = null;
+        for (String bookieId : bookieIds) {
+            Roaring64NavigableMap ledgers = getBookie(clusterId, bookieId);
+            if (ledgers == null) {
+                if (onAllBookies) {
+                    return new Roaring64NavigableMap();
+                }
+                continue;
+            }
+            if (result == null) {
+                result = copyOf(ledgers);
+            } else if (onAllBookies) {
+                result.and(ledgers);
+            } else {
+                result.or(ledgers);
+            }
+        }
+        return result == null ? new Roaring64NavigableMap() : result;
+    }
+
+    /**
+     * @return a copy of the ledgers of each bookie of the cluster
+     */
+    public synchronized Map<String, Roaring64NavigableMap> copyCluster(int clusterId) {
+        Map<String, Roaring64NavigableMap> result = new HashMap<>();
+        Map<String, Roaring64NavigableMap> cluster = clusters.get(clusterId);
+        if (cluster != null) {
+            cluster.forEach((bookieId, ledgers) -> result.put(bookieId, copyOf(ledgers)));
+        }
+        return result;
+    }
+
+    public synchronized Map<String, Long> countLedgers(int clusterId) {
+        Map<String, Long> result = new HashMap<>();
+        Map<String, Roaring64NavigableMap> cluster = clusters.get(clusterId);
+        if (cluster != null) {
+            cluster.forEach((bookieId, ledgers) -> {
+                if (!ledgers.isEmpty()) {
+                    result.put(bookieId, ledgers.getLongCardinality());
+                }
+            });
+        }
+        return result;
+    }
+
+    private Roaring64NavigableMap getBookie(int clusterId, String bookieId) {
+        Map<String, Roaring64NavigableMap> cluster = clusters.get(clusterId);
+        return cluster == null ? null : cluster.get(bookieId);
+    }
+
+    private static void removeLedgers(Map<String, Roaring64NavigableMap> cluster, Roaring64NavigableMap ledgerIds) {
+        for (Roaring64NavigableMap ledgers : cluster.values()) {
+            ledgers.andNot(ledgerIds);
+        }
+    }
+
+    static Roaring64NavigableMap copyOf(Roaring64NavigableMap bitmap) {
+        Roaring64NavigableMap result = new Roaring64NavigableMap();
+        result.or(bitmap);
+        return result;
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.cache;
+
+import java.lang.reflect.Field;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.sql.DataSource;
+
+/**
+ * Brings the tables written by a previous version to the layout of the entities and creates the missing cache
+ * tables, before the persistence unit creates the other ones. Schema generation never alters an existing table.
+ * <p>
+ * The cache tables only hold data read from the clusters: if their columns differ from the entities they are
+ * all dropped, created again and filled by the next refresh. The cluster table holds the configuration, the
+ * columns it lacks are added.
+ * <p>
+ * The cache tables have their columns in the order of the fields of the entity. The persistence unit orders them
+ * by a hash of the field names, so a new field may move ledgerId away from the first position, and HerdDB sorts
+ * the rows of a projection by the column found at the position that the ORDER BY column has in the table.
+ */
+final class CacheSchema {
+
+    private static final Logger LOG = Logger.getLogger(CacheSchema.class.getName());
+
+    private static final List<Class<?>> CACHE_ENTITIES = Arrays.asList(Ledger.class, LedgerMetadataEntry.class,
+            LedgerBookie.class, BookieDictionaryEntry.class, MetadataKey.class, Ensemble.class, Bookie.class);
+
+    private CacheSchema() {
+    }
+
+    /**
+     * @param datasource
+     * @return true if the cache tables have been dropped
+     */
+    static boolean upgrade(DataSource datasource) {
+        try (Connection connection = datasource.getConnection();
+             Statement statement = connection.createStatement()) {
+            Map<String, Set<String>> tables = readColumns(connection.getMetaData());
+            boolean outdated = false;
+            for (Class<?> entity : CACHE_ENTITIES) {
+                Set<String> existing = tables.get(getTableName(entity));
+                // a column which is not mapped anymore may be part of the primary key, like bookieId of ledger_bookie
+                if (existing != null && !existing.equals(getColumns(entity).keySet())) {
+                    LOG.log(Level.WARNING, "Table {0} has columns {1}, expected {2}",
+                            new Object[]{getTableName(entity), existing, getColumns(entity).keySet()});
+                    outdated = true;
+                }
+            }
+            if (outdated) {
+                for (Class<?> entity : CACHE_ENTITIES) {
+                    if (tables.containsKey(getTableName(entity))) {
+                        statement.executeUpdate("DROP TABLE " + getTableName(entity));
+                    }
+                }
+                LOG.log(Level.WARNING, "The metadata cache was written by a previous version, its tables have been dropped"
+                        + " and will be filled by the next refresh");
+            }
+            for (Class<?> entity : CACHE_ENTITIES) {
+                if (outdated || !tables.containsKey(getTableName(entity))) {
+                    createTable(statement, entity);
+                }
+            }
+            Set<String> clusterColumns = tables.get(getTableName(Cluster.class));
+            if (clusterColumns != null) {
+                for (Map.Entry<String, Column> column : getColumns(Cluster.class).entrySet()) {
+                    if (!clusterColumns.contains(column.getKey())) {
+                        LOG.log(Level.INFO, "Adding column {0} to table {1}", new Object[]{column.getKey(), getTableName(Cluster.class)});
+                        statement.executeUpdate("ALTER TABLE " + getTableName(Cluster.class)
+                                + " ADD COLUMN " + column.getKey() + " " + column.getValue().columnDefinition());
+                    }
+                }
+            }
+            return outdated;
+        } catch (SQLException err) {
+            throw new RuntimeException(err);
+        }
+    }
+
+    private static void createTable(Statement statement, Class<?> entity) throws SQLException {
+        StringBuilder ddl = new StringBuilder("CREATE TABLE " + getTableName(entity) + " (");
+        List<String> primaryKey = new ArrayList<>();
+        for (Field field : entity.getDeclaredFields()) {
+            Column column = field.getAnnotation(Column.class);
+            if (column != null) {
+                ddl.append(field.getName()).append(' ').append(column.columnDefinition()).append(", ");
+                if (field.isAnnotationPresent(Id.class)) {
+                    primaryKey.add(field.getName());
+                }
+            }
+        }
+        ddl.append("PRIMARY KEY (").append(String.join(", ", primaryKey)).append("))");
+        statement.executeUpdate(ddl.toString());
+        Table table = entity.getAnnotation(Table.class);
+        if (table != null) {
+            for (Index index : table.indexes()) {
+                statement.executeUpdate("CREATE INDEX " + index.name() + " ON " + getTableName(entity)
+                        + " (" + index.columnList() + ")");
+            }
+        }
+    }
+
+    /**
+     * Columns of the tables, names in lower case
+     */
+    private static Map<String, Set<String>> readColumns(DatabaseMetaData metaData) throws SQLException {
+        Map<String, Set<String>> result = new HashMap<>();
+        try (ResultSet rs = metaData.getColumns(null, null, "%", "%")) {
+            while (rs.next()) {
+                result.computeIfAbsent(rs.getString("TABLE_NAME").toLowerCase(Locale.ROOT), name -> new HashSet<>())
+                        .add(rs.getString("COLUMN_NAME").toLowerCase(Locale.ROOT));
+            }
+        }
+        return result;
+    }
+
+    private static String getTableName(Class<?> entity) {
+        return entity.getAnnotation(Entity.class).name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Columns mapped by an entity, names in lower case
+     */
+    private static Map<String, Column> getColumns(Class<?> entity) {
+        Map<String, Column> result = new LinkedHashMap<>();
+        for (Field field : entity.getDeclaredFields()) {
+            Column column = field.getAnnotation(Column.class);
+            if (column != null) {
+                result.put(field.getName().toLowerCase(Locale.ROOT), column);
+            }
+        }
+        return result;
+    }
+
+}
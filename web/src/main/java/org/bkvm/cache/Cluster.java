@@ -46,6 +46,12 @@ public class Cluster implements Serializable {
     @Column(columnDefinition = "string", length = 5000)
     private String configuration;
 
+    /**
+     * Pattern used to compute the descriptions of the ledgers of the cluster, they are computed again when it changes
+     */
+    @Column(columnDefinition = "string", length = 255)
+    private String descriptionPattern;
+
     public Cluster() {
     }
 
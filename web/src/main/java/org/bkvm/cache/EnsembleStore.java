@@ -0,0 +1,100 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.cache;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In memory copy of the ensemble table: each distinct ensemble of a cluster is kept once,
+ * ledgers reference it by id from {@link Ledger#getEnsembles()}.
+ */
+public class EnsembleStore {
+
+    private static final class ClusterEnsembles {
+
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final Map<Integer, String> bookieRefs = new HashMap<>();
+        private int maxId = -1;
+    }
+
+    private final Map<Integer, ClusterEnsembles> clusters = new HashMap<>();
+
+    public synchronized void add(Ensemble ensemble) {
+        ClusterEnsembles cluster = clusters.computeIfAbsent(ensemble.getClusterId(), id -> new ClusterEnsembles());
+        String bookieRefs = ensemble.getBookieRefs();
+        cluster.ids.put(bookieRefs, ensemble.getEnsembleId());
+        cluster.bookieRefs.put(ensemble.getEnsembleId(), bookieRefs);
+        cluster.maxId = Math.max(cluster.maxId, ensemble.getEnsembleId());
+    }
+
+    /**
+     * @return the id of the ensemble, or null if it is not stored yet
+     */
+    public synchronized Integer getId(int clusterId, String bookieRefs) {
+        ClusterEnsembles cluster = clusters.get(clusterId);
+        return cluster == null ? null : cluster.ids.get(bookieRefs);
+    }
+
+    public synchronized String getBookieRefs(int clusterId, int ensembleId) {
+        ClusterEnsembles cluster = clusters.get(clusterId);
+        return cluster == null ? null : cluster.bookieRefs.get(ensembleId);
+    }
+
+    /**
+     * The id to assign to a new ensemble, it is not reserved until the ensemble is added
+     */
+    public synchronized int nextId(int clusterId) {
+        ClusterEnsembles cluster = clusters.get(clusterId);
+        return cluster == null ? 0 : cluster.maxId + 1;
+    }
+
+    public synchronized void deleteCluster(int clusterId) {
+        clusters.remove(clusterId);
+    }
+
+    /**
+     * Format of {@link Ledger#getEnsembles()}: firstEntry:ensembleId pairs separated by commas
+     */
+    static String encodeSegments(Map<Long, Integer> segments) {
+        StringBuilder result = new StringBuilder();
+        segments.forEach((firstEntry, ensembleId) -> {
+            if (result.length() > 0) {
+                result.append(',');
+            }
+            result.append(firstEntry).append(':').append(ensembleId);
+        });
+        return result.toString();
+    }
+
+    static Map<Long, Integer> decodeSegments(String segments) {
+        Map<Long, Integer> result = new LinkedHashMap<>();
+        if (segments == null || segments.isEmpty()) {
+            return result;
+        }
+        for (String segment : segments.split(",")) {
+            int sep = segment.indexOf(':');
+            result.put(Long.parseLong(segment.substring(0, sep)), Integer.parseInt(segment.substring(sep + 1)));
+        }
+        return result;
+    }
+
+}
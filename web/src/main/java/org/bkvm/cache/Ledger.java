@@ -27,6 +27,8 @@ import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Id;
 import javax.persistence.IdClass;
+import javax.persistence.Index;
+import javax.persistence.Table;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 
@@ -38,9 +40,24 @@ import lombok.EqualsAndHashCode;
 @Data
 @EqualsAndHashCode
 @Entity(name = "ledger")
+@Table(indexes = {
+    @Index(name = "ledger_size", columnList = "size"),
+    @Index(name = "ledger_ctime", columnList = "ctime"),
+    @Index(name = "ledger_cluster", columnList = "clusterId,ledgerId")
+})
 @IdClass(LedgerKey.class)
 public class Ledger implements Serializable {
 
+    /**
+     * Version of metadata read from a metadata service that does not expose numeric versions
+     */
+    public static final long UNKNOWN_VERSION = -1;
+
+    /**
+     * State of a ledger whose metadata is not going to change anymore, unless re-replicated
+     */
+    public static final String STATE_CLOSED = "CLOSED";
+
     @Column(columnDefinition = "long")
     @Id
     private long ledgerId;
@@ -58,19 +75,72 @@ public class Ledger implements Serializable {
     @Column(columnDefinition = "timestamp")
     private java.sql.Timestamp scanTime;
 
+    /**
+     * Base64 serialized metadata, only for rows written before {@link #metadata}
+     */
     @Column(columnDefinition = "string")
     private String serializedMetadata;
 
+    /**
+     * Serialized metadata, see {@link MetadataBlob}
+     */
+    @Column(columnDefinition = "blob")
+    private byte[] metadata;
+
+    /**
+     * Version of the metadata on the metadata service, unchanged versions are not written again
+     */
+    @Column(columnDefinition = "long")
+    private long metadataVersion = UNKNOWN_VERSION;
+
+    /**
+     * OPEN, IN_RECOVERY or CLOSED
+     */
+    @Column(columnDefinition = "string")
+    private String state;
+
+    /**
+     * Description computed from the custom metadata when the row is written, see {@link Cluster#getDescriptionPattern()}
+     */
+    @Column(columnDefinition = "string")
+    private String description;
+
+    /**
+     * Names of the custom metadata, as surrogates, see {@link MetadataKeyDictionary}.
+     * Null for ledgers written without custom metadata columns.
+     */
+    @Column(columnDefinition = "string")
+    private String customMetadataKeys;
+
+    /**
+     * Values of the custom metadata, in the order of {@link #customMetadataKeys}, each one between the tags of its name
+     */
+    @Column(columnDefinition = "string")
+    private String customMetadataValues;
+
+    /**
+     * Segments as firstEntry:ensembleId pairs, see {@link EnsembleStore}.
+     * Null for ledgers written without ensembles.
+     */
+    @Column(columnDefinition = "string")
+    private String ensembles;
+
     public Ledger() {
     }
 
     public Ledger(long ledgerId, int clusterId, long size, Timestamp ctime, Timestamp scanTime, String serializedMetadata) {
+        this(ledgerId, clusterId, size, ctime, scanTime, serializedMetadata, UNKNOWN_VERSION);
+    }
+
+    public Ledger(long ledgerId, int clusterId, long size, Timestamp ctime, Timestamp scanTime, String serializedMetadata,
+                  long metadataVersion) {
         this.ledgerId = ledgerId;
         this.clusterId = clusterId;
         this.size = size;
         this.ctime = ctime;
         this.scanTime = scanTime;
         this.serializedMetadata = serializedMetadata;
+        this.metadataVersion = metadataVersion;
     }
 
     public long getAge() {
@@ -23,6 +23,7 @@ import java.io.Serializable;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Id;
+import javax.persistence.Transient;
 import lombok.Data;
 
 /**
@@ -42,8 +43,17 @@ public class LedgerBookie implements Serializable {
     @Id
     private int clusterId;
 
-    @Column(columnDefinition = "string")
+    /**
+     * Surrogate of the bookie id, see {@link BookieDictionaryEntry}
+     */
+    @Column(columnDefinition = "int")
     @Id
+    private int bookieRef;
+
+    /**
+     * Resolved by {@link MetadataCache} with the bookie dictionary, not stored
+     */
+    @Transient
     private String bookieId;
 
     public LedgerBookie() {
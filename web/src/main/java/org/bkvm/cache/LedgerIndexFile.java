@@ -0,0 +1,377 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.cache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+
+/**
+ * Fixed width records of the ledgers of a cluster, sorted by ledger id, as read by
+ * {@link MetadataSnapshot.ClusterLedgers}.
+ * <p>
+ * Records are written once, to a file that is then memory mapped or to a heap buffer when no directory is configured.
+ * A file starts with a header (magic, version, clusterId, number of records) and each record holds ledgerId, size and
+ * ctime in milliseconds, {@link #NO_CTIME} when the ledger has no ctime. Files are named after the cluster and
+ * a sequence number, each generation writes new files.
+ */
+final class LedgerIndexFile {
+
+    private static final Logger LOG = Logger.getLogger(LedgerIndexFile.class.getName());
+
+    private static final int MAGIC = 0x424b4c49;
+    private static final int VERSION = 2;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int CLUSTER_ID_OFFSET = 8;
+    private static final int COUNT_OFFSET = 16;
+    static final int HEADER_SIZE = 24;
+
+    static final int LEDGER_ID_OFFSET = 0;
+    static final int SIZE_OFFSET = 8;
+    static final int CTIME_OFFSET = 16;
+    static final int RECORD_SIZE = 24;
+
+    /**
+     * ctime of a ledger without ctime, it is never older than a minimum age, like in SQL where a null ctime
+     * does not match {@code l.ctime <= :maxCtime}
+     */
+    static final long NO_CTIME = Long.MAX_VALUE;
+
+    /**
+     * A single mapping is limited to 2GB
+     */
+    static final int MAX_RECORDS = (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE;
+
+    private static final int WRITE_BUFFER_SIZE = RECORD_SIZE * 4096;
+
+    private static final String FILE_PREFIX = "ledgers-";
+    private static final Pattern FILE_NAME = Pattern.compile("ledgers-(\\d{1,9})-(\\d{1,18})\\.idx");
+
+    private LedgerIndexFile() {
+    }
+
+    static Path getPath(Path directory, int clusterId, long sequence) {
+        return directory.resolve(FILE_PREFIX + clusterId + "-" + sequence + ".idx");
+    }
+
+    /**
+     * @return the files of a cluster, sorted by sequence number
+     */
+    static List<Path> listFiles(Path directory, int clusterId) throws IOException {
+        List<Path> result = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, FILE_PREFIX + "*")) {
+            for (Path file : files) {
+                Matcher matcher = FILE_NAME.matcher(file.getFileName().toString());
+                if (matcher.matches() && Integer.parseInt(matcher.group(1)) == clusterId) {
+                    result.add(file);
+                }
+            }
+        }
+        result.sort(Comparator.comparingLong(LedgerIndexFile::getSequence));
+        return result;
+    }
+
+    private static long getSequence(Path file) {
+        Matcher matcher = FILE_NAME.matcher(file.getFileName().toString());
+        return matcher.matches() ? Long.parseLong(matcher.group(2)) : -1;
+    }
+
+    /**
+     * @param records a buffer returned by {@link Writer#finish()} or {@link Directory#openPreviousRun(int)}
+     */
+    static int getCount(ByteBuffer records) {
+        return (int) records.getLong(COUNT_OFFSET);
+    }
+
+    static Roaring64NavigableMap getLedgerIds(ByteBuffer records) {
+        Roaring64NavigableMap result = new Roaring64NavigableMap();
+        int count = getCount(records);
+        for (int i = 0; i < count; i++) {
+            result.addLong(records.getLong(HEADER_SIZE + i * RECORD_SIZE + LEDGER_ID_OFFSET));
+        }
+        return result;
+    }
+
+    /**
+     * @return null if the file is not valid
+     */
+    private static ByteBuffer open(Path file, int clusterId) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length < HEADER_SIZE || length > Integer.MAX_VALUE) {
+                LOG.log(Level.WARNING, "Ignoring ledger index {0}, length {1}", new Object[]{file, length});
+                return null;
+            }
+            ByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (records.getInt(MAGIC_OFFSET) != MAGIC
+                    || records.getInt(VERSION_OFFSET) != VERSION
+                    || records.getInt(CLUSTER_ID_OFFSET) != clusterId
+                    || records.getLong(COUNT_OFFSET) * RECORD_SIZE + HEADER_SIZE != length) {
+                LOG.log(Level.WARNING, "Ignoring ledger index {0}, bad header", file);
+                return null;
+            }
+            return records;
+        }
+    }
+
+    /**
+     * The files of a snapshot directory.
+     * <p>
+     * A file is never replaced, as replacing or deleting a file which is still memory mapped fails on some platforms,
+     * Windows among them. It is deleted once the records mapped from it are not referenced by any generation of the
+     * snapshot, and the deletion is retried if it fails. The last file of each cluster is kept for the next run.
+     */
+    static final class Directory {
+
+        private final Path path;
+        private final AtomicLong nextSequence;
+        private final ReferenceQueue<ByteBuffer> released = new ReferenceQueue<>();
+        /**
+         * Mapped files, by a reference enqueued when the records are not reachable anymore
+         */
+        private final Map<Reference<? extends ByteBuffer>, Path> mapped = new ConcurrentHashMap<>();
+        private final Set<Path> toDelete = ConcurrentHashMap.newKeySet();
+        /**
+         * The last file of each cluster written by the previous run
+         */
+        private final Map<Integer, Path> previousRun = new ConcurrentHashMap<>();
+
+        Directory(Path path) throws IOException {
+            this.path = path;
+            Files.createDirectories(path);
+            long maxSequence = 0;
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(path, FILE_PREFIX + "*")) {
+                for (Path file : files) {
+                    Matcher matcher = FILE_NAME.matcher(file.getFileName().toString());
+                    if (!matcher.matches()) {
+                        // temporary files of an interrupted write
+                        toDelete.add(file);
+                        continue;
+                    }
+                    int clusterId = Integer.parseInt(matcher.group(1));
+                    long sequence = Long.parseLong(matcher.group(2));
+                    maxSequence = Math.max(maxSequence, sequence);
+                    Path last = previousRun.get(clusterId);
+                    if (last == null || getSequence(last) < sequence) {
+                        if (last != null) {
+                            toDelete.add(last);
+                        }
+                        previousRun.put(clusterId, file);
+                    } else {
+                        toDelete.add(file);
+                    }
+                }
+            }
+            this.nextSequence = new AtomicLong(maxSequence + 1);
+            deleteReleased();
+        }
+
+        /**
+         * Map the records written for a cluster by the previous run
+         *
+         * @return null if there is no file for the cluster or it is not valid
+         */
+        ByteBuffer openPreviousRun(int clusterId) {
+            Path file = previousRun.remove(clusterId);
+            if (file == null) {
+                return null;
+            }
+            try {
+                ByteBuffer records = open(file, clusterId);
+                if (records != null) {
+                    track(records, file);
+                    return records;
+                }
+            } catch (IOException err) {
+                LOG.log(Level.WARNING, "Cannot read ledger index " + file, err);
+            }
+            toDelete.add(file);
+            return null;
+        }
+
+        /**
+         * Delete the files of the previous run which were not opened
+         */
+        void discardPreviousRun() {
+            toDelete.addAll(previousRun.values());
+            previousRun.clear();
+            deleteReleased();
+        }
+
+        /**
+         * Delete the files whose records are not referenced anymore, and retry the deletions that failed
+         */
+        void deleteReleased() {
+            Reference<? extends ByteBuffer> reference;
+            while ((reference = released.poll()) != null) {
+                Path file = mapped.remove(reference);
+                if (file != null) {
+                    toDelete.add(file);
+                }
+            }
+            for (Path file : toDelete) {
+                try {
+                    Files.deleteIfExists(file);
+                    toDelete.remove(file);
+                } catch (IOException err) {
+                    LOG.log(Level.FINE, "Cannot delete ledger index " + file + " yet", err);
+                }
+            }
+        }
+
+        private ByteBuffer map(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                track(records, file);
+                return records;
+            }
+        }
+
+        private void track(ByteBuffer records, Path file) {
+            mapped.put(new PhantomReference<>(records, released), file);
+        }
+    }
+
+    /**
+     * Append the records of a cluster, in ascending order of ledger id.
+     * The file is complete only after {@link #finish()}, closing the writer before discards the records.
+     */
+    static final class Writer implements Closeable {
+
+        private final int clusterId;
+        private final Directory directory;
+        private final Path file;
+        private final Path tmpFile;
+        private final FileChannel channel;
+        /**
+         * All the records on the heap, or the records not written to the file yet
+         */
+        private ByteBuffer buffer;
+        private long count;
+        private boolean finished;
+
+        /**
+         * @param directory null in order to keep the records on the heap
+         */
+        Writer(Directory directory, int clusterId) throws IOException {
+            this.clusterId = clusterId;
+            this.directory = directory;
+            if (directory == null) {
+                file = null;
+                tmpFile = null;
+                channel = null;
+            } else {
+                file = getPath(directory.path, clusterId, directory.nextSequence.getAndIncrement());
+                tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+                channel = FileChannel.open(tmpFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            }
+            buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+            buffer.position(HEADER_SIZE);
+        }
+
+        void add(long ledgerId, long size, long ctime) throws IOException {
+            if (count == MAX_RECORDS) {
+                throw new IOException("Too many ledgers for a single index in cluster " + clusterId);
+            }
+            if (buffer.remaining() < RECORD_SIZE) {
+                if (channel == null) {
+                    ByteBuffer larger = ByteBuffer.allocate((int) Math.min((long) buffer.capacity() * 2,
+                            HEADER_SIZE + (long) MAX_RECORDS * RECORD_SIZE));
+                    buffer.flip();
+                    larger.put(buffer);
+                    buffer = larger;
+                } else {
+                    flush();
+                }
+            }
+            buffer.putLong(ledgerId);
+            buffer.putLong(size);
+            buffer.putLong(ctime);
+            count++;
+        }
+
+        /**
+         * @return the records, that must not be modified
+         */
+        ByteBuffer finish() throws IOException {
+            if (channel == null) {
+                finished = true;
+                writeHeader(buffer);
+                return buffer;
+            }
+            flush();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            writeHeader(header);
+            header.rewind();
+            channel.write(header, 0);
+            channel.force(true);
+            channel.close();
+            // a new name, the files of the previous generations may still be mapped
+            Files.move(tmpFile, file, StandardCopyOption.ATOMIC_MOVE);
+            finished = true;
+            return directory.map(file);
+        }
+
+        private void writeHeader(ByteBuffer header) {
+            header.putInt(MAGIC_OFFSET, MAGIC);
+            header.putInt(VERSION_OFFSET, VERSION);
+            header.putInt(CLUSTER_ID_OFFSET, clusterId);
+            header.putLong(COUNT_OFFSET, count);
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null && !finished) {
+                channel.close();
+                Files.deleteIfExists(tmpFile);
+            }
+        }
+    }
+}
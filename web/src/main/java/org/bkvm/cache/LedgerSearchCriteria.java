@@ -0,0 +1,56 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.cache;
+
+import java.util.List;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Filters of a ledger search, null fields are not applied
+ *
+ * @see MetadataCache#searchLedgers(org.bkvm.cache.LedgerSearchCriteria, int, int)
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class LedgerSearchCriteria {
+
+    /**
+     * Matched against the values of custom metadata, or against name and value when in the form "name:value"
+     */
+    private String term;
+    /**
+     * Only applied together with clusterId
+     */
+    private String bookieId;
+    private Integer clusterId;
+    private List<Long> ledgerIds;
+    private Long minLength;
+    private Long maxLength;
+    /**
+     * Minimum age, in minutes
+     */
+    private Integer minAge;
+
+}
@@ -0,0 +1,37 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.cache;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * Number of ledgers and total size of a search, computed by the database
+ *
+ * @see MetadataCache#summarizeLedgers(org.bkvm.cache.LedgerSearchCriteria)
+ */
+@Data
+@AllArgsConstructor
+public class LedgerSearchSummary {
+
+    private long totalLedgers;
+    private long totalSize;
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.cache;
+
+import java.util.List;
+import java.util.Map;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * A ledger together with all the rows that depend on it
+ *
+ * @see MetadataCache#updateLedgers(java.util.Collection)
+ */
+@Data
+@AllArgsConstructor
+public class LedgerUpdate {
+
+    private Ledger ledger;
+    private List<LedgerBookie> bookies;
+    private List<LedgerMetadataEntry> metadataEntries;
+    /**
+     * Bookie ids of each segment, by first entry, null if they are not known
+     */
+    private Map<Long, List<String>> ensembles;
+
+    public LedgerUpdate(Ledger ledger, List<LedgerBookie> bookies, List<LedgerMetadataEntry> metadataEntries) {
+        this(ledger, bookies, metadataEntries, null);
+    }
+
+}
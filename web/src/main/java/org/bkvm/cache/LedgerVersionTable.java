@@ -0,0 +1,109 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.cache;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.LongConsumer;
+
+/**
+ * Compact snapshot of the ledgers of a cluster, used in order to reconcile the cache with the metadata service.
+ * Ids are kept sorted in a primitive array, without boxing, so that millions of ledgers take a few bytes each.
+ * Ledgers still found on the metadata service are marked as seen, the others have been deleted.
+ */
+public final class LedgerVersionTable {
+
+    private long[] ledgerIds;
+    private long[] versions;
+    private final BitSet closed = new BitSet();
+    private final BitSet seen = new BitSet();
+    private int size;
+
+    public LedgerVersionTable() {
+        this(16);
+    }
+
+    public LedgerVersionTable(int initialCapacity) {
+        this.ledgerIds = new long[Math.max(initialCapacity, 1)];
+        this.versions = new long[ledgerIds.length];
+    }
+
+    /**
+     * Append a ledger, ids must be added in ascending order
+     */
+    void add(long ledgerId, long version, boolean isClosed) {
+        if (size > 0 && ledgerIds[size - 1] >= ledgerId) {
+            throw new IllegalArgumentException("ledger " + ledgerId + " added after " + ledgerIds[size - 1]);
+        }
+        if (size == ledgerIds.length) {
+            int newCapacity = ledgerIds.length + (ledgerIds.length >> 1) + 1;
+            ledgerIds = Arrays.copyOf(ledgerIds, newCapacity);
+            versions = Arrays.copyOf(versions, newCapacity);
+        }
+        ledgerIds[size] = ledgerId;
+        versions[size] = version;
+        if (isClosed) {
+            closed.set(size);
+        }
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the position of the ledger, or a negative value if the ledger is not in the table
+     */
+    public int indexOf(long ledgerId) {
+        return Arrays.binarySearch(ledgerIds, 0, size, ledgerId);
+    }
+
+    public long getLedgerIdAt(int index) {
+        return ledgerIds[index];
+    }
+
+    public long getVersionAt(int index) {
+        return versions[index];
+    }
+
+    public boolean isClosedAt(int index) {
+        return closed.get(index);
+    }
+
+    public void markSeenAt(int index) {
+        seen.set(index);
+    }
+
+    public int countNotSeen() {
+        return size - seen.cardinality();
+    }
+
+    public void forEachNotSeen(LongConsumer consumer) {
+        for (int index = seen.nextClearBit(0); index < size; index = seen.nextClearBit(index + 1)) {
+            consumer.accept(ledgerIds[index]);
+        }
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Format of {@link Ledger#getMetadata()}: one header byte telling how the serialized metadata is stored, then the data.
+ * <ul>
+ * <li>{@link #FORMAT_RAW}: the bytes produced by LedgerMetadataSerDe</li>
+ * <li>{@link #FORMAT_DEFLATE}: the length of the serialized metadata (4 bytes) and the raw deflate stream</li>
+ * </ul>
+ * Rows written before this column existed only have the Base64 {@link Ledger#getSerializedMetadata()}.
+ */
+public final class MetadataBlob {
+
+    public static final byte FORMAT_RAW = 1;
+    public static final byte FORMAT_DEFLATE = 2;
+
+    private MetadataBlob() {
+    }
+
+    /**
+     * @param compress try to deflate the data, it is kept raw if it does not get smaller
+     */
+    public static byte[] encode(byte[] serialized, boolean compress) {
+        if (compress) {
+            byte[] deflated = deflate(serialized);
+            if (deflated.length + 4 < serialized.length) {
+                return ByteBuffer.allocate(1 + 4 + deflated.length)
+                        .put(FORMAT_DEFLATE)
+                        .putInt(serialized.length)
+                        .put(deflated)
+                        .array();
+            }
+        }
+        byte[] result = new byte[serialized.length + 1];
+        result[0] = FORMAT_RAW;
+        System.arraycopy(serialized, 0, result, 1, serialized.length);
+        return result;
+    }
+
+    public static byte[] decode(byte[] blob) throws IOException {
+        if (blob.length == 0) {
+            throw new IOException("empty metadata");
+        }
+        switch (blob[0]) {
+            case FORMAT_RAW:
+                return Arrays.copyOfRange(blob, 1, blob.length);
+            case FORMAT_DEFLATE:
+                return inflate(blob);
+            default:
+                throw new IOException("unknown metadata format " + blob[0]);
+        }
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+            byte[] buffer = new byte[Math.max(64, data.length)];
+            while (!deflater.finished()) {
+                int len = deflater.deflate(buffer);
+                out.write(buffer, 0, len);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] blob) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(blob, 1, blob.length - 1);
+        int length = buffer.getInt();
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(blob, 5, blob.length - 5);
+            byte[] result = new byte[length];
+            int pos = 0;
+            while (pos < length) {
+                int len = inflater.inflate(result, pos, length - pos);
+                if (len == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                pos += len;
+            }
+            if (pos != length) {
+                throw new IOException("truncated metadata, " + pos + " bytes instead of " + length);
+            }
+            return result;
+        } catch (DataFormatException ex) {
+            throw new IOException(ex);
+        } finally {
+            inflater.end();
+        }
+    }
+
+}
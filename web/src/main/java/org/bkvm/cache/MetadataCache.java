@@ -19,12 +19,32 @@
  */
 package org.bkvm.cache;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
@@ -32,25 +52,135 @@ import javax.persistence.Query;
 import javax.sql.DataSource;
 import org.bkvm.utils.StringUtils;
 import org.eclipse.persistence.config.PersistenceUnitProperties;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
 
 /**
  * Simple cache over metadata stored on BookKeeper Metadata service (ZooKeeper)
  */
 public class MetadataCache implements AutoCloseable {
 
+    private static final Logger LOG = Logger.getLogger(MetadataCache.class.getName());
+
+    private static final int LEDGER_VERSIONS_PAGE_SIZE = 10000;
+    /**
+     * Candidates found by the in memory indexes are bound one by one in an IN list, above this number the list
+     * costs more to send and to plan than it saves, the query filters every row of the clusters instead
+     */
+    private static final int MAX_INDEX_CANDIDATES = 2000;
+    private static final long MIN_STALE_LEDGERS_FOR_REBUILD = 100000;
+
     private final EntityManagerFactory entityManagerFactory;
+    private final MetadataTermIndex termIndex = new MetadataTermIndex();
+    private final BookieLedgerIndex bookieIndex = new BookieLedgerIndex();
+    private final BookieDictionary bookieDictionary = new BookieDictionary();
+    private final MetadataKeyDictionary metadataKeys = new MetadataKeyDictionary();
+    private final EnsembleStore ensembleStore = new EnsembleStore();
+    /**
+     * Names of the custom metadata whose values are also stored in ledger_metadata
+     */
+    private final Set<String> indexedKeys;
+    /**
+     * Clusters having rows in the ledger table, a search without a cluster reads them one at a time
+     */
+    private final Set<Integer> ledgerClusterIds = ConcurrentHashMap.newKeySet();
+    /**
+     * Writers of the in memory indexes, held while the bookie index is loaded so that no change is lost
+     */
+    private final ReentrantLock indexWriteLock = new ReentrantLock();
+    /**
+     * Builds the term index in the background, searches use LIKE on every ledger until the first build is complete
+     */
+    private final ExecutorService termIndexBuilder = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "bk-visual-manager-term-index");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicReference<MetadataSnapshot> snapshot = new AtomicReference<>();
+    /**
+     * Clusters whose ledgers must be read again from the database by the next generation of the snapshot
+     */
+    private final Set<Integer> snapshotDirtyClusters = ConcurrentHashMap.newKeySet();
+    /**
+     * Ledgers written or deleted after the snapshot was built, by cluster and sorted by ledger id.
+     * The next generation applies them to the records of the previous one. Guarded by itself.
+     */
+    private final Map<Integer, NavigableMap<Long, SnapshotLedgerChange>> snapshotLedgerChanges = new HashMap<>();
+    private final AtomicBoolean snapshotChanged = new AtomicBoolean();
+    private final Object snapshotBuildLock = new Object();
+    /**
+     * Where the ledgers of the snapshot are memory mapped, null in order to keep them on the heap
+     */
+    private final LedgerIndexFile.Directory snapshotFiles;
 
     public MetadataCache(DataSource datasource) {
+        this(datasource, Collections.emptySet());
+    }
+
+    public MetadataCache(DataSource datasource, Collection<String> indexedKeys) {
+        this(datasource, indexedKeys, null);
+    }
+
+    /**
+     * @param datasource
+     * @param indexedKeys names of the custom metadata also stored in ledger_metadata, searches in the form
+     * "name:value" on these names do not need to check the pairs in memory
+     * @param snapshotDirectory where the ledgers of the snapshot are written and memory mapped, the last files are
+     * reused by the first snapshot after a restart. Null in order to keep them on the heap.
+     */
+    public MetadataCache(DataSource datasource, Collection<String> indexedKeys, Path snapshotDirectory) {
+        try {
+            this.snapshotFiles = snapshotDirectory == null ? null : new LedgerIndexFile.Directory(snapshotDirectory);
+        } catch (IOException err) {
+            throw new RuntimeException(err);
+        }
+        if (CacheSchema.upgrade(datasource) && snapshotFiles != null) {
+            // the ledgers of the last snapshot are not in the database anymore
+            snapshotFiles.discardPreviousRun();
+        }
         Map properties = new HashMap();
         properties.put(PersistenceUnitProperties.NON_JTA_DATASOURCE, datasource);
         entityManagerFactory = Persistence.createEntityManagerFactory("punit", properties);
+        this.indexedKeys = new HashSet<>(indexedKeys);
+        loadBookieDictionary();
+        loadMetadataKeys();
+        loadEnsembles();
+        applyIndexedKeys();
+        loadBookieIndex();
+        List<Integer> clusterIds = listClustersWithMetadata();
+        ledgerClusterIds.addAll(clusterIds);
+        termIndex.setReady(false);
+        clusterIds.forEach(termIndex::beginRebuild);
+        termIndexBuilder.submit(() -> {
+            boolean complete = true;
+            for (Integer clusterId : clusterIds) {
+                complete &= buildTermIndex(clusterId);
+            }
+            if (complete) {
+                termIndex.setReady(true);
+            } else {
+                LOG.log(Level.SEVERE, "The metadata term index is incomplete, searches will not use it");
+            }
+        });
     }
 
     @Override
     public void close() {
+        termIndexBuilder.shutdownNow();
         entityManagerFactory.close();
     }
 
+    /**
+     * Wait for the term index builds submitted so far
+     */
+    void awaitTermIndex() throws InterruptedException {
+        try {
+            termIndexBuilder.submit(() -> {
+            }).get();
+        } catch (ExecutionException err) {
+            throw new IllegalStateException(err.getCause());
+        }
+    }
+
     @FunctionalInterface
     private interface EntityManagerSupplier {
 
@@ -114,11 +244,19 @@ public class MetadataCache implements AutoCloseable {
                     cluster.setClusterId(newClusterId);
                     em.persist(cluster);
                 } else {
+                    if (cluster.getDescriptionPattern() == null) {
+                        // edits from the API do not know the pattern the descriptions were computed with
+                        Cluster current = em.find(Cluster.class, cluster.getClusterId());
+                        if (current != null) {
+                            cluster.setDescriptionPattern(current.getDescriptionPattern());
+                        }
+                    }
                     em.merge(cluster);
                 }
                 return null;
             });
         }
+        snapshotChanged.set(true);
     }
 
     public void deleteCluster(int clusterId) {
@@ -133,9 +271,17 @@ public class MetadataCache implements AutoCloseable {
                 em.createQuery("DELETE FROM ledger_bookie lm where lm.clusterId=" + clusterId).executeUpdate();
                 em.createQuery("DELETE FROM ledger lm where lm.clusterId=" + clusterId).executeUpdate();
                 em.createQuery("DELETE FROM bookie lm where lm.clusterId=" + clusterId).executeUpdate();
+                em.createQuery("DELETE FROM bookie_dictionary lm where lm.clusterId=" + clusterId).executeUpdate();
+                em.createQuery("DELETE FROM ensemble lm where lm.clusterId=" + clusterId).executeUpdate();
                 return null;
             });
         }
+        ledgerClusterIds.remove(clusterId);
+        termIndex.deleteCluster(clusterId);
+        bookieIndex.deleteCluster(clusterId);
+        bookieDictionary.deleteCluster(clusterId);
+        ensembleStore.deleteCluster(clusterId);
+        markSnapshotDirty(clusterId);
     }
 
     public List<Bookie> listBookies() {
@@ -168,6 +314,35 @@ public class MetadataCache implements AutoCloseable {
             em.merge(bookie);
             em.getTransaction().commit();
         }
+        snapshotChanged.set(true);
+    }
+
+    /**
+     * Write the state of all the bookies of a cluster in a single transaction
+     *
+     * @param clusterId
+     * @param bookies bookies to create or update
+     * @param decommissionedBookies ids of the bookies to delete
+     */
+    public void updateBookies(int clusterId, Collection<Bookie> bookies, Collection<String> decommissionedBookies) {
+        for (Bookie bookie : bookies) {
+            if (bookie.getClusterId() != clusterId) {
+                throw new IllegalArgumentException("invalid cluster id " + bookie.getClusterId() + " != " + clusterId);
+            }
+        }
+        try (EntityManagerWrapper emw = getEntityManager()) {
+            emw.executeWithTransaction(em -> {
+                bookies.forEach(em::merge);
+                for (String bookieId : decommissionedBookies) {
+                    Query delete = em.createQuery("DELETE FROM bookie lm where lm.bookieId=:bookieId and lm.clusterId=:clusterId");
+                    delete.setParameter("bookieId", bookieId);
+                    delete.setParameter("clusterId", clusterId);
+                    delete.executeUpdate();
+                }
+                return null;
+            });
+        }
+        snapshotChanged.set(true);
     }
 
     public void deleteBookie(int clusterId, String bookieId) {
@@ -180,6 +355,7 @@ public class MetadataCache implements AutoCloseable {
             delete.executeUpdate();
             em.getTransaction().commit();
         }
+        snapshotChanged.set(true);
     }
 
     public Bookie getBookie(int clusterId, String bookieId) {
@@ -195,7 +371,9 @@ public class MetadataCache implements AutoCloseable {
             Query q = em.createQuery("select l from ledger_bookie l where l.ledgerId = :ledgerId and l.clusterId = :clusterId", LedgerBookie.class);
             q.setParameter("ledgerId", ledgerId);
             q.setParameter("clusterId", clusterId);
-            return q.getResultList();
+            List<LedgerBookie> bookies = q.getResultList();
+            resolveBookieIds(bookies);
+            return bookies;
         }
     }
 
@@ -215,31 +393,198 @@ public class MetadataCache implements AutoCloseable {
         }
     }
 
-    public void updateLedger(Ledger ledger, List<LedgerBookie> bookies,
-                             List<LedgerMetadataEntry> metadataEntries) {
+    /**
+     * Versions of the metadata of all the ledgers of a cluster
+     *
+     * @param clusterId
+     * @return the ledgers, sorted by ledgerId
+     */
+    public LedgerVersionTable getLedgerVersions(int clusterId) {
+        return getLedgerVersions(clusterId, false);
+    }
+
+    /**
+     * Versions of the metadata of the ledgers of a cluster that are not closed
+     *
+     * @param clusterId
+     * @return the ledgers, sorted by ledgerId
+     */
+    public LedgerVersionTable getOpenLedgerVersions(int clusterId) {
+        return getLedgerVersions(clusterId, true);
+    }
+
+    private LedgerVersionTable getLedgerVersions(int clusterId, boolean onlyNotClosed) {
+        LedgerVersionTable result = new LedgerVersionTable();
         try (EntityManagerWrapper emw = getEntityManager()) {
             EntityManager em = emw.em;
-            em.getTransaction().begin();
+            // read by pages, the whole result set of a big cluster does not fit in memory
+            long lastLedgerId = -1;
+            while (true) {
+                Query q = em.createQuery("select l.ledgerId, l.metadataVersion, l.state from ledger l"
+                        + " where l.clusterId = :clusterId and l.ledgerId > :lastLedgerId"
+                        + (onlyNotClosed ? " and (l.state IS NULL or l.state <> :closed)" : "")
+                        + " order by l.ledgerId");
+                q.setParameter("clusterId", clusterId);
+                q.setParameter("lastLedgerId", lastLedgerId);
+                if (onlyNotClosed) {
+                    q.setParameter("closed", Ledger.STATE_CLOSED);
+                }
+                q.setMaxResults(LEDGER_VERSIONS_PAGE_SIZE);
+                List<Object[]> rows = q.getResultList();
+                for (Object[] row : rows) {
+                    lastLedgerId = ((Number) row[0]).longValue();
+                    result.add(lastLedgerId, ((Number) row[1]).longValue(), Ledger.STATE_CLOSED.equals(row[2]));
+                }
+                if (rows.size() < LEDGER_VERSIONS_PAGE_SIZE) {
+                    return result;
+                }
+                em.clear();
+            }
+        }
+    }
+
+    /**
+     * Replace the description and the ensembles of some ledgers, in a single transaction.
+     * The other columns and the rows which depend on the ledgers are left untouched.
+     *
+     * @param updates the ledgers with their new description, and their ensembles
+     */
+    public void updateDescriptions(Collection<LedgerUpdate> updates) {
+        if (updates.isEmpty()) {
+            return;
+        }
+        assignBookieRefs(updates);
+        assignEnsembles(updates);
+        try (EntityManagerWrapper emw = getEntityManager()) {
+            emw.executeWithTransaction(em -> {
+                Query update = em.createQuery("UPDATE ledger l SET l.description = :description, l.ensembles = :ensembles"
+                        + " WHERE l.clusterId = :clusterId AND l.ledgerId = :ledgerId");
+                for (LedgerUpdate ledgerUpdate : updates) {
+                    Ledger ledger = ledgerUpdate.getLedger();
+                    update.setParameter("clusterId", ledger.getClusterId());
+                    update.setParameter("ledgerId", ledger.getLedgerId());
+                    update.setParameter("description", ledger.getDescription());
+                    update.setParameter("ensembles", ledger.getEnsembles());
+                    update.executeUpdate();
+                }
+                return null;
+            });
+        }
+    }
+
+    /**
+     * @return true if some ledgers of the cluster have been written without their ensembles
+     */
+    public boolean hasLedgersWithoutEnsembles(int clusterId) {
+        try (EntityManagerWrapper emw = getEntityManager()) {
+            Query q = emw.em.createQuery("SELECT l.ledgerId FROM ledger l WHERE l.clusterId = :clusterId AND l.ensembles IS NULL");
+            q.setParameter("clusterId", clusterId);
+            q.setMaxResults(1);
+            return !q.getResultList().isEmpty();
+        }
+    }
+
+    public void updateLedger(Ledger ledger, List<LedgerBookie> bookies,
+                             List<LedgerMetadataEntry> metadataEntries) {
+        updateLedgers(Collections.singletonList(new LedgerUpdate(ledger, bookies, metadataEntries)));
+    }
+
+    /**
+     * Replace a batch of ledgers in a single transaction.
+     * Old rows are removed with one DELETE for each ledger and table, new rows are sent using JDBC batches.
+     * A single DELETE ... IN for the whole batch is executed by HerdDB as a scan of the table, which blocked on the rows
+     * written by the previous batches.
+     *
+     * @param updates
+     */
+    public void updateLedgers(Collection<LedgerUpdate> updates) {
+        if (updates.isEmpty()) {
+            return;
+        }
+        Map<Integer, List<Long>> ledgerIdsByCluster = new HashMap<>();
+        for (LedgerUpdate update : updates) {
+            Ledger ledger = update.getLedger();
             long ledgerId = ledger.getLedgerId();
-            innerDeleteLedger(ledger.getClusterId(), ledgerId, em);
-            em.persist(ledger);
-            bookies.forEach((lb) -> {
+            update.getBookies().forEach((lb) -> {
                 if (ledgerId != lb.getLedgerId()) {
                     throw new IllegalArgumentException(MessageFormat.format("Invalid {0} for {1}", lb.toString(), ledger.toString()));
                 }
                 if (lb.getClusterId() != ledger.getClusterId()) {
                     throw new IllegalStateException("invalid cluster id " + lb.getClusterId() + " != " + ledger.getClusterId());
                 }
-                em.persist(lb);
             });
-            metadataEntries.forEach((lm) -> {
+            update.getMetadataEntries().forEach((lm) -> {
                 if (ledgerId != lm.getLedgerId()) {
                     throw new IllegalArgumentException(MessageFormat.format("Invalid {0} for {1}", lm.toString(), ledger.toString()));
                 }
-                em.persist(lm);
             });
-            em.getTransaction().commit();
+            ledgerIdsByCluster.computeIfAbsent(ledger.getClusterId(), id -> new ArrayList<>()).add(ledgerId);
         }
+        assignBookieRefs(updates);
+        assignEnsembles(updates);
+        assignMetadataKeys(updates);
+        try (EntityManagerWrapper emw = getEntityManager()) {
+            emw.executeWithTransaction(em -> {
+                ledgerIdsByCluster.forEach((clusterId, ledgerIds) -> {
+                    innerDeleteLedgers(clusterId, ledgerIds, em);
+                });
+                for (LedgerUpdate update : updates) {
+                    em.persist(update.getLedger());
+                    update.getBookies().forEach(em::persist);
+                    for (LedgerMetadataEntry entry : update.getMetadataEntries()) {
+                        if (indexedKeys.contains(entry.getEntryName())) {
+                            em.persist(entry);
+                        }
+                    }
+                }
+                return null;
+            });
+        }
+        ledgerClusterIds.addAll(ledgerIdsByCluster.keySet());
+        indexWriteLock.lock();
+        try {
+            for (LedgerUpdate update : updates) {
+                Ledger ledger = update.getLedger();
+                termIndex.addLedger(ledger.getClusterId(), ledger.getLedgerId(), update.getMetadataEntries());
+            }
+            ledgerIdsByCluster.forEach((clusterId, ledgerIds) -> {
+                List<LedgerBookie> bookies = new ArrayList<>();
+                for (LedgerUpdate update : updates) {
+                    if (update.getLedger().getClusterId() == clusterId) {
+                        bookies.addAll(update.getBookies());
+                    }
+                }
+                bookieIndex.updateLedgers(clusterId, toBitmap(ledgerIds), bookies);
+            });
+        } finally {
+            indexWriteLock.unlock();
+        }
+        Map<Integer, Map<Long, SnapshotLedgerChange>> changes = new HashMap<>();
+        for (LedgerUpdate update : updates) {
+            Ledger ledger = update.getLedger();
+            changes.computeIfAbsent(ledger.getClusterId(), id -> new HashMap<>()).put(ledger.getLedgerId(),
+                    new SnapshotLedgerChange(ledger.getSize(), ledger.getCtime() == null ? LedgerIndexFile.NO_CTIME : ledger.getCtime().getTime()));
+        }
+        changes.forEach(this::addSnapshotLedgerChanges);
+    }
+
+    /**
+     * Delete a batch of ledgers of a cluster in a single transaction
+     *
+     * @param clusterId
+     * @param ledgerIds
+     */
+    public void deleteLedgers(int clusterId, List<Long> ledgerIds) {
+        if (ledgerIds.isEmpty()) {
+            return;
+        }
+        try (EntityManagerWrapper emw = getEntityManager()) {
+            emw.executeWithTransaction(em -> {
+                innerDeleteLedgers(clusterId, ledgerIds, em);
+                return null;
+            });
+        }
+        deleteFromIndexes(clusterId, ledgerIds);
     }
 
     public void deleteLedger(int clusterId, long ledgerId) {
@@ -249,6 +594,728 @@ public class MetadataCache implements AutoCloseable {
             innerDeleteLedger(clusterId, ledgerId, em);
             em.getTransaction().commit();
         }
+        deleteFromIndexes(clusterId, Collections.singletonList(ledgerId));
+    }
+
+    private void deleteFromIndexes(int clusterId, List<Long> ledgerIds) {
+        indexWriteLock.lock();
+        try {
+            bookieIndex.deleteLedgers(clusterId, toBitmap(ledgerIds));
+            ledgerIds.forEach(ledgerId -> termIndex.deleteLedger(clusterId, ledgerId));
+            long stale = termIndex.getStaleLedgers(clusterId);
+            if (stale >= MIN_STALE_LEDGERS_FOR_REBUILD && stale > termIndex.getLiveLedgers(clusterId)
+                    && termIndex.beginRebuild(clusterId)) {
+                termIndexBuilder.submit(() -> buildTermIndex(clusterId));
+            }
+        } finally {
+            indexWriteLock.unlock();
+        }
+        Map<Long, SnapshotLedgerChange> changes = new HashMap<>();
+        ledgerIds.forEach(ledgerId -> changes.put(ledgerId, SnapshotLedgerChange.DELETED));
+        addSnapshotLedgerChanges(clusterId, changes);
+    }
+
+    /**
+     * A ledger written or deleted since the last generation of the snapshot
+     */
+    private static final class SnapshotLedgerChange {
+
+        private static final SnapshotLedgerChange DELETED = new SnapshotLedgerChange(0, 0);
+
+        private final long size;
+        private final long ctime;
+
+        private SnapshotLedgerChange(long size, long ctime) {
+            this.size = size;
+            this.ctime = ctime;
+        }
+    }
+
+    private void markSnapshotDirty(int clusterId) {
+        snapshotDirtyClusters.add(clusterId);
+        snapshotChanged.set(true);
+    }
+
+    /**
+     * Called after the changes are committed: the last change of a ledger wins, and applying a change already read
+     * from the database by the next generation is harmless
+     */
+    private void addSnapshotLedgerChanges(int clusterId, Map<Long, SnapshotLedgerChange> changes) {
+        synchronized (snapshotLedgerChanges) {
+            snapshotLedgerChanges.computeIfAbsent(clusterId, id -> new TreeMap<>()).putAll(changes);
+        }
+        snapshotChanged.set(true);
+    }
+
+    /**
+     * The last snapshot built by {@link #refreshSnapshot()}
+     *
+     * @return null if no snapshot was built yet
+     */
+    public MetadataSnapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    /**
+     * Build a new generation of the snapshot and publish it.
+     * The ledgers written or deleted since the previous generation are merged into its records, the database is read
+     * again only for the clusters deleted meanwhile and for the files left by a previous run.
+     *
+     * @return the new snapshot
+     */
+    public MetadataSnapshot refreshSnapshot() {
+        synchronized (snapshotBuildLock) {
+            // changes from now on are picked up by the next generation
+            snapshotChanged.set(false);
+            Set<Integer> dirty = new HashSet<>(snapshotDirtyClusters);
+            snapshotDirtyClusters.removeAll(dirty);
+            Map<Integer, NavigableMap<Long, SnapshotLedgerChange>> changes;
+            synchronized (snapshotLedgerChanges) {
+                changes = new HashMap<>(snapshotLedgerChanges);
+                snapshotLedgerChanges.clear();
+            }
+
+            try {
+                MetadataSnapshot current = snapshot.get();
+                Set<Integer> clusterIds = new HashSet<>(dirty);
+                clusterIds.addAll(changes.keySet());
+                listClusters().forEach(cluster -> clusterIds.add(cluster.getClusterId()));
+                if (current == null) {
+                    clusterIds.addAll(listClustersWithMetadata());
+                } else {
+                    clusterIds.addAll(current.getLedgers().keySet());
+                }
+                List<MetadataSnapshot.ClusterLedgers> ledgers = new ArrayList<>();
+                Set<Integer> loaded = new HashSet<>();
+                for (Integer clusterId : clusterIds) {
+                    MetadataSnapshot.ClusterLedgers clusterLedgers;
+                    if (current != null && !dirty.contains(clusterId)) {
+                        clusterLedgers = current.getClusterLedgers(clusterId);
+                        NavigableMap<Long, SnapshotLedgerChange> clusterChanges = changes.get(clusterId);
+                        if (clusterChanges != null) {
+                            clusterLedgers = applyLedgerChanges(clusterId, clusterLedgers, clusterChanges);
+                        } else if (clusterLedgers == null) {
+                            continue;
+                        }
+                    } else {
+                        // the database already contains the pending changes
+                        clusterLedgers = current == null && !dirty.contains(clusterId) ? loadClusterLedgers(clusterId) : null;
+                        if (clusterLedgers != null) {
+                            loaded.add(clusterId);
+                        } else {
+                            clusterLedgers = buildClusterLedgers(clusterId);
+                        }
+                    }
+                    // an empty file is deleted with the records which are not referenced
+                    if (clusterLedgers.size() > 0) {
+                        ledgers.add(clusterLedgers);
+                    }
+                }
+                // files written before the restart may miss the last changes, the next generation reads them again
+                loaded.forEach(this::markSnapshotDirty);
+                if (current == null && snapshotFiles != null) {
+                    snapshotFiles.discardPreviousRun();
+                }
+                // read last, a change of the lists published by refreshSnapshotLists() meanwhile is not hidden
+                List<Cluster> clusters = listClusters();
+                List<Bookie> bookies = listBookies();
+                while (true) {
+                    MetadataSnapshot published = snapshot.get();
+                    MetadataSnapshot result = new MetadataSnapshot(published == null ? 1 : published.getGeneration() + 1,
+                            clusters, bookies, ledgers);
+                    if (snapshot.compareAndSet(published, result)) {
+                        deleteReleasedFiles();
+                        LOG.log(Level.FINE, "Published snapshot generation {0}, changes applied to clusters {1},"
+                                + " ledgers read again for clusters {2}",
+                                new Object[]{result.getGeneration(), changes.keySet(), dirty});
+                        return result;
+                    }
+                }
+            } catch (RuntimeException err) {
+                // read them again at the next attempt
+                dirty.forEach(this::markSnapshotDirty);
+                changes.keySet().forEach(this::markSnapshotDirty);
+                throw err;
+            }
+        }
+    }
+
+    /**
+     * Publish the current clusters and bookies with the ledgers of the published generation. It does not wait for a
+     * build in progress, so that a change of a cluster or of a bookie is visible at once.
+     *
+     * @return the new snapshot, null if no snapshot was built yet
+     */
+    public MetadataSnapshot refreshSnapshotLists() {
+        List<Cluster> clusters = listClusters();
+        List<Bookie> bookies = listBookies();
+        while (true) {
+            MetadataSnapshot current = snapshot.get();
+            if (current == null) {
+                return null;
+            }
+            MetadataSnapshot result = new MetadataSnapshot(current.getGeneration() + 1, clusters, bookies,
+                    current.getLedgers().values());
+            if (snapshot.compareAndSet(current, result)) {
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Build a new snapshot only if something changed since the last one
+     *
+     * @return the current snapshot
+     */
+    public MetadataSnapshot refreshSnapshotIfChanged() {
+        deleteReleasedFiles();
+        MetadataSnapshot current = snapshot.get();
+        if (current != null && !snapshotChanged.get()) {
+            return current;
+        }
+        return refreshSnapshot();
+    }
+
+    /**
+     * Delete the files of the generations which are not referenced by the readers anymore
+     */
+    private void deleteReleasedFiles() {
+        if (snapshotFiles != null) {
+            snapshotFiles.deleteReleased();
+        }
+    }
+
+    private MetadataSnapshot.ClusterLedgers buildClusterLedgers(int clusterId) {
+        Map<String, Roaring64NavigableMap> ledgersByBookie = copyBookieIndex(clusterId);
+        ByteBuffer records;
+        try (LedgerIndexFile.Writer writer = new LedgerIndexFile.Writer(snapshotFiles, clusterId);
+                EntityManagerWrapper emw = getEntityManager()) {
+            EntityManager em = emw.em;
+            long lastLedgerId = -1;
+            while (true) {
+                Query q = em.createQuery("SELECT l.ledgerId, l.size, l.ctime FROM ledger l"
+                        + " WHERE l.clusterId = :clusterId AND l.ledgerId > :lastLedgerId"
+                        + " ORDER BY l.ledgerId");
+                q.setParameter("clusterId", clusterId);
+                q.setParameter("lastLedgerId", lastLedgerId);
+                q.setMaxResults(LEDGER_VERSIONS_PAGE_SIZE);
+                List<Object[]> rows = q.getResultList();
+                for (Object[] row : rows) {
+                    lastLedgerId = ((Number) row[0]).longValue();
+                    writer.add(lastLedgerId, ((Number) row[1]).longValue(),
+                            row[2] == null ? LedgerIndexFile.NO_CTIME : ((java.util.Date) row[2]).getTime());
+                }
+                if (rows.size() < LEDGER_VERSIONS_PAGE_SIZE) {
+                    break;
+                }
+                em.clear();
+            }
+            records = writer.finish();
+        } catch (IOException err) {
+            throw new RuntimeException(err);
+        }
+        return newClusterLedgers(clusterId, records, ledgersByBookie);
+    }
+
+    /**
+     * The next generation of the ledgers of a cluster: the records of the previous one merged with the changes
+     *
+     * @param previous null if the cluster had no ledgers
+     * @param changes sorted by ledger id
+     */
+    private MetadataSnapshot.ClusterLedgers applyLedgerChanges(int clusterId, MetadataSnapshot.ClusterLedgers previous,
+            NavigableMap<Long, SnapshotLedgerChange> changes) {
+        Map<String, Roaring64NavigableMap> ledgersByBookie = copyBookieIndex(clusterId);
+        ByteBuffer records;
+        try (LedgerIndexFile.Writer writer = new LedgerIndexFile.Writer(snapshotFiles, clusterId)) {
+            int count = previous == null ? 0 : previous.size();
+            int index = 0;
+            Iterator<Map.Entry<Long, SnapshotLedgerChange>> it = changes.entrySet().iterator();
+            Map.Entry<Long, SnapshotLedgerChange> change = it.hasNext() ? it.next() : null;
+            while (index < count || change != null) {
+                if (change != null && (index == count || change.getKey() <= previous.getLedgerId(index))) {
+                    if (index < count && change.getKey() == previous.getLedgerId(index)) {
+                        // replaced or deleted
+                        index++;
+                    }
+                    SnapshotLedgerChange value = change.getValue();
+                    if (value != SnapshotLedgerChange.DELETED) {
+                        writer.add(change.getKey(), value.size, value.ctime);
+                    }
+                    change = it.hasNext() ? it.next() : null;
+                } else {
+                    writer.add(previous.getLedgerId(index), previous.getSize(index), previous.getCtime(index));
+                    index++;
+                }
+            }
+            records = writer.finish();
+        } catch (IOException err) {
+            throw new RuntimeException(err);
+        }
+        return newClusterLedgers(clusterId, records, ledgersByBookie);
+    }
+
+    /**
+     * Map the ledgers written for the snapshot before a restart
+     *
+     * @return null if there are no usable records for the cluster
+     */
+    private MetadataSnapshot.ClusterLedgers loadClusterLedgers(int clusterId) {
+        if (snapshotFiles == null) {
+            return null;
+        }
+        Map<String, Roaring64NavigableMap> ledgersByBookie = copyBookieIndex(clusterId);
+        ByteBuffer records = snapshotFiles.openPreviousRun(clusterId);
+        return records == null ? null : newClusterLedgers(clusterId, records, ledgersByBookie);
+    }
+
+    private Map<String, Roaring64NavigableMap> copyBookieIndex(int clusterId) {
+        indexWriteLock.lock();
+        try {
+            return bookieIndex.copyCluster(clusterId);
+        } finally {
+            indexWriteLock.unlock();
+        }
+    }
+
+    private static MetadataSnapshot.ClusterLedgers newClusterLedgers(int clusterId, ByteBuffer records,
+            Map<String, Roaring64NavigableMap> ledgersByBookie) {
+        // bookies only reference the ledgers of this generation
+        Roaring64NavigableMap all = LedgerIndexFile.getLedgerIds(records);
+        Map<String, Roaring64NavigableMap> bookies = new HashMap<>();
+        ledgersByBookie.forEach((bookieId, ledgers) -> {
+            ledgers.and(all);
+            if (!ledgers.isEmpty()) {
+                bookies.put(bookieId, ledgers);
+            }
+        });
+        return new MetadataSnapshot.ClusterLedgers(clusterId, records, bookies);
+    }
+
+    /**
+     * Read ledgers by primary key
+     *
+     * @param keys
+     * @return the ledgers that still exist, in the order of the keys
+     */
+    public List<Ledger> getLedgers(List<LedgerKey> keys) {
+        Map<Integer, List<Long>> ledgerIdsByCluster = new LinkedHashMap<>();
+        keys.forEach(key -> ledgerIdsByCluster.computeIfAbsent(key.getClusterId(), id -> new ArrayList<>()).add(key.getLedgerId()));
+        Map<LedgerKey, Ledger> found = new HashMap<>();
+        try (EntityManagerWrapper emw = getEntityManager()) {
+            EntityManager em = emw.em;
+            ledgerIdsByCluster.forEach((clusterId, ledgerIds) -> {
+                Query q = em.createQuery("SELECT l FROM ledger l WHERE l.clusterId = :clusterId AND l.ledgerId IN :ledgerIds",
+                        Ledger.class);
+                q.setParameter("clusterId", clusterId);
+                q.setParameter("ledgerIds", ledgerIds);
+                List<Ledger> ledgers = q.getResultList();
+                ledgers.forEach(ledger -> found.put(new LedgerKey(ledger.getLedgerId(), ledger.getClusterId()), ledger));
+            });
+        }
+        List<Ledger> result = new ArrayList<>(found.size());
+        for (LedgerKey key : keys) {
+            Ledger ledger = found.get(key);
+            if (ledger != null) {
+                result.add(ledger);
+            }
+        }
+        return result;
+    }
+
+    private void loadBookieDictionary() {
+        try (EntityManagerWrapper emw = getEntityManager()) {
+            EntityManager em = emw.em;
+            List<BookieDictionaryEntry> entries = em.createQuery("SELECT d FROM bookie_dictionary d", BookieDictionaryEntry.class)
+                    .getResultList();
+            entries.forEach(bookieDictionary::add);
+        }
+    }
+
+    /**
+     * Set the surrogate id of each bookie, new bookies are added to the dictionary in a transaction of their own
+     *
+     * @param updates
+     */
+    private void assignBookieRefs(Collection<LedgerUpdate> updates) {
+        synchronized (bookieDictionary) {
+            List<BookieDictionaryEntry> newEntries = new ArrayList<>();
+            Map<Integer, Map<String, Integer>> newRefs = new HashMap<>();
+            for (LedgerUpdate update : updates) {
+                int clusterId = update.getLedger().getClusterId();
+                for (LedgerBookie lb : update.getBookies()) {
+                    lb.setBookieRef(getOrCreateBookieRef(clusterId, lb.getBookieId(), newRefs, newEntries));
+                }
+                if (update.getEnsembles() != null) {
+                    for (List<String> ensemble : update.getEnsembles().values()) {
+                        for (String bookieId : ensemble) {
+                            getOrCreateBookieRef(clusterId, bookieId, newRefs, newEntries);
+                        }
+                    }
+                }
+            }
+            persist(newEntries);
+            newEntries.forEach(bookieDictionary::add);
+        }
+    }
+
+    private int getOrCreateBookieRef(int clusterId, String bookieId, Map<Integer, Map<String, Integer>> newRefs,
+                                     List<BookieDictionaryEntry> newEntries) {
+        Integer ref = bookieDictionary.getRef(clusterId, bookieId);
+        if (ref != null) {
+            return ref;
+        }
+        Map<String, Integer> clusterRefs = newRefs.computeIfAbsent(clusterId, id -> new HashMap<>());
+        return clusterRefs.computeIfAbsent(bookieId, id -> {
+            int newRef = bookieDictionary.nextRef(clusterId) + clusterRefs.size();
+            newEntries.add(new BookieDictionaryEntry(clusterId, bookieId, newRef));
+            return newRef;
+        });
+    }
+
+    private void loadEnsembles() {
+        try (EntityManagerWrapper emw = getEntityManager()) {
+            EntityManager em = emw.em;
+            List<Ensemble> ensembles = em.createQuery("SELECT e FROM ensemble e", Ensemble.class).getResultList();
+            ensembles.forEach(ensembleStore::add);
+        }
+    }
+
+    /**
+     * Replace the ensembles of each ledger with references to the ensemble table, adding the new ensembles.
+     * Bookies must already be in the dictionary.
+     *
+     * @param updates
+     */
+    private void assignEnsembles(Collection<LedgerUpdate> updates) {
+        synchronized (ensembleStore) {
+            List<Ensemble> newEnsembles = new ArrayList<>();
+            Map<Integer, Map<String, Integer>> newIds = new HashMap<>();
+            for (LedgerUpdate update : updates) {
+                if (update.getEnsembles() == null) {
+                    continue;
+                }
+                int clusterId = update.getLedger().getClusterId();
+                Map<Long, Integer> segments = new LinkedHashMap<>();
+                update.getEnsembles().forEach((firstEntry, ensemble) -> {
+                    StringBuilder bookieRefs = new StringBuilder();
+                    for (String bookieId : ensemble) {
+                        if (bookieRefs.length() > 0) {
+                            bookieRefs.append(',');
+                        }
+                        bookieRefs.append(bookieDictionary.getRef(clusterId, bookieId));
+                    }
+                    String key = bookieRefs.toString();
+                    Integer ensembleId = ensembleStore.getId(clusterId, key);
+                    if (ensembleId == null) {
+                        Map<String, Integer> clusterIds = newIds.computeIfAbsent(clusterId, id -> new HashMap<>());
+                        ensembleId = clusterIds.computeIfAbsent(key, k -> {
+                            int newId = ensembleStore.nextId(clusterId) + clusterIds.size();
+                            newEnsembles.add(new Ensemble(clusterId, newId, k));
+                            return newId;
+                        });
+                    }
+                    segments.put(firstEntry, ensembleId);
+                });
+                update.getLedger().setEnsembles(EnsembleStore.encodeSegments(segments));
+            }
+            persist(newEnsembles);
+            newEnsembles.forEach(ensembleStore::add);
+        }
+    }
+
+    /**
+     * Bookie ids of each segment of the ledger, read from the shared ensembles
+     *
+     * @param ledger
+     * @return ensembles by first entry, null if the ledger was stored without ensembles
+     */
+    public Map<Long, List<String>> getEnsembles(Ledger ledger) {
+        if (ledger.getEnsembles() == null) {
+            return null;
+        }
+        Map<Long, List<String>> result = new LinkedHashMap<>();
+        EnsembleStore.decodeSegments(ledger.getEnsembles()).forEach((firstEntry, ensembleId) -> {
+            String bookieRefs = ensembleStore.getBookieRefs(ledger.getClusterId(), ensembleId);
+            List<String> bookieIds = new ArrayList<>();
+            if (bookieRefs != null && !bookieRefs.isEmpty()) {
+                for (String bookieRef : bookieRefs.split(",")) {
+                    bookieIds.add(bookieDictionary.getBookieId(ledger.getClusterId(), Integer.parseInt(bookieRef)));
+                }
+            }
+            result.put(firstEntry, bookieIds);
+        });
+        return result;
+    }
+
+    private void loadMetadataKeys() {
+        try (EntityManagerWrapper emw = getEntityManager()) {
+            EntityManager em = emw.em;
+            List<MetadataKey> keys = em.createQuery("SELECT k FROM metadata_key k", MetadataKey.class).getResultList();
+            keys.forEach(metadataKeys::add);
+        }
+    }
+
+    /**
+     * Write the custom metadata of each ledger to its own columns, new names are added to the dictionary
+     * in a transaction of their own
+     *
+     * @param updates
+     */
+    private void assignMetadataKeys(Collection<LedgerUpdate> updates) {
+        synchronized (metadataKeys) {
+            List<MetadataKey> newKeys = new ArrayList<>();
+            Map<String, Integer> newRefs = new HashMap<>();
+            for (LedgerUpdate update : updates) {
+                List<Integer> keyRefs = new ArrayList<>();
+                List<String> values = new ArrayList<>();
+                for (LedgerMetadataEntry entry : update.getMetadataEntries()) {
+                    Integer keyRef = metadataKeys.getRef(entry.getEntryName());
+                    if (keyRef == null) {
+                        keyRef = newRefs.computeIfAbsent(entry.getEntryName(), keyName -> {
+                            int newRef = metadataKeys.nextRef() + newRefs.size();
+                            newKeys.add(new MetadataKey(newRef, keyName, indexedKeys.contains(keyName)));
+                            return newRef;
+                        });
+                    }
+                    keyRefs.add(keyRef);
+                    values.add(entry.getEntryValue() == null ? "" : entry.getEntryValue());
+                }
+                update.getLedger().setCustomMetadataKeys(MetadataKeyDictionary.encodeKeys(keyRefs));
+                update.getLedger().setCustomMetadataValues(MetadataKeyDictionary.encodeValues(keyRefs, values));
+            }
+            persist(newKeys);
+            newKeys.forEach(metadataKeys::add);
+        }
+    }
+
+    /**
+     * Make ledger_metadata contain the values of the configured names only, after a change of the configuration
+     */
+    private void applyIndexedKeys() {
+        for (MetadataKey key : metadataKeys.listKeys()) {
+            boolean indexed = indexedKeys.contains(key.getKeyName());
+            if (key.isIndexed() == indexed) {
+                continue;
+            }
+            try (EntityManagerWrapper emw = getEntityManager()) {
+                emw.executeWithTransaction(em -> {
+                    Query delete = em.createQuery("DELETE FROM ledger_metadata lm WHERE lm.entryName = :entryName");
+                    delete.setParameter("entryName", key.getKeyName());
+                    return delete.executeUpdate();
+                });
+                long count = indexed ? indexMetadataKey(emw, key) : 0;
+                key.setIndexed(indexed);
+                emw.executeWithTransaction(em -> em.merge(key));
+                LOG.log(Level.INFO, "Metadata {0} is now indexed={1}, {2} values stored in ledger_metadata",
+                        new Object[]{key.getKeyName(), indexed, count});
+            }
+        }
+    }
+
+    private long indexMetadataKey(EntityManagerWrapper emw, MetadataKey key) {
+        EntityManager em = emw.em;
+        long count = 0;
+        // HerdDB sorts on the first ORDER BY column only, clusters are read one at a time
+        for (int clusterId : listClustersWithMetadata()) {
+            long lastLedgerId = -1;
+            while (true) {
+                Query q = em.createQuery("SELECT l.ledgerId, l.customMetadataKeys, l.customMetadataValues FROM ledger l"
+                        + " WHERE l.clusterId = :clusterId AND l.ledgerId > :lastLedgerId"
+                        + " AND l.customMetadataKeys LIKE :keyPattern"
+                        + " ORDER BY l.ledgerId");
+                q.setParameter("clusterId", clusterId);
+                q.setParameter("lastLedgerId", lastLedgerId);
+                q.setParameter("keyPattern", MetadataKeyDictionary.keyPattern(key.getKeyRef()));
+                q.setMaxResults(LEDGER_VERSIONS_PAGE_SIZE);
+                List<Object[]> rows = q.getResultList();
+                List<LedgerMetadataEntry> entries = new ArrayList<>();
+                for (Object[] row : rows) {
+                    lastLedgerId = ((Number) row[0]).longValue();
+                    List<Integer> keyRefs = MetadataKeyDictionary.decodeKeys((String) row[1]);
+                    List<String> values = MetadataKeyDictionary.decodeValues((String) row[2], keyRefs.size());
+                    int index = keyRefs.indexOf(key.getKeyRef());
+                    if (index >= 0) {
+                        entries.add(new LedgerMetadataEntry(lastLedgerId, clusterId, key.getKeyName(), values.get(index)));
+                    }
+                }
+                emw.executeWithTransaction(tx -> {
+                    entries.forEach(tx::persist);
+                    return null;
+                });
+                count += entries.size();
+                if (rows.size() < LEDGER_VERSIONS_PAGE_SIZE) {
+                    break;
+                }
+                em.clear();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Custom metadata of a ledger, read from the ledger row
+     *
+     * @param ledger
+     * @return values by name, null if the ledger was stored without custom metadata columns
+     */
+    public Map<String, String> getCustomMetadata(Ledger ledger) {
+        if (ledger.getCustomMetadataKeys() == null) {
+            return null;
+        }
+        Map<String, String> result = new LinkedHashMap<>();
+        toEntries(ledger.getClusterId(), ledger.getLedgerId(), ledger.getCustomMetadataKeys(), ledger.getCustomMetadataValues())
+                .forEach(entry -> result.put(entry.getEntryName(), entry.getEntryValue()));
+        return result;
+    }
+
+    private List<LedgerMetadataEntry> toEntries(int clusterId, long ledgerId, String customMetadataKeys,
+                                               String customMetadataValues) {
+        List<Integer> keyRefs = MetadataKeyDictionary.decodeKeys(customMetadataKeys);
+        List<String> values = MetadataKeyDictionary.decodeValues(customMetadataValues, keyRefs.size());
+        List<LedgerMetadataEntry> result = new ArrayList<>(keyRefs.size());
+        for (int i = 0; i < keyRefs.size(); i++) {
+            MetadataKey key = metadataKeys.getKey(keyRefs.get(i));
+            if (key != null) {
+                result.add(new LedgerMetadataEntry(ledgerId, clusterId, key.getKeyName(), values.get(i)));
+            }
+        }
+        return result;
+    }
+
+    private void persist(List<?> entities) {
+        if (entities.isEmpty()) {
+            return;
+        }
+        try (EntityManagerWrapper emw = getEntityManager()) {
+            emw.executeWithTransaction(em -> {
+                entities.forEach(em::persist);
+                return null;
+            });
+        }
+    }
+
+    private void resolveBookieIds(List<LedgerBookie> bookies) {
+        for (LedgerBookie lb : bookies) {
+            lb.setBookieId(bookieDictionary.getBookieId(lb.getClusterId(), lb.getBookieRef()));
+        }
+    }
+
+    private void loadBookieIndex() {
+        indexWriteLock.lock();
+        try (EntityManagerWrapper emw = getEntityManager()) {
+            EntityManager em = emw.em;
+            List<Integer> clusterIds = em.createQuery("SELECT DISTINCT lb.clusterId FROM ledger_bookie lb").getResultList();
+            for (Integer clusterId : clusterIds) {
+                long lastLedgerId = -1;
+                while (true) {
+                    // HerdDB sorts on the first ORDER BY column only, pages end on a whole ledger
+                    Query q = em.createQuery("SELECT lb FROM ledger_bookie lb WHERE lb.clusterId = :clusterId"
+                            + " AND lb.ledgerId > :lastLedgerId"
+                            + " ORDER BY lb.ledgerId", LedgerBookie.class);
+                    q.setParameter("clusterId", clusterId);
+                    q.setParameter("lastLedgerId", lastLedgerId);
+                    q.setMaxResults(LEDGER_VERSIONS_PAGE_SIZE);
+                    List<LedgerBookie> bookies = new ArrayList<>(q.getResultList());
+                    boolean full = bookies.size() == LEDGER_VERSIONS_PAGE_SIZE;
+                    if (full) {
+                        // the bookies of the last ledger may continue on the next page
+                        long partialLedgerId = bookies.get(bookies.size() - 1).getLedgerId();
+                        while (!bookies.isEmpty() && bookies.get(bookies.size() - 1).getLedgerId() == partialLedgerId) {
+                            bookies.remove(bookies.size() - 1);
+                        }
+                        if (bookies.isEmpty()) {
+                            throw new IllegalStateException("Ledger " + partialLedgerId + " of cluster " + clusterId
+                                    + " has more than " + LEDGER_VERSIONS_PAGE_SIZE + " bookies");
+                        }
+                    }
+                    resolveBookieIds(bookies);
+                    bookieIndex.addBookies(clusterId, bookies);
+                    if (!full) {
+                        break;
+                    }
+                    lastLedgerId = bookies.get(bookies.size() - 1).getLedgerId();
+                    em.clear();
+                }
+            }
+        } finally {
+            indexWriteLock.unlock();
+        }
+    }
+
+    private static Roaring64NavigableMap toBitmap(Collection<Long> ledgerIds) {
+        Roaring64NavigableMap result = new Roaring64NavigableMap();
+        ledgerIds.forEach(result::addLong);
+        return result;
+    }
+
+    private List<Integer> listClustersWithMetadata() {
+        try (EntityManagerWrapper emw = getEntityManager()) {
+            EntityManager em = emw.em;
+            return em.createQuery("SELECT DISTINCT l.clusterId FROM ledger l").getResultList();
+        }
+    }
+
+    /**
+     * Build again the term index of a cluster from the custom metadata columns, dropping the postings of deleted ledgers
+     *
+     * @param clusterId
+     */
+    void rebuildTermIndex(int clusterId) {
+        if (termIndex.beginRebuild(clusterId)) {
+            buildTermIndex(clusterId);
+        }
+    }
+
+    /**
+     * Read the custom metadata of a cluster into the index started with {@link MetadataTermIndex#beginRebuild(int)}.
+     * Writers are not blocked, they update the rebuilt index too.
+     *
+     * @return false if the index could not be built, the current one is kept
+     */
+    private boolean buildTermIndex(int clusterId) {
+        try (EntityManagerWrapper emw = getEntityManager()) {
+            EntityManager em = emw.em;
+            long lastLedgerId = -1;
+            long count = 0;
+            while (true) {
+                Query q = em.createQuery("SELECT l.ledgerId, l.customMetadataKeys, l.customMetadataValues FROM ledger l"
+                        + " WHERE l.clusterId = :clusterId AND l.ledgerId > :lastLedgerId"
+                        + " ORDER BY l.ledgerId");
+                q.setParameter("clusterId", clusterId);
+                q.setParameter("lastLedgerId", lastLedgerId);
+                q.setMaxResults(LEDGER_VERSIONS_PAGE_SIZE);
+                List<Object[]> rows = q.getResultList();
+                for (Object[] row : rows) {
+                    lastLedgerId = ((Number) row[0]).longValue();
+                    termIndex.addRebuiltLedger(clusterId, lastLedgerId,
+                            toEntries(clusterId, lastLedgerId, (String) row[1], (String) row[2]));
+                }
+                count += rows.size();
+                if (rows.size() < LEDGER_VERSIONS_PAGE_SIZE) {
+                    break;
+                }
+                em.clear();
+            }
+            termIndex.finishRebuild(clusterId);
+            LOG.log(Level.INFO, "Indexed the metadata of {0} ledgers of cluster {1}", new Object[]{count, clusterId});
+            return true;
+        } catch (RuntimeException err) {
+            termIndex.abortRebuild(clusterId);
+            LOG.log(Level.SEVERE, "Cannot index the metadata of cluster " + clusterId, err);
+            return false;
+        }
+    }
+
+    private static void innerDeleteLedgers(int clusterId, List<Long> ledgerIds, EntityManager em) {
+        for (String table : new String[]{"ledger_metadata", "ledger_bookie", "ledger"}) {
+            Query delete = em.createQuery("DELETE FROM " + table + " lm where lm.clusterId = :clusterId and lm.ledgerId = :ledgerId");
+            delete.setParameter("clusterId", clusterId);
+            for (Long ledgerId : ledgerIds) {
+                delete.setParameter("ledgerId", ledgerId);
+                delete.executeUpdate();
+            }
+        }
     }
 
     private static void innerDeleteLedger(int clusterId, long ledgerId, EntityManager em) {
@@ -272,121 +1339,361 @@ public class MetadataCache implements AutoCloseable {
     }
 
     public List<Long> getLedgersForBookie(int clusterId, String bookieId) {
-        try (EntityManagerWrapper emw = getEntityManager()) {
-            EntityManager em = emw.em;
-            Query q = em.createQuery("select l from ledger_bookie l where l.bookieId = :bookieId and l.clusterId = :clusterId", LedgerBookie.class);
-            q.setParameter("bookieId", bookieId);
-            q.setParameter("clusterId", clusterId);
-            List<LedgerBookie> mapping = q.getResultList();
-            return mapping.stream().map(LedgerBookie::getLedgerId).collect(Collectors.toList());
-        }
+        return toList(bookieIndex.getLedgers(clusterId, bookieId));
+    }
+
+    /**
+     * Ledgers placed on all the given bookies, or on any of them
+     *
+     * @param clusterId
+     * @param bookieIds
+     * @param onAllBookies true for the intersection, false for the union
+     * @return ledger ids
+     */
+    public Roaring64NavigableMap getLedgersForBookies(int clusterId, Collection<String> bookieIds, boolean onAllBookies) {
+        return bookieIndex.getLedgers(clusterId, bookieIds, onAllBookies);
+    }
+
+    /**
+     * Number of ledgers stored on each bookie of a cluster, bookies without ledgers are not reported
+     */
+    public Map<String, Long> countLedgersByBookie(int clusterId) {
+        return bookieIndex.countLedgers(clusterId);
     }
 
     public List<Ledger> searchLedgers(String metadataTerm, String bookieId, Integer clusterId, List<Long> ledgerIds) {
+        LedgerSearchCriteria criteria = LedgerSearchCriteria.builder()
+                .term(metadataTerm)
+                .bookieId(bookieId)
+                .clusterId(clusterId)
+                .ledgerIds(ledgerIds)
+                .build();
+        return searchLedgers(criteria, 0, -1);
+    }
+
+    /**
+     * Search ledgers, sorted by clusterId and ledgerId
+     *
+     * @param criteria
+     * @param firstResult number of ledgers to skip
+     * @param maxResults maximum number of ledgers to return, a negative value means no limit
+     * @return the page of ledgers
+     */
+    public List<Ledger> searchLedgers(LedgerSearchCriteria criteria, int firstResult, int maxResults) {
+        if (maxResults == 0 || isEmptySearch(criteria)) {
+            return new ArrayList<>();
+        }
+        List<Ledger> result = new ArrayList<>();
         try (EntityManagerWrapper emw = getEntityManager()) {
             EntityManager em = emw.em;
-
-            boolean hasBookieCluster = true;
-            if (StringUtils.isEmpty(bookieId) || clusterId == null) {
-                hasBookieCluster = false;
-            }
-
-            if (ledgerIds == null) {
-                if (!StringUtils.isEmpty(metadataTerm) && hasBookieCluster) {
-                    Query q = em.createQuery("SELECT DISTINCT(l) FROM ledger l "
-                            + "               INNER JOIN ledger_metadata lm ON lm.ledgerId = l.ledgerId"
-                            + "               INNER JOIN ledger_bookie ln ON ln.ledgerId = l.ledgerId "
-                            + " WHERE lm.entryValue LIKE :term"
-                            + " AND ln.bookieId = :bookieId"
-                            + " AND ln.clusterId = :clusterId"
-                            + " ORDER BY l.ledgerId", Ledger.class);
-                    q.setParameter("term", "%" + metadataTerm + "%");
-                    q.setParameter("bookieId", bookieId);
-                    q.setParameter("clusterId", clusterId);
-                    return q.getResultList();
-                } else if (!StringUtils.isEmpty(metadataTerm)) {
-                    String entryName = null;
-                    String entryValue = null;
-                    if (metadataTerm.contains(":")) {
-                        String[] entrya = metadataTerm.split(":", 2);
-                        entryName = StringUtils.trimToEmpty(entrya[0]);
-                        entryValue = StringUtils.trimToEmpty(entrya[1]);
+            // HerdDB sorts on the first ORDER BY column only, clusters are read one at a time sorted by ledgerId
+            long skip = firstResult;
+            for (int clusterId : listSearchedClusterIds(criteria)) {
+                LedgerKey start = new LedgerKey(-1, clusterId);
+                if (skip > 0) {
+                    Query count = createSearchQuery(em, criteria, start, "COUNT(l)", null);
+                    long ledgers = count == null ? 0 : ((Number) count.getSingleResult()).longValue();
+                    if (ledgers <= skip) {
+                        skip -= ledgers;
+                        continue;
                     }
-                    if (StringUtils.isEmpty(entryName) || StringUtils.isEmpty(entryValue)) {
-                        Query q = em.createQuery("SELECT DISTINCT(l) FROM ledger l "
-                                + "               INNER JOIN ledger_metadata lm ON lm.ledgerId = l.ledgerId"
-                                + " WHERE lm.entryValue LIKE :term"
-                                + " ORDER BY l.ledgerId", Ledger.class);
-                        q.setParameter("term", "%" + metadataTerm + "%");
-                        return q.getResultList();
-                    } else {
-                        Query q = em.createQuery("SELECT DISTINCT(l) FROM ledger l "
-                                + "               INNER JOIN ledger_metadata lm ON lm.ledgerId = l.ledgerId"
-                                + " WHERE lm.entryName LIKE :entryName"
-                                + " AND lm.entryValue LIKE :entryValue"
-                                + " ORDER BY l.ledgerId", Ledger.class);
-                        q.setParameter("entryName", "%" + entryName.trim() + "%");
-                        q.setParameter("entryValue", "%" + entryValue.trim() + "%");
-                        return q.getResultList();
+                    // the HerdDB driver cannot position a result set, skip the first keys and read the page by key
+                    Query q = createSearchQuery(em, criteria, start, "l.clusterId, l.ledgerId", Object[].class);
+                    if (maxResults > 0) {
+                        q.setMaxResults((int) skip + maxResults);
                     }
-                } else if (hasBookieCluster) {
-                    Query q = em.createQuery("SELECT DISTINCT(l) FROM ledger l "
-                            + "               INNER JOIN ledger_bookie ln ON ln.ledgerId = l.ledgerId "
-                            + " WHERE ln.bookieId = :bookieId"
-                            + " AND ln.clusterId = :clusterId"
-                            + " ORDER BY l.ledgerId", Ledger.class);
-                    q.setParameter("bookieId", bookieId);
-                    q.setParameter("clusterId", clusterId);
-                    return q.getResultList();
+                    List<Object[]> keys = q.getResultList();
+                    result.addAll(getLedgers(toKeys(keys.subList((int) Math.min(skip, keys.size()), keys.size()))));
+                    skip = 0;
                 } else {
-                    Query q = em.createQuery("SELECT l FROM ledger l ", Ledger.class);
-                    return q.getResultList();
-                }
-            } else if (!ledgerIds.isEmpty()) {
-                if (!StringUtils.isEmpty(metadataTerm) && hasBookieCluster) {
-                    Query q = em.createQuery("SELECT DISTINCT(l) FROM ledger l "
-                            + "               INNER JOIN ledger_metadata lm ON lm.ledgerId = l.ledgerId"
-                            + "               INNER JOIN ledger_bookie ln ON ln.ledgerId = l.ledgerId "
-                            + " WHERE l.ledgerId IN :ledgerIds"
-                            + " AND lm.entryValue LIKE :term"
-                            + " AND ln.bookieId = :bookieId"
-                            + " AND ln.clusterId = :clusterId"
-                            + " ORDER BY l.ledgerId", Ledger.class);
-                    q.setParameter("term", "%" + metadataTerm + "%");
-                    q.setParameter("bookieId", bookieId);
-                    q.setParameter("clusterId", clusterId);
-                    q.setParameter("ledgerIds", ledgerIds);
-                    return q.getResultList();
-                } else if (!StringUtils.isEmpty(metadataTerm)) {
-                    Query q = em.createQuery("SELECT DISTINCT(l) FROM ledger l "
-                            + "               INNER JOIN ledger_metadata lm ON lm.ledgerId = l.ledgerId"
-                            + " WHERE l.ledgerId IN :ledgerIds"
-                            + " AND lm.entryValue LIKE :term"
-                            + " ORDER BY l.ledgerId", Ledger.class);
-                    q.setParameter("ledgerIds", ledgerIds);
-                    q.setParameter("term", "%" + metadataTerm + "%");
-                    return q.getResultList();
-                } else if (hasBookieCluster) {
-                    Query q = em.createQuery("SELECT DISTINCT(l) FROM ledger l "
-                            + "               INNER JOIN ledger_bookie ln ON ln.ledgerId = l.ledgerId "
-                            + " WHERE l.ledgerId IN :ledgerIds"
-                            + " AND ln.bookieId = :bookieId"
-                            + " AND ln.clusterId = :clusterId"
-                            + " ORDER BY l.ledgerId", Ledger.class);
-                    q.setParameter("bookieId", bookieId);
-                    q.setParameter("clusterId", clusterId);
-                    q.setParameter("ledgerIds", ledgerIds);
-                    return q.getResultList();
+                    Query q = createSearchQuery(em, criteria, start, "l", Ledger.class);
+                    if (q == null) {
+                        continue;
+                    }
+                    if (maxResults > 0) {
+                        q.setMaxResults(maxResults - result.size());
+                    }
+                    result.addAll(q.getResultList());
+                }
+                if (maxResults > 0 && result.size() >= maxResults) {
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Count the ledgers matching a search and sum their sizes, without loading any ledger
+     *
+     * @param criteria
+     * @return the totals
+     */
+    public LedgerSearchSummary summarizeLedgers(LedgerSearchCriteria criteria) {
+        if (isEmptySearch(criteria)) {
+            return new LedgerSearchSummary(0, 0);
+        }
+        try (EntityManagerWrapper emw = getEntityManager()) {
+            EntityManager em = emw.em;
+            Query q = createSearchQuery(em, criteria, null, "COUNT(l), SUM(l.size)", null);
+            if (q == null) {
+                return new LedgerSearchSummary(0, 0);
+            }
+            Object[] row = (Object[]) q.getSingleResult();
+            long count = row[0] == null ? 0 : ((Number) row[0]).longValue();
+            long totalSize = row[1] == null ? 0 : ((Number) row[1]).longValue();
+            return new LedgerSearchSummary(count, totalSize);
+        }
+    }
+
+    /**
+     * Read the next page of a search, starting after a given ledger.
+     * The position is a ledger id, not an offset, so the page is not affected by ledgers added or deleted before it.
+     * Clusters are read one at a time, each query has an equality on clusterId and a lower bound on ledgerId,
+     * which the ledger_cluster index on (clusterId, ledgerId) serves.
+     *
+     * @param criteria
+     * @param after the last ledger of the previous page, null to start from the beginning
+     * @param maxResults maximum number of ledgers to return
+     * @return the page of ledgers, sorted by clusterId and ledgerId
+     */
+    public List<Ledger> scanLedgers(LedgerSearchCriteria criteria, LedgerKey after, int maxResults) {
+        List<Ledger> result = new ArrayList<>();
+        if (maxResults <= 0 || isEmptySearch(criteria)) {
+            return result;
+        }
+        try (EntityManagerWrapper emw = getEntityManager()) {
+            EntityManager em = emw.em;
+            for (int clusterId : listSearchedClusterIds(criteria)) {
+                if (after != null && clusterId < after.getClusterId()) {
+                    continue;
+                }
+                long afterLedgerId = after != null && clusterId == after.getClusterId() ? after.getLedgerId() : -1;
+                Query q = createSearchQuery(em, criteria, new LedgerKey(afterLedgerId, clusterId), "l", Ledger.class);
+                if (q == null) {
+                    continue;
+                }
+                q.setMaxResults(maxResults - result.size());
+                result.addAll(q.getResultList());
+                if (result.size() >= maxResults) {
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Clusters to search one at a time, sorted by id
+     */
+    private List<Integer> listSearchedClusterIds(LedgerSearchCriteria criteria) {
+        if (criteria.getClusterId() != null) {
+            return Collections.singletonList(criteria.getClusterId());
+        }
+        List<Integer> clusterIds = new ArrayList<>(ledgerClusterIds);
+        Collections.sort(clusterIds);
+        return clusterIds;
+    }
+
+    /**
+     * Add a LIKE on the values column which matches a value of a name, see {@link MetadataKeyDictionary#pairPattern}
+     */
+    private static void addPairCondition(MetadataKey key, String valuePattern, List<String> pairConditions,
+                                         Map<String, Object> parameters) {
+        String parameter = "pair" + pairConditions.size();
+        pairConditions.add("l.customMetadataValues LIKE :" + parameter);
+        parameters.put(parameter, MetadataKeyDictionary.pairPattern(key.getKeyRef(), valuePattern));
+    }
+
+    private static List<LedgerKey> toKeys(List<Object[]> matches) {
+        List<LedgerKey> result = new ArrayList<>(matches.size());
+        for (Object[] match : matches) {
+            result.add(new LedgerKey(((Number) match[1]).longValue(), ((Number) match[0]).intValue()));
+        }
+        return result;
+    }
+
+    private static Map<Integer, Roaring64NavigableMap> intersect(Map<Integer, Roaring64NavigableMap> a, Map<Integer, Roaring64NavigableMap> b) {
+        Map<Integer, Roaring64NavigableMap> result = new HashMap<>();
+        a.forEach((clusterId, ledgers) -> {
+            Roaring64NavigableMap other = b.get(clusterId);
+            if (other != null) {
+                ledgers.and(other);
+                if (!ledgers.isEmpty()) {
+                    result.put(clusterId, ledgers);
+                }
+            }
+        });
+        return result;
+    }
+
+    private static List<Long> toList(Roaring64NavigableMap bitmap) {
+        List<Long> result = new ArrayList<>(bitmap.getIntCardinality());
+        bitmap.forEach(result::add);
+        return result;
+    }
+
+    private static boolean isEmptySearch(LedgerSearchCriteria criteria) {
+        return criteria.getLedgerIds() != null && criteria.getLedgerIds().isEmpty();
+    }
+
+    /**
+     * @param after if not null only the ledgers of the same cluster that follow it are searched,
+     * results are sorted by ledgerId only, so a sorted search must be limited to a cluster
+     * @return the query, or null if the search cannot match any ledger
+     */
+    private Query createSearchQuery(EntityManager em, LedgerSearchCriteria criteria, LedgerKey after,
+                                    String projection, Class<?> resultClass) {
+        List<String> conditions = new ArrayList<>();
+        Map<String, Object> parameters = new HashMap<>();
+        if (after != null) {
+            // a single cluster, a disjunction over clusters would not be served by any index
+            conditions.add("l.clusterId = :afterClusterId AND l.ledgerId > :afterLedgerId");
+            parameters.put("afterClusterId", after.getClusterId());
+            parameters.put("afterLedgerId", after.getLedgerId());
+        }
+        // ledgers that may match, by cluster, computed with the in memory indexes
+        Map<Integer, Roaring64NavigableMap> candidates = null;
+        boolean bookieFilter = false;
+        if (criteria.getClusterId() != null) {
+            conditions.add("l.clusterId = :clusterId");
+            parameters.put("clusterId", criteria.getClusterId());
+            if (!StringUtils.isEmpty(criteria.getBookieId())) {
+                bookieFilter = true;
+                candidates = new HashMap<>();
+                Roaring64NavigableMap onBookie = bookieIndex.getLedgers(criteria.getClusterId(), criteria.getBookieId());
+                if (onBookie.isEmpty()) {
+                    return null;
+                }
+                candidates.put(criteria.getClusterId(), onBookie);
+            }
+        }
+        if (criteria.getLedgerIds() != null) {
+            conditions.add("l.ledgerId IN :ledgerIds");
+            parameters.put("ledgerIds", criteria.getLedgerIds());
+        }
+        if (criteria.getMinLength() != null) {
+            conditions.add("l.size >= :minLength");
+            parameters.put("minLength", criteria.getMinLength());
+        }
+        if (criteria.getMaxLength() != null) {
+            conditions.add("l.size <= :maxLength");
+            parameters.put("maxLength", criteria.getMaxLength());
+        }
+        if (criteria.getMinAge() != null) {
+            // older than minAge minutes, see Ledger.getAge()
+            conditions.add("l.ctime <= :maxCtime");
+            parameters.put("maxCtime", new java.sql.Timestamp(System.currentTimeMillis()
+                    - TimeUnit.MINUTES.toMillis(criteria.getMinAge())));
+        }
+        String metadataTerm = criteria.getTerm();
+        if (!StringUtils.isEmpty(metadataTerm)) {
+            String entryName = null;
+            String entryValue = null;
+            if (metadataTerm.contains(":")) {
+                String[] entrya = metadataTerm.split(":", 2);
+                entryName = StringUtils.trimToEmpty(entrya[0]);
+                entryValue = StringUtils.trimToEmpty(entrya[1]);
+            }
+            boolean valueOnly = StringUtils.isEmpty(entryName) || StringUtils.isEmpty(entryValue);
+            // the database still checks LIKE, the index only narrows down the ledgers to check
+            Map<Integer, Roaring64NavigableMap> termCandidates = valueOnly
+                    ? termIndex.findCandidates(criteria.getClusterId(), null, metadataTerm)
+                    : termIndex.findCandidates(criteria.getClusterId(), entryName, entryValue);
+            if (termCandidates != null) {
+                if (candidates == null) {
+                    candidates = termCandidates;
                 } else {
-                    Query q = em.createQuery("SELECT l FROM ledger l "
-                            + " WHERE l.ledgerId IN :ledgerIds", Ledger.class);
-                    q.setParameter("ledgerIds", ledgerIds);
-                    return q.getResultList();
+                    candidates = intersect(candidates, termCandidates);
+                }
+                if (candidates.isEmpty()) {
+                    return null;
+                }
+            }
+            if (valueOnly && !metadataTerm.contains("%")) {
+                conditions.add("l.customMetadataValues LIKE :term");
+                parameters.put("term", MetadataKeyDictionary.valuePattern(metadataTerm));
+            } else if (valueOnly) {
+                // a '%' could match from one value to the next one, the term is searched under each name
+                List<String> pairConditions = new ArrayList<>();
+                for (MetadataKey key : metadataKeys.listKeys()) {
+                    addPairCondition(key, metadataTerm, pairConditions, parameters);
                 }
+                if (pairConditions.isEmpty()) {
+                    return null;
+                }
+                conditions.add("(" + String.join(" OR ", pairConditions) + ")");
             } else {
-                return new ArrayList<>();
+                List<String> indexedNames = new ArrayList<>();
+                List<String> pairConditions = new ArrayList<>();
+                for (MetadataKey key : metadataKeys.findKeys(entryName)) {
+                    if (key.isIndexed()) {
+                        indexedNames.add(key.getKeyName());
+                    } else {
+                        addPairCondition(key, entryValue, pairConditions, parameters);
+                    }
+                }
+                if (indexedNames.isEmpty() && pairConditions.isEmpty()) {
+                    return null;
+                }
+                List<String> alternatives = new ArrayList<>();
+                if (!indexedNames.isEmpty()) {
+                    // not an EXISTS, EclipseLink would bind its constant projection as a parameter that HerdDB rejects
+                    alternatives.add("l.ledgerId IN (SELECT lm.ledgerId FROM ledger_metadata lm"
+                            + " WHERE lm.clusterId = l.clusterId"
+                            + " AND lm.entryName IN :entryNames AND lm.entryValue LIKE :entryValue)");
+                    parameters.put("entryNames", indexedNames);
+                    parameters.put("entryValue", "%" + entryValue + "%");
+                }
+                // names which are not indexed are matched together with their value on the ledger row
+                alternatives.addAll(pairConditions);
+                conditions.add("(" + String.join(" OR ", alternatives) + ")");
             }
         }
+        if (candidates != null && after != null) {
+            // only the candidates of the cluster of the query are bound
+            Roaring64NavigableMap clusterCandidates = candidates.get(after.getClusterId());
+            if (clusterCandidates == null) {
+                return null;
+            }
+            candidates = Collections.singletonMap(after.getClusterId(), clusterCandidates);
+        }
+        if (candidates != null) {
+            long total = candidates.values().stream().mapToLong(Roaring64NavigableMap::getLongCardinality).sum();
+            if (total <= MAX_INDEX_CANDIDATES) {
+                List<String> ranges = new ArrayList<>();
+                int i = 0;
+                for (Map.Entry<Integer, Roaring64NavigableMap> cluster : candidates.entrySet()) {
+                    ranges.add("(l.clusterId = :candidateCluster" + i + " AND l.ledgerId IN :candidateLedgers" + i + ")");
+                    parameters.put("candidateCluster" + i, cluster.getKey());
+                    parameters.put("candidateLedgers" + i, toList(cluster.getValue()));
+                    i++;
+                }
+                conditions.add("(" + String.join(" OR ", ranges) + ")");
+            }
+        }
+        // the bookie index is updated after the transaction, ledger_bookie is checked anyway so that ledgers
+        // that have just left the bookie are not returned
+        if (bookieFilter) {
+            Integer bookieRef = bookieDictionary.getRef(criteria.getClusterId(), criteria.getBookieId());
+            if (bookieRef == null) {
+                return null;
+            }
+            // not an EXISTS, EclipseLink would bind its constant projection as a parameter that HerdDB rejects
+            conditions.add("l.ledgerId IN (SELECT ln.ledgerId FROM ledger_bookie ln"
+                    + " WHERE ln.clusterId = l.clusterId AND ln.bookieRef = :bookieRef)");
+            parameters.put("bookieRef", bookieRef);
+        }
+        StringBuilder jpql = new StringBuilder("SELECT " + projection + " FROM ledger l");
+        if (!conditions.isEmpty()) {
+            jpql.append(" WHERE ").append(String.join(" AND ", conditions));
+        }
+        if (resultClass != null) {
+            jpql.append(" ORDER BY l.ledgerId");
+        }
+        Query q = resultClass != null ? em.createQuery(jpql.toString(), resultClass) : em.createQuery(jpql.toString());
+        parameters.forEach(q::setParameter);
+        return q;
     }
 
 }
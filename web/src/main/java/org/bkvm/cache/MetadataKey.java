@@ -0,0 +1,58 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.cache;
+
+import java.io.Serializable;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import lombok.Data;
+
+/**
+ * Integer surrogate of a custom metadata name, shared by all the clusters, see {@link Ledger#getCustomMetadataKeys()}.
+ * Entries are never reused.
+ */
+@Data
+@Entity(name = "metadata_key")
+public class MetadataKey implements Serializable {
+
+    @Id
+    @Column(columnDefinition = "int")
+    private int keyRef;
+
+    @Column(columnDefinition = "string")
+    private String keyName;
+
+    /**
+     * Whether the values of this name are also stored in ledger_metadata
+     */
+    @Column(columnDefinition = "boolean")
+    private boolean indexed;
+
+    public MetadataKey() {
+    }
+
+    public MetadataKey(int keyRef, String keyName, boolean indexed) {
+        this.keyRef = keyRef;
+        this.keyName = keyName;
+        this.indexed = indexed;
+    }
+
+}
@@ -0,0 +1,223 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In memory copy of metadata_key, in both directions.
+ * <p>
+ * The custom metadata of a ledger is stored in two columns: the surrogates of the names, in the form ",3,5,",
+ * and the values in the same order. A LIKE on ",3," finds the ledgers having a name.
+ * <p>
+ * In the values column each value is enclosed in an opening and a closing tag which hold the surrogate of its
+ * name. Tags only contain control characters and values are escaped so that they contain none, so a tag is found
+ * once in a row. A '%' wildcard of a LIKE on the values column may still run from one value into the next one:
+ * {@link #pairPattern(int, String)} keeps the wildcards of the value between the tags of the name.
+ */
+public class MetadataKeyDictionary {
+
+    private static final char OPEN_TAG_START = '\u001c';
+    private static final char OPEN_TAG_END = '\u001d';
+    private static final char CLOSE_TAG_START = '\u001e';
+    private static final char CLOSE_TAG_END = '\u001f';
+    /**
+     * Digits of the surrogate in a tag are the control characters from this one
+     */
+    private static final char TAG_DIGIT_ZERO = '\u0010';
+    /**
+     * Followed by the two hexadecimal digits of an escaped character
+     */
+    private static final char ESCAPE = '\u007f';
+
+    private final Map<String, MetadataKey> byName = new HashMap<>();
+    private final Map<Integer, MetadataKey> byRef = new HashMap<>();
+    private int maxRef = -1;
+
+    public synchronized void add(MetadataKey key) {
+        byName.put(key.getKeyName(), key);
+        byRef.put(key.getKeyRef(), key);
+        maxRef = Math.max(maxRef, key.getKeyRef());
+    }
+
+    /**
+     * @return the surrogate id, or null if the name is not in the dictionary
+     */
+    public synchronized Integer getRef(String keyName) {
+        MetadataKey key = byName.get(keyName);
+        return key == null ? null : key.getKeyRef();
+    }
+
+    public synchronized MetadataKey getKey(int keyRef) {
+        return byRef.get(keyRef);
+    }
+
+    /**
+     * The surrogate id to assign to a new name, it is not reserved until the key is added
+     */
+    public synchronized int nextRef() {
+        return maxRef + 1;
+    }
+
+    /**
+     * Names containing a string, like the LIKE '%name%' condition on ledger_metadata
+     */
+    public synchronized List<MetadataKey> findKeys(String nameSubstring) {
+        List<MetadataKey> result = new ArrayList<>();
+        for (MetadataKey key : byRef.values()) {
+            if (key.getKeyName().contains(nameSubstring)) {
+                result.add(key);
+            }
+        }
+        return result;
+    }
+
+    public synchronized List<MetadataKey> listKeys() {
+        return new ArrayList<>(byRef.values());
+    }
+
+    static String encodeKeys(List<Integer> keyRefs) {
+        if (keyRefs.isEmpty()) {
+            return "";
+        }
+        StringBuilder result = new StringBuilder(",");
+        for (Integer keyRef : keyRefs) {
+            result.append(keyRef).append(',');
+        }
+        return result.toString();
+    }
+
+    static List<Integer> decodeKeys(String keyRefs) {
+        List<Integer> result = new ArrayList<>();
+        if (keyRefs == null) {
+            return result;
+        }
+        for (String keyRef : keyRefs.split(",")) {
+            if (!keyRef.isEmpty()) {
+                result.add(Integer.parseInt(keyRef));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A LIKE pattern matching the keys column of the ledgers having a name
+     */
+    static String keyPattern(int keyRef) {
+        return "%," + keyRef + ",%";
+    }
+
+    /**
+     * The values column: each value between the tags of its name
+     */
+    static String encodeValues(List<Integer> keyRefs, List<String> values) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < values.size(); i++) {
+            appendTag(result, OPEN_TAG_START, keyRefs.get(i), OPEN_TAG_END);
+            escapeValue(values.get(i), result);
+            appendTag(result, CLOSE_TAG_START, keyRefs.get(i), CLOSE_TAG_END);
+        }
+        return result.toString();
+    }
+
+    static List<String> decodeValues(String values, int count) {
+        List<String> result = new ArrayList<>(count);
+        if (values == null) {
+            return result;
+        }
+        StringBuilder current = new StringBuilder();
+        for (int i = 0; i < values.length(); i++) {
+            char c = values.charAt(i);
+            if (c == OPEN_TAG_START) {
+                i = values.indexOf(OPEN_TAG_END, i);
+            } else if (c == CLOSE_TAG_START) {
+                i = values.indexOf(CLOSE_TAG_END, i);
+                result.add(current.toString());
+                current.setLength(0);
+            } else if (c == ESCAPE) {
+                current.append((char) Integer.parseInt(values.substring(i + 1, i + 3), 16));
+                i += 2;
+            } else {
+                current.append(c);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A LIKE pattern matching the values column of the ledgers having a value that matches {@code valuePattern}
+     * under a name, the wildcards of the pattern never match outside of the value
+     *
+     * @param keyRef surrogate of the name
+     * @param valuePattern the searched value, '%' and '_' are wildcards
+     */
+    static String pairPattern(int keyRef, String valuePattern) {
+        StringBuilder result = new StringBuilder("%");
+        appendTag(result, OPEN_TAG_START, keyRef, OPEN_TAG_END);
+        result.append('%');
+        escapeValue(valuePattern, result);
+        result.append('%');
+        appendTag(result, CLOSE_TAG_START, keyRef, CLOSE_TAG_END);
+        return result.append('%').toString();
+    }
+
+    /**
+     * A LIKE pattern matching the values column of the ledgers having a value that matches {@code value}
+     * under any name. Only valid if the pattern has no '%' wildcard, which could match across two values,
+     * a '_' never matches a whole tag.
+     */
+    static String valuePattern(String value) {
+        return "%" + escapeValue(value) + "%";
+    }
+
+    private static void appendTag(StringBuilder result, char start, int keyRef, char end) {
+        result.append(start);
+        String digits = Integer.toString(keyRef);
+        for (int i = 0; i < digits.length(); i++) {
+            result.append((char) (TAG_DIGIT_ZERO + digits.charAt(i) - '0'));
+        }
+        result.append(end);
+    }
+
+    static String escapeValue(String value) {
+        StringBuilder result = new StringBuilder(value.length());
+        escapeValue(value, result);
+        return result.toString();
+    }
+
+    /**
+     * Values are escaped so that they never contain a control character, which are reserved for the tags.
+     * Backslashes are escaped as well, HerdDB gives them a meaning in a LIKE pattern.
+     */
+    static void escapeValue(String value, StringBuilder result) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < ' ' || c == '\\' || c == ESCAPE) {
+                result.append(ESCAPE).append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+            } else {
+                result.append(c);
+            }
+        }
+    }
+
+}
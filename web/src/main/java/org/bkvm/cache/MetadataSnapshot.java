@@ -0,0 +1,300 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import lombok.Getter;
+import org.bkvm.utils.StringUtils;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+
+/**
+ * Immutable copy of clusters, bookies and ledgers, served to the readers while the refresh writes to the database.
+ * The ledgers of a cluster are kept as fixed width records sorted by ledger id, memory mapped when a directory is
+ * configured, and the ledgers of each bookie as bitmaps. Only the records are out of the heap: the bitmaps are copies
+ * of the bookie index, and each cluster written by a generation also needs a bitmap of all its ledger ids while the
+ * generation is built.
+ * <p>
+ * A new generation is built by {@link MetadataCache#refreshSnapshot()}, merging the ledgers changed since the previous
+ * generation into its records, and replaces it with a single reference swap, so readers never wait for the refresh and
+ * see all the data of one generation. {@link MetadataCache#refreshSnapshotLists()} only replaces clusters and bookies.
+ * Nothing is modified after construction, bitmaps returned to the callers are copies.
+ */
+@Getter
+public final class MetadataSnapshot {
+
+    /**
+     * Ledgers of a cluster, fixed width records read in place from a {@link LedgerIndexFile}
+     */
+    public static final class ClusterLedgers {
+
+        private final int clusterId;
+        private final ByteBuffer records;
+        private final int count;
+        private final Map<String, Roaring64NavigableMap> ledgersByBookie;
+
+        /**
+         * @param records sorted by ledger id, not copied, must not be modified anymore
+         * @param ledgersByBookie not copied, must not be modified anymore
+         */
+        ClusterLedgers(int clusterId, ByteBuffer records, Map<String, Roaring64NavigableMap> ledgersByBookie) {
+            this.clusterId = clusterId;
+            this.records = records;
+            this.count = LedgerIndexFile.getCount(records);
+            this.ledgersByBookie = ledgersByBookie;
+        }
+
+        public int getClusterId() {
+            return clusterId;
+        }
+
+        public int size() {
+            return count;
+        }
+
+        /**
+         * @return the position of the ledger, or a negative value if it is not in the snapshot
+         */
+        public int indexOf(long ledgerId) {
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                long midLedgerId = getLedgerId(mid);
+                if (midLedgerId < ledgerId) {
+                    low = mid + 1;
+                } else if (midLedgerId > ledgerId) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(low + 1);
+        }
+
+        public long getLedgerId(int index) {
+            return records.getLong(offset(index) + LedgerIndexFile.LEDGER_ID_OFFSET);
+        }
+
+        public long getSize(int index) {
+            return records.getLong(offset(index) + LedgerIndexFile.SIZE_OFFSET);
+        }
+
+        public long getCtime(int index) {
+            return records.getLong(offset(index) + LedgerIndexFile.CTIME_OFFSET);
+        }
+
+        private static int offset(int index) {
+            return LedgerIndexFile.HEADER_SIZE + index * LedgerIndexFile.RECORD_SIZE;
+        }
+
+        private int firstIndexAfter(long ledgerId) {
+            int index = indexOf(ledgerId);
+            return index >= 0 ? index + 1 : -index - 1;
+        }
+    }
+
+    @FunctionalInterface
+    private interface LedgerVisitor {
+
+        /**
+         * @return false in order to stop
+         */
+        boolean visit(int clusterId, long ledgerId, long size);
+    }
+
+    private final long generation;
+    private final long createdAt;
+    private final List<Cluster> clusters;
+    private final List<Bookie> bookies;
+    private final Map<Integer, ClusterLedgers> ledgers;
+
+    MetadataSnapshot(long generation, List<Cluster> clusters, List<Bookie> bookies, Collection<ClusterLedgers> ledgers) {
+        this.generation = generation;
+        this.createdAt = System.currentTimeMillis();
+        this.clusters = Collections.unmodifiableList(new ArrayList<>(clusters));
+        this.bookies = Collections.unmodifiableList(new ArrayList<>(bookies));
+        Map<Integer, ClusterLedgers> byCluster = new TreeMap<>();
+        ledgers.forEach(cluster -> byCluster.put(cluster.getClusterId(), cluster));
+        this.ledgers = Collections.unmodifiableMap(byCluster);
+    }
+
+    /**
+     * @return null if the cluster has no ledgers in this snapshot
+     */
+    public ClusterLedgers getClusterLedgers(int clusterId) {
+        return ledgers.get(clusterId);
+    }
+
+    /**
+     * Searches on custom metadata need the database
+     */
+    public static boolean supports(LedgerSearchCriteria criteria) {
+        return StringUtils.isEmpty(criteria.getTerm());
+    }
+
+    public Map<String, Long> countLedgersByBookie(int clusterId) {
+        Map<String, Long> result = new HashMap<>();
+        ClusterLedgers cluster = ledgers.get(clusterId);
+        if (cluster != null) {
+            cluster.ledgersByBookie.forEach((bookieId, ledgerIds) -> result.put(bookieId, ledgerIds.getLongCardinality()));
+        }
+        return result;
+    }
+
+    /**
+     * Ledgers placed on all the given bookies (intersection) or on any of them (union)
+     */
+    public Roaring64NavigableMap getLedgersForBookies(int clusterId, Collection<String> bookieIds, boolean onAllBookies) {
+        ClusterLedgers cluster = ledgers.get(clusterId);
+        Roaring64NavigableMap result = null;
+        for (String bookieId : bookieIds) {
+            Roaring64NavigableMap onBookie = cluster == null ? null : cluster.ledgersByBookie.get(bookieId);
+            if (onBookie == null) {
+                if (onAllBookies) {
+                    return new Roaring64NavigableMap();
+                }
+                continue;
+            }
+            if (result == null) {
+                result = BookieLedgerIndex.copyOf(onBookie);
+            } else if (onAllBookies) {
+                result.and(onBookie);
+            } else {
+                result.or(onBookie);
+            }
+        }
+        return result == null ? new Roaring64NavigableMap() : result;
+    }
+
+    /**
+     * Count the ledgers matching a search and sum their sizes
+     *
+     * @param criteria a search without term, see {@link #supports(org.bkvm.cache.LedgerSearchCriteria)}
+     */
+    public LedgerSearchSummary summarize(LedgerSearchCriteria criteria) {
+        long[] totals = new long[2];
+        forEachMatch(criteria, null, (clusterId, ledgerId, size) -> {
+            totals[0]++;
+            totals[1] += size;
+            return true;
+        });
+        return new LedgerSearchSummary(totals[0], totals[1]);
+    }
+
+    /**
+     * A page of the ledgers matching a search, sorted by clusterId and ledgerId
+     *
+     * @param criteria a search without term, see {@link #supports(org.bkvm.cache.LedgerSearchCriteria)}
+     * @param after the last ledger of the previous page, null to start from the beginning
+     * @param firstResult number of ledgers to skip
+     * @param maxResults maximum number of ledgers to return, a negative value means no limit
+     */
+    public List<LedgerKey> findLedgers(LedgerSearchCriteria criteria, LedgerKey after, int firstResult, int maxResults) {
+        List<LedgerKey> result = new ArrayList<>();
+        if (maxResults == 0) {
+            return result;
+        }
+        int[] skip = {firstResult};
+        forEachMatch(criteria, after, (clusterId, ledgerId, size) -> {
+            if (skip[0] > 0) {
+                skip[0]--;
+                return true;
+            }
+            result.add(new LedgerKey(ledgerId, clusterId));
+            return maxResults < 0 || result.size() < maxResults;
+        });
+        return result;
+    }
+
+    /**
+     * Visit the matching ledgers, with the semantics of the query of
+     * {@link MetadataCache#searchLedgers(org.bkvm.cache.LedgerSearchCriteria, int, int)}
+     */
+    private void forEachMatch(LedgerSearchCriteria criteria, LedgerKey after, LedgerVisitor visitor) {
+        long maxCtime = criteria.getMinAge() == null ? Long.MAX_VALUE
+                : System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(criteria.getMinAge());
+        long minLength = criteria.getMinLength() == null ? Long.MIN_VALUE : criteria.getMinLength();
+        long maxLength = criteria.getMaxLength() == null ? Long.MAX_VALUE : criteria.getMaxLength();
+        long[] requested = null;
+        if (criteria.getLedgerIds() != null) {
+            requested = criteria.getLedgerIds().stream().mapToLong(Long::longValue).sorted().distinct().toArray();
+        }
+        for (ClusterLedgers cluster : ledgers.values()) {
+            int clusterId = cluster.getClusterId();
+            if ((criteria.getClusterId() != null && criteria.getClusterId() != clusterId)
+                    || (after != null && clusterId < after.getClusterId())) {
+                continue;
+            }
+            // the smallest set of ids drives the visit, the others are checked
+            long[] driver = requested;
+            Roaring64NavigableMap onBookie = null;
+            if (criteria.getClusterId() != null && !StringUtils.isEmpty(criteria.getBookieId())) {
+                onBookie = cluster.ledgersByBookie.get(criteria.getBookieId());
+                if (onBookie == null) {
+                    continue;
+                }
+                if (driver == null || onBookie.getLongCardinality() < driver.length) {
+                    driver = onBookie.toArray();
+                }
+            }
+            long afterLedgerId = after != null && clusterId == after.getClusterId() ? after.getLedgerId() : -1;
+            if (driver == null) {
+                for (int i = cluster.firstIndexAfter(afterLedgerId); i < cluster.size(); i++) {
+                    if (matches(cluster, i, minLength, maxLength, maxCtime)
+                            && !visitor.visit(clusterId, cluster.getLedgerId(i), cluster.getSize(i))) {
+                        return;
+                    }
+                }
+            } else {
+                for (long ledgerId : driver) {
+                    if (ledgerId <= afterLedgerId) {
+                        continue;
+                    }
+                    if (onBookie != null && !onBookie.contains(ledgerId)) {
+                        continue;
+                    }
+                    if (requested != null && driver != requested && Arrays.binarySearch(requested, ledgerId) < 0) {
+                        continue;
+                    }
+                    int i = cluster.indexOf(ledgerId);
+                    if (i >= 0 && matches(cluster, i, minLength, maxLength, maxCtime)
+                            && !visitor.visit(clusterId, ledgerId, cluster.getSize(i))) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean matches(ClusterLedgers cluster, int index, long minLength, long maxLength, long maxCtime) {
+        long size = cluster.getSize(index);
+        return size >= minLength && size <= maxLength && cluster.getCtime(index) <= maxCtime;
+    }
+
+}
@@ -0,0 +1,247 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.cache;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.bkvm.utils.StringUtils;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+
+/**
+ * In memory inverted index of the trigrams of custom metadata names and values.
+ * It answers "which ledgers may contain this substring" with bitmap intersections,
+ * so that LIKE '%term%' is only evaluated on a few candidate ledgers instead of scanning all of them.
+ * <p>
+ * Candidates are a superset of the matches: the database still checks the LIKE condition.
+ * Deleted ledgers are removed from the live set only, their postings are dropped when the cluster is rebuilt.
+ * A rebuild does not block the writers: the changes are applied to both the current and the rebuilt index.
+ */
+public class MetadataTermIndex {
+
+    static final int GRAM_LENGTH = 3;
+
+    private static final class ClusterTermIndex {
+
+        private final Map<String, Roaring64NavigableMap> nameGrams = new HashMap<>();
+        private final Map<String, Roaring64NavigableMap> valueGrams = new HashMap<>();
+        private final Roaring64NavigableMap live = new Roaring64NavigableMap();
+        private long staleLedgers;
+    }
+
+    private final Map<Integer, ClusterTermIndex> clusters = new HashMap<>();
+    /**
+     * Indexes being built from the database, they receive the changes as well until they replace the current ones
+     */
+    private final Map<Integer, ClusterTermIndex> rebuilding = new HashMap<>();
+    private boolean ready = true;
+
+    /**
+     * Index the custom metadata of a ledger
+     */
+    public synchronized void addLedger(int clusterId, long ledgerId, Iterable<LedgerMetadataEntry> entries) {
+        add(clusters.computeIfAbsent(clusterId, id -> new ClusterTermIndex()), ledgerId, entries);
+        ClusterTermIndex pending = rebuilding.get(clusterId);
+        if (pending != null) {
+            add(pending, ledgerId, entries);
+        }
+    }
+
+    public synchronized void deleteLedger(int clusterId, long ledgerId) {
+        delete(clusters.get(clusterId), ledgerId);
+        delete(rebuilding.get(clusterId), ledgerId);
+    }
+
+    public synchronized void deleteCluster(int clusterId) {
+        clusters.remove(clusterId);
+        rebuilding.remove(clusterId);
+    }
+
+    /**
+     * Start building again the index of a cluster, the current one is still used until {@link #finishRebuild(int)}
+     *
+     * @return false if the cluster is already being rebuilt
+     */
+    public synchronized boolean beginRebuild(int clusterId) {
+        if (rebuilding.containsKey(clusterId)) {
+            return false;
+        }
+        rebuilding.put(clusterId, new ClusterTermIndex());
+        return true;
+    }
+
+    /**
+     * Index a ledger read from the database by the rebuild of its cluster
+     */
+    public synchronized void addRebuiltLedger(int clusterId, long ledgerId, Iterable<LedgerMetadataEntry> entries) {
+        ClusterTermIndex pending = rebuilding.get(clusterId);
+        if (pending != null) {
+            add(pending, ledgerId, entries);
+        }
+    }
+
+    /**
+     * Replace the index of a cluster with the rebuilt one, unless the cluster has been deleted in the meantime
+     */
+    public synchronized void finishRebuild(int clusterId) {
+        ClusterTermIndex pending = rebuilding.remove(clusterId);
+        if (pending != null) {
+            clusters.put(clusterId, pending);
+        }
+    }
+
+    public synchronized void abortRebuild(int clusterId) {
+        rebuilding.remove(clusterId);
+    }
+
+    /**
+     * @param ready false while the indexes are incomplete, {@link #findCandidates(Integer, String, String)} does
+     * not narrow down the search meanwhile
+     */
+    public synchronized void setReady(boolean ready) {
+        this.ready = ready;
+    }
+
+    public synchronized boolean isReady() {
+        return ready;
+    }
+
+    private static void add(ClusterTermIndex index, long ledgerId, Iterable<LedgerMetadataEntry> entries) {
+        boolean hasEntries = false;
+        for (LedgerMetadataEntry entry : entries) {
+            addGrams(index.nameGrams, entry.getEntryName(), ledgerId);
+            addGrams(index.valueGrams, entry.getEntryValue(), ledgerId);
+            hasEntries = true;
+        }
+        if (hasEntries) {
+            index.live.addLong(ledgerId);
+        }
+    }
+
+    private static void delete(ClusterTermIndex index, long ledgerId) {
+        if (index != null && index.live.contains(ledgerId)) {
+            index.live.removeLong(ledgerId);
+            index.staleLedgers++;
+        }
+    }
+
+    /**
+     * Number of deleted ledgers whose postings are still in the index
+     */
+    public synchronized long getStaleLedgers(int clusterId) {
+        ClusterTermIndex index = clusters.get(clusterId);
+        return index == null ? 0 : index.staleLedgers;
+    }
+
+    public synchronized long getLiveLedgers(int clusterId) {
+        ClusterTermIndex index = clusters.get(clusterId);
+        return index == null ? 0 : index.live.getLongCardinality();
+    }
+
+    /**
+     * Ledgers whose metadata may match, with the same semantics of the LIKE conditions of
+     * {@link MetadataCache#searchLedgers(org.bkvm.cache.LedgerSearchCriteria, int, int)}.
+     *
+     * @param clusterId null for all the clusters
+     * @param entryName substring of the name, may be null
+     * @param entryValue substring of the value, may be null
+     * @return candidates by cluster, or null if the terms are too short to use the index or the index is not ready
+     */
+    public synchronized Map<Integer, Roaring64NavigableMap> findCandidates(Integer clusterId, String entryName, String entryValue) {
+        if (!ready) {
+            return null;
+        }
+        Set<String> nameGrams = queryGrams(entryName);
+        Set<String> valueGrams = queryGrams(entryValue);
+        if (nameGrams.isEmpty() && valueGrams.isEmpty()) {
+            return null;
+        }
+        Map<Integer, Roaring64NavigableMap> result = new HashMap<>();
+        for (Map.Entry<Integer, ClusterTermIndex> cluster : clusters.entrySet()) {
+            if (clusterId != null && !clusterId.equals(cluster.getKey())) {
+                continue;
+            }
+            ClusterTermIndex index = cluster.getValue();
+            Roaring64NavigableMap candidates = index.live;
+            candidates = intersect(candidates, index.nameGrams, nameGrams);
+            candidates = intersect(candidates, index.valueGrams, valueGrams);
+            if (!candidates.isEmpty()) {
+                result.put(cluster.getKey(), candidates == index.live ? BookieLedgerIndex.copyOf(candidates) : candidates);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param candidates not modified
+     * @return candidates itself if there are no grams, a new bitmap otherwise
+     */
+    private static Roaring64NavigableMap intersect(Roaring64NavigableMap candidates,
+                                                   Map<String, Roaring64NavigableMap> postings, Set<String> grams) {
+        Roaring64NavigableMap result = candidates;
+        for (String gram : grams) {
+            Roaring64NavigableMap posting = postings.get(gram);
+            if (posting == null) {
+                return new Roaring64NavigableMap();
+            }
+            if (result == candidates) {
+                result = BookieLedgerIndex.copyOf(candidates);
+            }
+            result.and(posting);
+            if (result.isEmpty()) {
+                return result;
+            }
+        }
+        return result;
+    }
+
+    private static void addGrams(Map<String, Roaring64NavigableMap> postings, String text, long ledgerId) {
+        for (String gram : grams(text)) {
+            postings.computeIfAbsent(gram, g -> new Roaring64NavigableMap()).addLong(ledgerId);
+        }
+    }
+
+    /**
+     * Trigrams of a LIKE pattern, the parts around the wildcards are matched independently
+     */
+    static Set<String> queryGrams(String pattern) {
+        Set<String> result = new HashSet<>();
+        if (StringUtils.isEmpty(pattern)) {
+            return result;
+        }
+        for (String fragment : pattern.split("[%_]")) {
+            result.addAll(grams(fragment));
+        }
+        return result;
+    }
+
+    static Set<String> grams(String text) {
+        Set<String> result = new HashSet<>();
+        if (StringUtils.isEmpty(text)) {
+            return result;
+        }
+        for (int i = 0; i + GRAM_LENGTH <= text.length(); i++) {
+            result.add(text.substring(i, i + GRAM_LENGTH));
+        }
+        return result;
+    }
+
+}
@@ -37,6 +37,115 @@ public final class ServerConfiguration {
     public static final String PROPERTY_METADATA_REFRESH_PERIOD = "metadata.refreshPeriodSeconds";
     public static final String PROPERTY_METADATA_REFRESH_PERIOD_DEFAULT = "300";
 
+    /**
+     * Number of clusters refreshed concurrently
+     */
+    public static final String PROPERTY_METADATA_REFRESH_THREADS = "metadata.refreshThreads";
+    public static final String PROPERTY_METADATA_REFRESH_THREADS_DEFAULT = "4";
+
+    /**
+     * Maximum time to wait for the refresh of a single cluster, use 0 in order to wait forever
+     */
+    public static final String PROPERTY_METADATA_REFRESH_CLUSTER_TIMEOUT = "metadata.refreshClusterTimeoutSeconds";
+    public static final String PROPERTY_METADATA_REFRESH_CLUSTER_TIMEOUT_DEFAULT = "3600";
+
+    /**
+     * Maximum number of concurrent ledger metadata reads for each cluster during refresh
+     */
+    public static final String PROPERTY_METADATA_REFRESH_MAX_INFLIGHT_READS = "metadata.refreshMaxInflightReads";
+    public static final String PROPERTY_METADATA_REFRESH_MAX_INFLIGHT_READS_DEFAULT = "200";
+
+    /**
+     * Number of ledgers written to the cache in a single transaction during refresh
+     */
+    public static final String PROPERTY_METADATA_REFRESH_BATCH_SIZE = "metadata.refreshBatchSize";
+    public static final String PROPERTY_METADATA_REFRESH_BATCH_SIZE_DEFAULT = "1000";
+
+    /**
+     * How often the state and the disk usage of bookies are refreshed, independently from the ledgers
+     */
+    public static final String PROPERTY_METADATA_BOOKIES_REFRESH_PERIOD = "metadata.bookiesRefreshPeriodSeconds";
+    public static final String PROPERTY_METADATA_BOOKIES_REFRESH_PERIOD_DEFAULT = "10";
+
+    /**
+     * Maximum time to wait for the refresh of the bookies of a single cluster, use 0 in order to wait forever
+     */
+    public static final String PROPERTY_METADATA_BOOKIES_REFRESH_TIMEOUT = "metadata.bookiesRefreshTimeoutSeconds";
+    public static final String PROPERTY_METADATA_BOOKIES_REFRESH_TIMEOUT_DEFAULT = "60";
+
+    /**
+     * Apply bookie state changes as soon as they are notified by the metadata service
+     */
+    public static final String PROPERTY_METADATA_BOOKIES_WATCH = "metadata.bookiesWatch";
+    public static final String PROPERTY_METADATA_BOOKIES_WATCH_DEFAULT = "true";
+
+    /**
+     * How often ledgers that are not closed are read again, use 0 in order to read them only during the refresh
+     */
+    public static final String PROPERTY_METADATA_OPEN_LEDGERS_REFRESH_PERIOD = "metadata.openLedgersRefreshPeriodSeconds";
+    public static final String PROPERTY_METADATA_OPEN_LEDGERS_REFRESH_PERIOD_DEFAULT = "30";
+
+    /**
+     * During the refresh closed ledgers are only checked for existence, this is how often their metadata is read again
+     * in order to see re-replicated ensembles
+     */
+    public static final String PROPERTY_METADATA_CLOSED_LEDGERS_VERIFY_PERIOD = "metadata.closedLedgersVerifyPeriodSeconds";
+    public static final String PROPERTY_METADATA_CLOSED_LEDGERS_VERIFY_PERIOD_DEFAULT = "86400";
+
+    /**
+     * Keep the cache up to date by watching ledger metadata, instead of rescanning every refresh period
+     */
+    public static final String PROPERTY_METADATA_INCREMENTAL_REFRESH = "metadata.incrementalRefresh";
+    public static final String PROPERTY_METADATA_INCREMENTAL_REFRESH_DEFAULT = "false";
+
+    /**
+     * Incremental refresh: how often the list of ledgers is checked for new ledgers
+     */
+    public static final String PROPERTY_METADATA_INCREMENTAL_LIST_PERIOD = "metadata.incrementalRefresh.listPeriodSeconds";
+    public static final String PROPERTY_METADATA_INCREMENTAL_LIST_PERIOD_DEFAULT = "30";
+
+    /**
+     * Incremental refresh: period of the full reconciliation scan, use 0 in order to not make it automatically
+     */
+    public static final String PROPERTY_METADATA_INCREMENTAL_FULL_REFRESH_PERIOD = "metadata.incrementalRefresh.fullRefreshPeriodSeconds";
+    public static final String PROPERTY_METADATA_INCREMENTAL_FULL_REFRESH_PERIOD_DEFAULT = "21600";
+
+    /**
+     * Compression of the ledger metadata stored in the cache: deflate or none
+     */
+    public static final String PROPERTY_METADATA_COMPRESSION = "metadata.compression";
+    public static final String PROPERTY_METADATA_COMPRESSION_DEFAULT = "deflate";
+
+    /**
+     * Maximum number of parsed ledger metadata kept in memory, use 0 in order to disable the cache
+     */
+    public static final String PROPERTY_METADATA_PARSED_CACHE_SIZE = "metadata.parsedCacheSize";
+    public static final String PROPERTY_METADATA_PARSED_CACHE_SIZE_DEFAULT = "10000";
+
+    /**
+     * Reads are served from an in memory snapshot of the cache, built again at the end of each refresh and with
+     * this period if the cache changed. Use 0 in order to read from the database.
+     */
+    public static final String PROPERTY_METADATA_SNAPSHOT_REFRESH_PERIOD = "metadata.snapshotRefreshPeriodSeconds";
+    public static final String PROPERTY_METADATA_SNAPSHOT_REFRESH_PERIOD_DEFAULT = "10";
+
+    /**
+     * Directory where the ledgers of the snapshot are written and memory mapped, so that their records (24 bytes for
+     * each ledger) are out of the heap and the first snapshot after a restart does not wait for the database.
+     * The bitmaps of the ledgers of each bookie stay on the heap.
+     * Empty in order to keep the records on the heap.
+     */
+    public static final String PROPERTY_METADATA_SNAPSHOT_DIRECTORY = "metadata.snapshotDirectory";
+    public static final String PROPERTY_METADATA_SNAPSHOT_DIRECTORY_DEFAULT = "";
+
+    /**
+     * Names of the custom metadata whose values are also stored in a table of their own, separated by commas.
+     * Searches in the form "name:value" on these names are answered by the database, on other names the ledgers
+     * having the name and the value are read and the pairs are checked in memory.
+     */
+    public static final String PROPERTY_METADATA_INDEXED_KEYS = "metadata.indexedKeys";
+    public static final String PROPERTY_METADATA_INDEXED_KEYS_DEFAULT = "";
+
     /**
      * Trigger metadata refresh at boot
      */
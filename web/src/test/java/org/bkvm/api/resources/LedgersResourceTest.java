@@ -0,0 +1,185 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.api.resources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import javax.servlet.ServletContext;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import org.apache.bookkeeper.client.BookKeeper;
+import org.apache.bookkeeper.client.api.WriteHandle;
+import org.apache.bookkeeper.conf.ClientConfiguration;
+import org.bkvm.bookkeeper.BookkeeperManager;
+import org.bkvm.cache.Ledger;
+import org.bkvm.cache.LedgerUpdate;
+import org.bkvm.config.ServerConfiguration;
+import org.bkvm.utils.BookkeeperManagerTestUtils;
+import org.junit.Test;
+
+public class LedgersResourceTest extends BookkeeperManagerTestUtils {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Override
+    protected Properties getConfiguration() {
+        Properties properties = new Properties();
+        // ledgers are written directly to the cache, a refresh would delete them
+        properties.setProperty(ServerConfiguration.PROPERTY_METADATA_REFRESH_PERIOD, "0");
+        properties.setProperty(ServerConfiguration.PROPERTY_METADATA_SNAPSHOT_REFRESH_PERIOD, "0");
+        return properties;
+    }
+
+    @Test
+    public void testExport() throws Exception {
+        BookkeeperManager bookkeeperManager = getBookkeeperManager();
+        int clusterId = getClusterId();
+        Ledger template = bookkeeperManager.getLedger(clusterId, createLedgers(1).get(0));
+        // more than one chunk, the last one partially filled
+        int count = LedgersResource.EXPORT_CHUNK_SIZE * 2 + 10;
+        List<LedgerUpdate> updates = new ArrayList<>();
+        for (long ledgerId = template.getLedgerId() + 1; ledgerId < template.getLedgerId() + count; ledgerId++) {
+            Ledger copy = new Ledger(ledgerId, clusterId, template.getSize(), template.getCtime(), template.getScanTime(),
+                    template.getSerializedMetadata(), template.getMetadataVersion());
+            copy.setMetadata(template.getMetadata());
+            updates.add(new LedgerUpdate(copy, Collections.emptyList(), Collections.emptyList()));
+        }
+        getMetadataCache().updateLedgers(updates);
+
+        Response response = newResource(bookkeeperManager).exportLedgers(null, null, null, null, null, null, null);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write(out);
+        String body = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(body.endsWith("\n"));
+        String[] lines = body.split("\n");
+        assertEquals(count, lines.length);
+        long expectedId = template.getLedgerId();
+        for (String line : lines) {
+            JsonNode ledger = MAPPER.readTree(line);
+            assertEquals(expectedId++, ledger.get("id").asLong());
+            assertEquals(clusterId, ledger.get("clusterId").asInt());
+            assertEquals("value1", ledger.get("metadata").get("meta1").asText());
+        }
+    }
+
+    @Test
+    public void testPlacement() throws Exception {
+        BookkeeperManager bookkeeperManager = getBookkeeperManager();
+        int clusterId = getClusterId();
+        List<Long> ledgerIds = createLedgers(3);
+        String bookieId = bookkeeperManager.getLedgerMetadata(clusterId, ledgerIds.get(0))
+                .getAllEnsembles().values().iterator().next().get(0).toString();
+        LedgersResource resource = newResource(bookkeeperManager);
+
+        LedgersResource.LedgerPlacementResult all = resource.getLedgerPlacement(clusterId,
+                Arrays.asList(bookieId), null, null, 0);
+        assertEquals(3, all.getTotalLedgers());
+        assertEquals(ledgerIds, all.getLedgerIds());
+        LedgersResource.LedgerPlacementResult firstPage = resource.getLedgerPlacement(clusterId,
+                Arrays.asList(bookieId), null, null, 2);
+        assertEquals(3, firstPage.getTotalLedgers());
+        assertEquals(ledgerIds.subList(0, 2), firstPage.getLedgerIds());
+
+        // the ledgers have a single copy
+        assertEquals(0, resource.getLedgerPlacement(clusterId,
+                Arrays.asList(bookieId, "other:3181"), "all", null, 0).getTotalLedgers());
+        assertEquals(3, resource.getLedgerPlacement(clusterId,
+                Arrays.asList(bookieId, "other:3181"), "any", null, 0).getTotalLedgers());
+        assertEquals(0, resource.getLedgerPlacement(clusterId + 1,
+                Arrays.asList(bookieId), null, null, 0).getTotalLedgers());
+
+        assertBadRequest(() -> resource.getLedgerPlacement(null, Arrays.asList(bookieId), null, null, 0));
+        assertBadRequest(() -> resource.getLedgerPlacement(clusterId, Collections.emptyList(), null, null, 0));
+        // the topology is not enabled
+        assertBadRequest(() -> resource.getLedgerPlacement(clusterId, null, null, "zone1", 0));
+    }
+
+    @FunctionalInterface
+    private interface Call {
+
+        void run() throws Exception;
+    }
+
+    private static void assertBadRequest(Call call) throws Exception {
+        try {
+            call.run();
+            fail();
+        } catch (WebApplicationException err) {
+            assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), err.getResponse().getStatus());
+        }
+    }
+
+    private int getClusterId() throws Exception {
+        return getBookkeeperManager().getAllClusters().iterator().next().getClusterId();
+    }
+
+    /**
+     * Create closed ledgers with a single copy and read them into the cache
+     *
+     * @return the ids of the ledgers, sorted
+     */
+    private List<Long> createLedgers(int count) throws Exception {
+        ClientConfiguration bkConf = new ClientConfiguration();
+        bkConf.setMetadataServiceUri(getMetadataServiceUri());
+        List<Long> result = new ArrayList<>();
+        try (BookKeeper bk = BookKeeper.forConfig(bkConf).build()) {
+            for (int i = 0; i < count; i++) {
+                WriteHandle handle = bk.newCreateLedgerOp()
+                        .withAckQuorumSize(1)
+                        .withEnsembleSize(1)
+                        .withWriteQuorumSize(1)
+                        .withPassword("p".getBytes())
+                        .withCustomMetadata(Map.of("meta1", "value1".getBytes()))
+                        .execute().get();
+                handle.close();
+                result.add(handle.getId());
+            }
+        }
+        getBookkeeperManager().doRefreshMetadataCache();
+        Collections.sort(result);
+        return result;
+    }
+
+    static LedgersResource newResource(BookkeeperManager bookkeeperManager) throws Exception {
+        ServletContext context = mock(ServletContext.class);
+        when(context.getAttribute("bookkeeper")).thenReturn(bookkeeperManager);
+        LedgersResource resource = new LedgersResource();
+        Field field = AbstractBookkeeperResource.class.getDeclaredField("servletContext");
+        field.setAccessible(true);
+        field.set(resource, context);
+        return resource;
+    }
+
+}
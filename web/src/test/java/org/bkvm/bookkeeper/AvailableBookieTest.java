@@ -20,9 +20,14 @@
 package org.bkvm.bookkeeper;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import java.util.Collection;
+import org.bkvm.bookkeeper.BookkeeperManager.ClusterRefreshStatus;
+import org.bkvm.bookkeeper.BookkeeperManager.RefreshStatus;
 import org.bkvm.cache.Bookie;
+import org.bkvm.cache.Cluster;
 import org.bkvm.utils.BookkeeperManagerTestUtils;
 import org.junit.Test;
 
@@ -64,4 +69,41 @@ public class AvailableBookieTest extends BookkeeperManagerTestUtils {
         assertEquals(1, allBookies.size());
     }
 
+    @Test
+    public void testRefreshBookiesWithoutLedgerScan() throws Exception {
+        startBookie(false, -1);
+
+        final BookkeeperManager bookkeeperManager = getBookkeeperManager();
+        long lastRefresh = bookkeeperManager.getRefreshWorkerStatus().getLastMetadataCacheRefresh();
+        bookkeeperManager.refreshBookies();
+        Collection<Bookie> allBookies = bookkeeperManager.getAllBookies();
+        assertEquals(2, allBookies.size());
+        for (Bookie bookie : allBookies) {
+            assertEquals(Bookie.STATE_AVAILABLE, bookie.getState());
+        }
+        assertEquals(lastRefresh, bookkeeperManager.getRefreshWorkerStatus().getLastMetadataCacheRefresh());
+    }
+
+    @Test
+    public void testFailingClusterDoesNotBlockOthers() throws Exception {
+        Cluster broken = createCluster("broken", "zk+null://127.0.0.1:1/ledgers", "zkTimeout=1000");
+
+        final BookkeeperManager bookkeeperManager = getBookkeeperManager();
+        bookkeeperManager.doRefreshMetadataCache();
+        Collection<Bookie> allBookies = bookkeeperManager.getAllBookies();
+        assertEquals(1, allBookies.size());
+
+        ClusterRefreshStatus brokenStatus = bookkeeperManager.getRefreshWorkerStatus()
+                .getClusterRefreshStatus().get(broken.getClusterId());
+        assertEquals(RefreshStatus.IDLE, brokenStatus.getStatus());
+        assertNotNull(brokenStatus.getLastError());
+
+        int healthyClusterId = allBookies.iterator().next().getClusterId();
+        ClusterRefreshStatus healthyStatus = bookkeeperManager.getRefreshWorkerStatus()
+                .getClusterRefreshStatus().get(healthyClusterId);
+        assertEquals(RefreshStatus.IDLE, healthyStatus.getStatus());
+        assertNull(healthyStatus.getLastError());
+        assertTrue(healthyStatus.getLastRefreshEnd() >= healthyStatus.getLastRefreshStart());
+    }
+
 }
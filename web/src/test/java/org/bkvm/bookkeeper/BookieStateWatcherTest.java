@@ -0,0 +1,82 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.bookkeeper;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.bookkeeper.discover.RegistrationClient;
+import org.apache.bookkeeper.discover.RegistrationClient.RegistrationListener;
+import org.apache.bookkeeper.net.BookieId;
+import org.apache.bookkeeper.versioning.LongVersion;
+import org.apache.bookkeeper.versioning.Versioned;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class BookieStateWatcherTest {
+
+    @Test
+    public void testCoalesceNotifications() throws Exception {
+        RegistrationClient registrationClient = mock(RegistrationClient.class);
+        when(registrationClient.watchWritableBookies(any(RegistrationListener.class)))
+                .thenReturn(CompletableFuture.completedFuture(null));
+        when(registrationClient.watchReadOnlyBookies(any(RegistrationListener.class)))
+                .thenReturn(CompletableFuture.completedFuture(null));
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        List<String> changes = new ArrayList<>();
+        try (BookieStateWatcher watcher = new BookieStateWatcher(1, registrationClient, executor, 500,
+                (clusterId, writable, readOnly) -> changes.add(writable + " " + readOnly))) {
+            watcher.start();
+            ArgumentCaptor<RegistrationListener> writableListener = ArgumentCaptor.forClass(RegistrationListener.class);
+            ArgumentCaptor<RegistrationListener> readOnlyListener = ArgumentCaptor.forClass(RegistrationListener.class);
+            verify(registrationClient).watchWritableBookies(writableListener.capture());
+            verify(registrationClient).watchReadOnlyBookies(readOnlyListener.capture());
+
+            BookieId bookie1 = BookieId.parse("bookie1:3181");
+            BookieId bookie2 = BookieId.parse("bookie2:3181");
+            // the registration notifies both lists, then bookie2 turns read-only, which changes both lists again
+            writableListener.getValue().onBookiesChanged(versioned(Set.of(bookie1, bookie2)));
+            readOnlyListener.getValue().onBookiesChanged(versioned(Set.of()));
+            writableListener.getValue().onBookiesChanged(versioned(Set.of(bookie1)));
+            readOnlyListener.getValue().onBookiesChanged(versioned(Set.of(bookie2)));
+
+            executor.submit(() -> null).get();
+            assertEquals(List.of(), changes);
+            // the pending run is the only one, it sees the latest lists
+            executor.schedule(() -> null, 1000, TimeUnit.MILLISECONDS).get();
+            assertEquals(List.of("[bookie1:3181] [bookie2:3181]"), changes);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Versioned<Set<BookieId>> versioned(Set<BookieId> bookies) {
+        return new Versioned<>(bookies, new LongVersion(1));
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.bookkeeper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import java.util.Collection;
+import java.util.Properties;
+import org.bkvm.cache.Bookie;
+import org.bkvm.config.ServerConfiguration;
+import org.bkvm.utils.BookkeeperManagerTestUtils;
+import org.junit.Test;
+
+public class BookieWatchTest extends BookkeeperManagerTestUtils {
+
+    @Override
+    protected Properties getConfiguration() {
+        Properties properties = new Properties();
+        // no polling, changes must come from the watchers
+        properties.setProperty(ServerConfiguration.PROPERTY_METADATA_BOOKIES_REFRESH_PERIOD, "0");
+        properties.setProperty(ServerConfiguration.PROPERTY_METADATA_BOOKIES_WATCH, "true");
+        return properties;
+    }
+
+    @Test
+    public void testBookieGoesDown() throws Exception {
+        startBookie(false, -1);
+
+        final BookkeeperManager bookkeeperManager = getBookkeeperManager();
+        bookkeeperManager.refreshBookies();
+        Collection<Bookie> allBookies = bookkeeperManager.getAllBookies();
+        assertEquals(2, allBookies.size());
+
+        closeOneBookie();
+        long deadline = System.currentTimeMillis() + 30_000;
+        long down = 0;
+        while (down == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+            down = bookkeeperManager.getAllBookies().stream()
+                    .filter(b -> b.getState() == Bookie.STATE_DOWN)
+                    .count();
+        }
+        assertEquals(1, down);
+        for (Bookie bookie : bookkeeperManager.getAllBookies()) {
+            assertNotNull(bookie.getStateChangeTime());
+        }
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.bookkeeper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.bookkeeper.client.api.LedgerMetadata;
+import org.apache.bookkeeper.meta.LedgerManager;
+import org.apache.bookkeeper.proto.BookkeeperInternalCallbacks.LedgerMetadataListener;
+import org.apache.bookkeeper.versioning.LongVersion;
+import org.apache.bookkeeper.versioning.Versioned;
+import org.bkvm.cache.Ledger;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class IncrementalLedgerWatcherTest {
+
+    @Test
+    public void testSkipKnownVersion() throws Exception {
+        LedgerManager ledgerManager = mock(LedgerManager.class);
+        List<String> changes = new ArrayList<>();
+        IncrementalLedgerWatcher watcher = new IncrementalLedgerWatcher(1, ledgerManager, Runnable::run,
+                new IncrementalLedgerWatcher.LedgerChangeHandler() {
+            @Override
+            public void ledgerChanged(int clusterId, long ledgerId, Versioned<LedgerMetadata> metadata) {
+                changes.add("changed " + ledgerId + " " + BookkeeperManager.getMetadataVersion(metadata));
+            }
+
+            @Override
+            public void ledgerDeleted(int clusterId, long ledgerId) {
+                changes.add("deleted " + ledgerId);
+            }
+        });
+        assertTrue(watcher.watch(1, 3));
+        assertFalse(watcher.watch(1, 3));
+        assertTrue(watcher.watch(2, Ledger.UNKNOWN_VERSION));
+        assertEquals(2, watcher.getWatchedLedgersCount());
+        ArgumentCaptor<LedgerMetadataListener> listener = ArgumentCaptor.forClass(LedgerMetadataListener.class);
+        verify(ledgerManager, times(2)).registerLedgerMetadataListener(anyLong(), listener.capture());
+
+        // registration notifies the current metadata, ledger 1 has already been read
+        listener.getValue().onChanged(1, versioned(3));
+        listener.getValue().onChanged(2, versioned(3));
+        listener.getValue().onChanged(1, versioned(4));
+        listener.getValue().onChanged(1, null);
+        assertEquals(List.of("changed 2 3", "changed 1 4", "deleted 1"), changes);
+        assertFalse(watcher.isWatched(1));
+        assertTrue(watcher.isWatched(2));
+
+        watcher.close();
+        verify(ledgerManager).unregisterLedgerMetadataListener(eq(2L), any(LedgerMetadataListener.class));
+        assertEquals(0, watcher.getWatchedLedgersCount());
+    }
+
+    @Test
+    public void testClosedLedgersAreNotWatched() throws Exception {
+        LedgerManager ledgerManager = mock(LedgerManager.class);
+        List<String> changes = new ArrayList<>();
+        IncrementalLedgerWatcher watcher = new IncrementalLedgerWatcher(1, ledgerManager, Runnable::run,
+                new IncrementalLedgerWatcher.LedgerChangeHandler() {
+            @Override
+            public void ledgerChanged(int clusterId, long ledgerId, Versioned<LedgerMetadata> metadata) {
+                changes.add("changed " + ledgerId + " " + BookkeeperManager.getMetadataVersion(metadata));
+            }
+
+            @Override
+            public void ledgerDeleted(int clusterId, long ledgerId) {
+                changes.add("deleted " + ledgerId);
+            }
+        });
+        // a closed ledger gets no listener, and listing it again does not watch it
+        watcher.ledgerClosed(1);
+        assertFalse(watcher.watch(1, Ledger.UNKNOWN_VERSION));
+        assertTrue(watcher.isClosed(1));
+        assertEquals(0, watcher.getWatchedLedgersCount());
+
+        assertTrue(watcher.watch(3, 5));
+        assertTrue(watcher.watch(2, 7));
+        ArgumentCaptor<LedgerMetadataListener> listener = ArgumentCaptor.forClass(LedgerMetadataListener.class);
+        verify(ledgerManager, times(2)).registerLedgerMetadataListener(anyLong(), listener.capture());
+
+        // the notification that closes a ledger is applied, then the listener is dropped
+        listener.getValue().onChanged(3, versioned(5));
+        listener.getValue().onChanged(2, versioned(8, true));
+        assertEquals(List.of("changed 2 8"), changes);
+        assertFalse(watcher.isWatched(2));
+        assertTrue(watcher.isClosed(2));
+        assertTrue(watcher.isWatched(3));
+        verify(ledgerManager).unregisterLedgerMetadataListener(eq(2L), any(LedgerMetadataListener.class));
+        assertFalse(watcher.watch(2, Ledger.UNKNOWN_VERSION));
+        assertEquals(1, watcher.getWatchedLedgersCount());
+
+        watcher.close();
+    }
+
+    private static Versioned<LedgerMetadata> versioned(long version) {
+        return versioned(version, false);
+    }
+
+    private static Versioned<LedgerMetadata> versioned(long version, boolean closed) {
+        LedgerMetadata metadata = mock(LedgerMetadata.class);
+        when(metadata.isClosed()).thenReturn(closed);
+        return new Versioned<>(metadata, new LongVersion(version));
+    }
+
+}
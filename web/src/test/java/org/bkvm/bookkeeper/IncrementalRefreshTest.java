@@ -0,0 +1,102 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.bookkeeper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.util.Map;
+import java.util.Properties;
+import org.apache.bookkeeper.client.BookKeeper;
+import org.apache.bookkeeper.client.api.LedgerMetadata;
+import org.apache.bookkeeper.client.api.WriteHandle;
+import org.apache.bookkeeper.conf.ClientConfiguration;
+import org.bkvm.config.ServerConfiguration;
+import org.bkvm.utils.BookkeeperManagerTestUtils;
+import org.junit.Test;
+
+public class IncrementalRefreshTest extends BookkeeperManagerTestUtils {
+
+    @Override
+    protected Properties getConfiguration() {
+        Properties properties = new Properties();
+        properties.setProperty(ServerConfiguration.PROPERTY_METADATA_INCREMENTAL_REFRESH, "true");
+        properties.setProperty(ServerConfiguration.PROPERTY_METADATA_INCREMENTAL_LIST_PERIOD, "1");
+        properties.setProperty(ServerConfiguration.PROPERTY_METADATA_INCREMENTAL_FULL_REFRESH_PERIOD, "0");
+        return properties;
+    }
+
+    @Test
+    public void testIncrementalRefresh() throws Exception {
+        ClientConfiguration bkConf = new ClientConfiguration();
+        bkConf.setMetadataServiceUri(getMetadataServiceUri());
+
+        try (BookKeeper bk = BookKeeper.forConfig(bkConf).build()) {
+            WriteHandle first = createLedger(bk);
+            final BookkeeperManager bookkeeperManager = getBookkeeperManager();
+            bookkeeperManager.doRefreshMetadataCache();
+            assertEquals(1, bookkeeperManager.getAllLedgers().size());
+            int clusterId = bookkeeperManager.getAllClusters().iterator().next().getClusterId();
+
+            // new ledger, discovered by listing
+            WriteHandle second = createLedger(bk);
+            waitFor(() -> bookkeeperManager.getAllLedgers().size() == 2);
+
+            // closed ledger, notified by the listener
+            second.append("test".getBytes());
+            second.close();
+            waitFor(() -> {
+                LedgerMetadata metadata = bookkeeperManager.getLedgerMetadata(clusterId, second.getId());
+                return metadata != null && metadata.isClosed();
+            });
+
+            // deleted ledger, notified by the listener
+            bk.newDeleteLedgerOp()
+                    .withLedgerId(first.getId())
+                    .execute().get();
+            waitFor(() -> bookkeeperManager.getAllLedgers().size() == 1);
+        }
+    }
+
+    private static WriteHandle createLedger(BookKeeper bk) throws Exception {
+        return bk.newCreateLedgerOp()
+                .withAckQuorumSize(1)
+                .withEnsembleSize(1)
+                .withWriteQuorumSize(1)
+                .withPassword("p".getBytes())
+                .withCustomMetadata(Map.of("meta1", "value1".getBytes()))
+                .execute().get();
+    }
+
+    private interface Condition {
+
+        boolean getAsBoolean() throws Exception;
+    }
+
+    private static void waitFor(Condition condition) throws Exception {
+        for (int i = 0; i < 100; i++) {
+            if (condition.getAsBoolean()) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+}
@@ -0,0 +1,55 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.bookkeeper;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import herddb.jdbc.HerdDBEmbeddedDataSource;
+import java.util.Properties;
+import org.bkvm.cache.MetadataCache;
+import org.bkvm.config.PropertiesConfigurationStore;
+import org.bkvm.config.ServerConfiguration;
+import org.junit.Test;
+
+public class MetadataCompressionConfigurationTest {
+
+    @Test
+    public void testInvalidCompression() throws Exception {
+        try (HerdDBEmbeddedDataSource datasource = new HerdDBEmbeddedDataSource();) {
+            datasource.setUrl("jdbc:herddb:local");
+            try (MetadataCache metadataCache = new MetadataCache(datasource)) {
+                for (String compression : new String[]{"none", "DEFLATE"}) {
+                    Properties properties = new Properties();
+                    properties.setProperty(ServerConfiguration.PROPERTY_METADATA_COMPRESSION, compression);
+                    new BookkeeperManager(new PropertiesConfigurationStore(properties), metadataCache).close();
+                }
+                Properties properties = new Properties();
+                properties.setProperty(ServerConfiguration.PROPERTY_METADATA_COMPRESSION, "gzip");
+                try {
+                    new BookkeeperManager(new PropertiesConfigurationStore(properties), metadataCache);
+                    fail();
+                } catch (BookkeeperManagerException err) {
+                    assertTrue(err.getMessage(), err.getMessage().contains("metadata.compression=gzip"));
+                }
+            }
+        }
+    }
+
+}
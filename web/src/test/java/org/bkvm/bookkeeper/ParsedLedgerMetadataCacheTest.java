@@ -0,0 +1,105 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.bookkeeper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import org.apache.bookkeeper.client.api.LedgerMetadata;
+import org.bkvm.cache.Ledger;
+import org.junit.Test;
+
+public class ParsedLedgerMetadataCacheTest {
+
+    @Test
+    public void testGenerationAndEviction() {
+        ParsedLedgerMetadataCache cache = new ParsedLedgerMetadataCache(2);
+        Timestamp scan1 = new Timestamp(1000);
+        Ledger ledger1 = new Ledger(1, 1, 100, scan1, scan1, null, 5);
+        LedgerMetadata metadata1 = mock(LedgerMetadata.class);
+        assertNull(cache.get(ledger1));
+        cache.put(ledger1, metadata1, cache.getInvalidationSequence());
+        assertSame(metadata1, cache.get(ledger1));
+        assertSame(ledger1, cache.get(1, 1).getLedger());
+
+        // same ledger written again by a later scan
+        Timestamp scan2 = new Timestamp(2000);
+        assertNull(cache.get(new Ledger(1, 1, 100, scan1, scan2, null, 5)));
+        assertNull(cache.get(new Ledger(1, 1, 100, scan1, scan1, null, 6)));
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+
+        Ledger ledger2 = new Ledger(2, 1, 100, scan1, scan1, null, 5);
+        Ledger ledger3 = new Ledger(3, 1, 100, scan1, scan1, null, 5);
+        cache.put(ledger2, mock(LedgerMetadata.class), cache.getInvalidationSequence());
+        // ledger 2 is the least recently used one
+        cache.get(ledger1);
+        cache.put(ledger3, mock(LedgerMetadata.class), cache.getInvalidationSequence());
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get(1, 2));
+
+        cache.invalidate(1, Arrays.asList(1L));
+        assertNull(cache.get(1, 1));
+        cache.invalidateCluster(1);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testDisabled() {
+        ParsedLedgerMetadataCache cache = new ParsedLedgerMetadataCache(0);
+        Ledger ledger = new Ledger(1, 1, 100, new Timestamp(1000), new Timestamp(1000), null);
+        assertFalse(cache.put(ledger, mock(LedgerMetadata.class), cache.getInvalidationSequence()));
+        assertNull(cache.get(ledger));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testRowReadBeforeInvalidation() {
+        ParsedLedgerMetadataCache cache = new ParsedLedgerMetadataCache(10);
+        Timestamp scan1 = new Timestamp(1000);
+        Ledger ledger1 = new Ledger(1, 1, 100, scan1, scan1, null, 5);
+
+        // the row is read, then the ledger is written and invalidated before the put
+        long sequence = cache.getInvalidationSequence();
+        cache.invalidate(1, 1);
+        assertFalse(cache.put(ledger1, mock(LedgerMetadata.class), sequence));
+        assertNull(cache.get(1, 1));
+
+        // other ledgers are not affected
+        Ledger ledger2 = new Ledger(2, 1, 100, scan1, scan1, null, 5);
+        assertTrue(cache.put(ledger2, mock(LedgerMetadata.class), sequence));
+        assertSame(ledger2, cache.get(1, 2).getLedger());
+
+        // a row read after the invalidation is cached
+        assertTrue(cache.put(ledger1, mock(LedgerMetadata.class), cache.getInvalidationSequence()));
+        assertSame(ledger1, cache.get(1, 1).getLedger());
+
+        sequence = cache.getInvalidationSequence();
+        cache.invalidateCluster(1);
+        assertFalse(cache.put(ledger2, mock(LedgerMetadata.class), sequence));
+    }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.Test;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+
+public class BookieLedgerIndexTest {
+
+    @Test
+    public void testPlacement() {
+        BookieLedgerIndex index = new BookieLedgerIndex();
+        index.updateLedgers(1, Roaring64NavigableMap.bitmapOf(1, 2, 3), Arrays.asList(
+                new LedgerBookie(1, "a", 1), new LedgerBookie(1, "b", 1),
+                new LedgerBookie(2, "b", 1), new LedgerBookie(2, "c", 1),
+                new LedgerBookie(3, "a", 1), new LedgerBookie(3, "c", 1)));
+        index.updateLedgers(2, Roaring64NavigableMap.bitmapOf(1), Arrays.asList(new LedgerBookie(1, "a", 2)));
+
+        assertArrayEquals(new long[]{1, 3}, index.getLedgers(1, "a").toArray());
+        assertArrayEquals(new long[]{1}, index.getLedgers(1, Arrays.asList("a", "b"), true).toArray());
+        assertArrayEquals(new long[]{1, 2, 3}, index.getLedgers(1, Arrays.asList("a", "b"), false).toArray());
+        assertTrue(index.getLedgers(1, Arrays.asList("a", "unknown"), true).isEmpty());
+        assertArrayEquals(new long[]{1, 3}, index.getLedgers(1, Arrays.asList("a", "unknown"), false).toArray());
+
+        // ledger 3 moves from a to b
+        index.updateLedgers(1, Roaring64NavigableMap.bitmapOf(3), Arrays.asList(new LedgerBookie(3, "b", 1), new LedgerBookie(3, "c", 1)));
+        Map<String, Long> counts = index.countLedgers(1);
+        assertEquals(Long.valueOf(1), counts.get("a"));
+        assertEquals(Long.valueOf(3), counts.get("b"));
+        assertEquals(Long.valueOf(2), counts.get("c"));
+
+        index.deleteLedgers(1, Roaring64NavigableMap.bitmapOf(1));
+        assertEquals(Collections.singletonMap("a", 1L), index.countLedgers(2));
+        assertTrue(index.getLedgers(1, "a").isEmpty());
+        assertEquals(2, index.countLedgers(1).size());
+
+        index.deleteCluster(1);
+        assertTrue(index.countLedgers(1).isEmpty());
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import herddb.jdbc.HerdDBEmbeddedDataSource;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+
+/**
+ * Tables written by a previous version
+ */
+public class CacheSchemaTest {
+
+    @Test
+    public void testMissingColumns() throws Exception {
+        try (HerdDBEmbeddedDataSource datasource = new HerdDBEmbeddedDataSource();) {
+            datasource.setUrl("jdbc:herddb:local");
+            try (Connection connection = datasource.getConnection();
+                 Statement statement = connection.createStatement()) {
+                statement.executeUpdate("CREATE TABLE cluster (clusterId int primary key, name string,"
+                        + " metadataServiceUri string, configuration string)");
+                statement.executeUpdate("INSERT INTO cluster (clusterId, name, metadataServiceUri, configuration)"
+                        + " VALUES (1, 'test', 'zk+null://localhost/ledgers', '')");
+                statement.executeUpdate("CREATE TABLE ledger (ledgerId long, clusterId int, size long, ctime timestamp,"
+                        + " scanTime timestamp, serializedMetadata string, primary key (ledgerId, clusterId))");
+                statement.executeUpdate("INSERT INTO ledger (ledgerId, clusterId, size, serializedMetadata) VALUES (1, 1, 10, '')");
+                statement.executeUpdate("CREATE TABLE ledger_metadata (ledgerId long, clusterId int, entryName string,"
+                        + " entryValue string, primary key (ledgerId, clusterId, entryName))");
+            }
+            java.sql.Timestamp now = new java.sql.Timestamp(System.currentTimeMillis());
+            try (MetadataCache metadataCache = new MetadataCache(datasource)) {
+                // the cache has been dropped, the configuration is kept
+                assertTrue(metadataCache.listLedgers().isEmpty());
+                Cluster cluster = metadataCache.getCluster(1);
+                assertEquals("test", cluster.getName());
+                cluster.setDescriptionPattern("application");
+                metadataCache.updateCluster(cluster);
+
+                metadataCache.updateLedger(new Ledger(2, 1, 100, now, now, "", 3), Collections.emptyList(),
+                        Arrays.asList(new LedgerMetadataEntry(2, 1, "application", "pulsar")));
+                assertEquals(1, metadataCache.searchLedgers("pulsar", null, 1, null).size());
+            }
+            try (MetadataCache metadataCache = new MetadataCache(datasource)) {
+                // nothing to upgrade anymore
+                assertEquals(3, metadataCache.getLedgerMetadata(1, 2).getMetadataVersion());
+                assertEquals("application", metadataCache.getCluster(1).getDescriptionPattern());
+            }
+        }
+    }
+
+    @Test
+    public void testLedgerBookieKey() throws Exception {
+        try (HerdDBEmbeddedDataSource datasource = new HerdDBEmbeddedDataSource();) {
+            datasource.setUrl("jdbc:herddb:local");
+            try (MetadataCache metadataCache = new MetadataCache(datasource)) {
+                metadataCache.updateCluster(new Cluster(1, "test", "zk+null://localhost/ledgers"));
+            }
+            try (Connection connection = datasource.getConnection();
+                 Statement statement = connection.createStatement()) {
+                // bookies were stored by id before bookie_dictionary
+                statement.executeUpdate("DROP TABLE ledger_bookie");
+                statement.executeUpdate("CREATE TABLE ledger_bookie (ledgerId long, clusterId int, bookieId string,"
+                        + " primary key (ledgerId, clusterId, bookieId))");
+                statement.executeUpdate("INSERT INTO ledger_bookie (ledgerId, clusterId, bookieId) VALUES (1, 1, 'localhost:1234')");
+            }
+            java.sql.Timestamp now = new java.sql.Timestamp(System.currentTimeMillis());
+            try (MetadataCache metadataCache = new MetadataCache(datasource)) {
+                assertTrue(metadataCache.getLedgersForBookie(1, "localhost:1234").isEmpty());
+                metadataCache.updateLedger(new Ledger(1, 1, 100, now, now, ""),
+                        Arrays.asList(new LedgerBookie(1, "localhost:1234", 1), new LedgerBookie(1, "localhost:1235", 1)),
+                        Collections.emptyList());
+                assertEquals(Arrays.asList(1L), metadataCache.getLedgersForBookie(1, "localhost:1234"));
+                assertEquals(2, metadataCache.getBookieForLedger(1, 1).size());
+                assertEquals("test", metadataCache.getCluster(1).getName());
+            }
+        }
+    }
+
+}
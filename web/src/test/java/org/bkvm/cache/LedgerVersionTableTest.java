@@ -0,0 +1,62 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class LedgerVersionTableTest {
+
+    @Test
+    public void testMarkSeen() {
+        LedgerVersionTable table = new LedgerVersionTable(2);
+        for (long ledgerId = 0; ledgerId < 100; ledgerId += 10) {
+            table.add(ledgerId, ledgerId + 1, ledgerId < 50);
+        }
+        assertEquals(10, table.size());
+        assertTrue(table.indexOf(5) < 0);
+        int index = table.indexOf(30);
+        assertEquals(30, table.getLedgerIdAt(index));
+        assertEquals(31, table.getVersionAt(index));
+        assertTrue(table.isClosedAt(index));
+        assertFalse(table.isClosedAt(table.indexOf(60)));
+
+        for (long ledgerId = 0; ledgerId < 100; ledgerId += 20) {
+            table.markSeenAt(table.indexOf(ledgerId));
+        }
+        assertEquals(5, table.countNotSeen());
+        List<Long> notSeen = new ArrayList<>();
+        table.forEachNotSeen(notSeen::add);
+        assertEquals(Arrays.asList(10L, 30L, 50L, 70L, 90L), notSeen);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNotSorted() {
+        LedgerVersionTable table = new LedgerVersionTable();
+        table.add(2, 0, false);
+        table.add(1, 0, false);
+    }
+
+}
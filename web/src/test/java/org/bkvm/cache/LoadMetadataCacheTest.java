@@ -20,6 +20,7 @@
 package org.bkvm.cache;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import org.apache.bookkeeper.client.BookKeeper;
@@ -45,12 +46,23 @@ public class LoadMetadataCacheTest extends BookkeeperManagerTestUtils {
         final BookkeeperManager bookkeeperManager = getBookkeeperManager();
         bookkeeperManager.doRefreshMetadataCache();
         assertEquals(2, bookkeeperManager.getAllLedgers().size());
+        int clusterId = bookkeeperManager.getAllClusters().iterator().next().getClusterId();
+        Ledger unchanged = bookkeeperManager.getLedger(clusterId, wr0.getId());
+        assertNotEquals(Ledger.UNKNOWN_VERSION, unchanged.getMetadataVersion());
+        // the ensembles are read from the cache, without the ledger metadata
+        assertEquals(BookkeeperManager.buildEnsembleMap(bookkeeperManager.getLedgerMetadata(unchanged)),
+                bookkeeperManager.getEnsembles(unchanged));
 
         bk.newDeleteLedgerOp()
                 .withLedgerId(wr.getId())
                 .execute().get();
         bookkeeperManager.doRefreshMetadataCache();
         assertEquals(1, bookkeeperManager.getAllLedgers().size());
+
+        // same metadata version, the ledger has not been written again
+        Ledger afterRefresh = bookkeeperManager.getLedger(clusterId, wr0.getId());
+        assertEquals(unchanged.getMetadataVersion(), afterRefresh.getMetadataVersion());
+        assertEquals(unchanged.getScanTime(), afterRefresh.getScanTime());
     }
 
     private static WriteHandle createLedger(BookKeeper bk) throws InterruptedException, ExecutionException {
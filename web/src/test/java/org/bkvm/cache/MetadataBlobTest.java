@@ -0,0 +1,114 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.apache.bookkeeper.client.LedgerMetadataBuilder;
+import org.apache.bookkeeper.client.api.DigestType;
+import org.apache.bookkeeper.client.api.LedgerMetadata;
+import org.apache.bookkeeper.meta.LedgerMetadataSerDe;
+import org.apache.bookkeeper.net.BookieId;
+import org.junit.Test;
+
+public class MetadataBlobTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        byte[] data = "BookieMetadataFormatVersion\t3\nbookie-1.bookie.pulsar.svc.cluster.local:3181 bookie-1.bookie.pulsar.svc.cluster.local:3181"
+                .getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = MetadataBlob.encode(data, true);
+        assertEquals(MetadataBlob.FORMAT_DEFLATE, compressed[0]);
+        assertTrue(compressed.length < data.length);
+        assertArrayEquals(data, MetadataBlob.decode(compressed));
+
+        byte[] raw = MetadataBlob.encode(data, false);
+        assertEquals(MetadataBlob.FORMAT_RAW, raw[0]);
+        assertArrayEquals(data, MetadataBlob.decode(raw));
+
+        // data that does not compress is kept raw
+        byte[] random = new byte[100];
+        new Random(1).nextBytes(random);
+        byte[] notCompressed = MetadataBlob.encode(random, true);
+        assertEquals(MetadataBlob.FORMAT_RAW, notCompressed[0]);
+        assertArrayEquals(random, MetadataBlob.decode(notCompressed));
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownFormat() throws Exception {
+        MetadataBlob.decode(new byte[]{9, 1, 2});
+    }
+
+    /**
+     * Stored size of the metadata of Pulsar ledgers, compared to the Base64 string used before
+     */
+    @Test
+    public void testStoredSize() throws Exception {
+        LedgerMetadataSerDe serDe = new LedgerMetadataSerDe();
+        Random random = new Random(1234);
+        long base64Size = 0;
+        long rawSize = 0;
+        long deflateSize = 0;
+        for (long ledgerId = 0; ledgerId < 1000; ledgerId++) {
+            Map<String, byte[]> customMetadata = new HashMap<>();
+            customMetadata.put("application", "pulsar".getBytes(StandardCharsets.UTF_8));
+            customMetadata.put("component", "managed-ledger".getBytes(StandardCharsets.UTF_8));
+            customMetadata.put("pulsar/managed-ledger", ("public/default/persistent/topic-" + random.nextInt(500))
+                    .getBytes(StandardCharsets.UTF_8));
+            LedgerMetadataBuilder builder = LedgerMetadataBuilder.create()
+                    .withId(ledgerId)
+                    .withEnsembleSize(3)
+                    .withWriteQuorumSize(2)
+                    .withAckQuorumSize(2)
+                    .withDigestType(DigestType.CRC32C)
+                    .withPassword(new byte[0])
+                    .withCreationTime(System.currentTimeMillis())
+                    .storingCreationTime(true)
+                    .withCustomMetadata(customMetadata);
+            int segments = 1 + random.nextInt(2);
+            for (int segment = 0; segment < segments; segment++) {
+                List<BookieId> ensemble = new ArrayList<>();
+                for (int i = 0; i < 3; i++) {
+                    ensemble.add(BookieId.parse("bookie-" + random.nextInt(12) + ".bookie.pulsar.svc.cluster.local:3181"));
+                }
+                builder.newEnsembleEntry(segment * 1000L, ensemble);
+            }
+            LedgerMetadata metadata = builder.build();
+            byte[] serialized = serDe.serialize(metadata);
+            base64Size += Base64.getEncoder().encodeToString(serialized).length();
+            rawSize += MetadataBlob.encode(serialized, false).length;
+            byte[] blob = MetadataBlob.encode(serialized, true);
+            deflateSize += blob.length;
+            assertArrayEquals(serialized, MetadataBlob.decode(blob));
+        }
+        assertTrue(rawSize < base64Size);
+        assertTrue(deflateSize < rawSize);
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.cache;
+
+import herddb.jdbc.HerdDBEmbeddedDataSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compares writing ledgers one at a time with batched writes. It is a benchmark, not a unit test: surefire does not
+ * run it and it asserts nothing. Run it from the root of the project with
+ * <pre>
+ * mvn -pl web test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=org.bkvm.cache.MetadataCacheBulkBenchmark -Dexec.args="2000 500"
+ * </pre>
+ * the arguments being the number of ledgers and the batch size.
+ * <p>
+ * Each round writes the ledgers to a new in memory database, then writes them again so that the rows are replaced.
+ * The first rounds warm up the JVM and are not reported, the median of the other rounds is printed.
+ */
+public final class MetadataCacheBulkBenchmark {
+
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 5;
+    // one ledger, two bookies and two metadata entries
+    private static final int ROWS_PER_LEDGER = 5;
+
+    private MetadataCacheBulkBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        int ledgers = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        System.out.printf("%d ledgers, %d rows for each write of all the ledgers%n", ledgers, ledgers * ROWS_PER_LEDGER);
+        run("one ledger per transaction", ledgers, 1);
+        run("batches of " + batchSize + " ledgers", ledgers, batchSize);
+    }
+
+    private static void run(String mode, int ledgers, int batchSize) {
+        long[] inserts = new long[ROUNDS];
+        long[] replaces = new long[ROUNDS];
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            try (HerdDBEmbeddedDataSource datasource = new HerdDBEmbeddedDataSource();) {
+                datasource.setUrl("jdbc:herddb:local");
+                try (MetadataCache metadataCache = new MetadataCache(datasource)) {
+                    long insert = write(metadataCache, ledgers, batchSize, 1);
+                    long replace = write(metadataCache, ledgers, batchSize, 2);
+                    if (round >= WARMUP_ROUNDS) {
+                        inserts[round - WARMUP_ROUNDS] = insert;
+                        replaces[round - WARMUP_ROUNDS] = replace;
+                    }
+                }
+            }
+        }
+        report(mode + ", new ledgers", ledgers, inserts);
+        report(mode + ", replaced ledgers", ledgers, replaces);
+    }
+
+    /**
+     * @return elapsed nanoseconds
+     */
+    private static long write(MetadataCache metadataCache, int ledgers, int batchSize, long size) {
+        long start = System.nanoTime();
+        List<LedgerUpdate> batch = new ArrayList<>();
+        for (long ledgerId = 0; ledgerId < ledgers; ledgerId++) {
+            batch.add(MetadataCacheBulkTest.buildLedger(ledgerId, 1, size));
+            if (batch.size() == batchSize) {
+                metadataCache.updateLedgers(batch);
+                batch.clear();
+            }
+        }
+        metadataCache.updateLedgers(batch);
+        return System.nanoTime() - start;
+    }
+
+    private static void report(String mode, int ledgers, long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        double seconds = sorted[sorted.length / 2] / 1_000_000_000d;
+        System.out.printf("%s: median %.3f s, %.0f rows/s%n", mode, seconds, ledgers * ROWS_PER_LEDGER / seconds);
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.cache;
+
+import static org.junit.Assert.assertEquals;
+import herddb.jdbc.HerdDBEmbeddedDataSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Batched writes replace the ledgers written one at a time.
+ * The throughput of the two modes is measured by {@link MetadataCacheBulkBenchmark}.
+ */
+public class MetadataCacheBulkTest {
+
+    private static final int LEDGERS = 1200;
+    private static final int BATCH_SIZE = 500;
+
+    static LedgerUpdate buildLedger(long ledgerId, int clusterId, long size) {
+        java.sql.Timestamp now = new java.sql.Timestamp(System.currentTimeMillis());
+        return new LedgerUpdate(new Ledger(ledgerId, clusterId, size, now, now, ""),
+                Arrays.asList(new LedgerBookie(ledgerId, "localhost:1234", clusterId),
+                        new LedgerBookie(ledgerId, "localhost:1235", clusterId)),
+                Arrays.asList(new LedgerMetadataEntry(ledgerId, clusterId, "application", "pulsar"),
+                        new LedgerMetadataEntry(ledgerId, clusterId, "component", "managed-ledger-" + ledgerId)));
+    }
+
+    @Test
+    public void testBulkIngest() {
+        try (HerdDBEmbeddedDataSource datasource = new HerdDBEmbeddedDataSource();) {
+            datasource.setUrl("jdbc:herddb:local");
+            try (MetadataCache metadataCache = new MetadataCache(datasource)) {
+                int clusterId = 1;
+                for (long ledgerId = 0; ledgerId < LEDGERS; ledgerId++) {
+                    LedgerUpdate update = buildLedger(ledgerId, clusterId, 1);
+                    metadataCache.updateLedger(update.getLedger(), update.getBookies(), update.getMetadataEntries());
+                }
+
+                // the last batch is not full
+                List<LedgerUpdate> batch = new ArrayList<>();
+                for (long ledgerId = 0; ledgerId < LEDGERS; ledgerId++) {
+                    batch.add(buildLedger(ledgerId, clusterId, 2));
+                    if (batch.size() == BATCH_SIZE) {
+                        metadataCache.updateLedgers(batch);
+                        batch.clear();
+                    }
+                }
+                metadataCache.updateLedgers(batch);
+
+                // rows have been replaced, not duplicated
+                List<Ledger> ledgers = metadataCache.listLedgers();
+                assertEquals(LEDGERS, ledgers.size());
+                ledgers.forEach(l -> assertEquals(2, l.getSize()));
+                assertEquals(LEDGERS, metadataCache.getLedgersForBookie(clusterId, "localhost:1234").size());
+                assertEquals(2, metadataCache.getBookieForLedger(clusterId, 10).size());
+                assertEquals(1, metadataCache.searchLedgers("managed-ledger-" + (LEDGERS - 1), null, null, null).size());
+            }
+        }
+    }
+
+    @Test
+    public void testBatchesOfNewLedgers() {
+        try (HerdDBEmbeddedDataSource datasource = new HerdDBEmbeddedDataSource();) {
+            datasource.setUrl("jdbc:herddb:local");
+            try (MetadataCache metadataCache = new MetadataCache(datasource)) {
+                int clusterId = 1;
+                // each batch replaces ledgers that do not exist yet, while the ones of the previous batches do
+                List<LedgerUpdate> batch = new ArrayList<>();
+                for (long ledgerId = 0; ledgerId < LEDGERS; ledgerId++) {
+                    batch.add(buildLedger(ledgerId, clusterId, 1));
+                    if (batch.size() == BATCH_SIZE) {
+                        metadataCache.updateLedgers(batch);
+                        batch.clear();
+                    }
+                }
+                metadataCache.updateLedgers(batch);
+
+                assertEquals(LEDGERS, metadataCache.listLedgers().size());
+                assertEquals(LEDGERS, metadataCache.getLedgersForBookie(clusterId, "localhost:1235").size());
+            }
+        }
+    }
+
+}
@@ -20,18 +20,29 @@
 package org.bkvm.cache;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import herddb.jdbc.HerdDBEmbeddedDataSource;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 public class MetadataCacheTest {
 
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void test() {
         try (HerdDBEmbeddedDataSource datasource = new HerdDBEmbeddedDataSource();) {
@@ -52,6 +63,8 @@ public class MetadataCacheTest {
                 List<Ledger> ledgers = metadataCache.listLedgers();
                 assertEquals(1, ledgers.size());
                 assertEquals(1024, ledgers.get(0).getSize());
+                LedgerVersionTable versions = metadataCache.getLedgerVersions(clusterId);
+                assertEquals(Ledger.UNKNOWN_VERSION, versions.getVersionAt(versions.indexOf(1L)));
                 Ledger read = metadataCache.getLedgerMetadata(clusterId, 1);
                 assertEquals(1024, read.getSize());
                 List<Long> ledgersInBookie = metadataCache.getLedgersForBookie(clusterId, "localhost:1234");
@@ -86,8 +99,11 @@ public class MetadataCacheTest {
                 assertEquals(1, ledgersByKeyAndValue4.size());
 
                 // UPDATE, just the size
-                Ledger ledger2 = new Ledger(1, clusterId, 2048, new java.sql.Timestamp(System.currentTimeMillis()), new java.sql.Timestamp(System.currentTimeMillis()), "");
+                Ledger ledger2 = new Ledger(1, clusterId, 2048, new java.sql.Timestamp(System.currentTimeMillis()), new java.sql.Timestamp(System.currentTimeMillis()), "", 7);
                 metadataCache.updateLedger(ledger2, lb, entries);
+                versions = metadataCache.getLedgerVersions(clusterId);
+                assertEquals(7, versions.getVersionAt(versions.indexOf(1L)));
+                assertTrue(metadataCache.getLedgerVersions(clusterId + 1).isEmpty());
                 List<Ledger> ledgers2 = metadataCache.listLedgers();
                 assertEquals(1, ledgers2.size());
                 assertEquals(2048, ledgers2.get(0).getSize());
@@ -155,4 +171,413 @@ public class MetadataCacheTest {
         }
     }
 
+    @Test
+    public void testBookieDictionary() {
+        try (HerdDBEmbeddedDataSource datasource = new HerdDBEmbeddedDataSource();) {
+            datasource.setUrl("jdbc:herddb:local");
+            int clusterId = 1;
+            java.sql.Timestamp now = new java.sql.Timestamp(System.currentTimeMillis());
+            try (MetadataCache metadataCache = new MetadataCache(datasource)) {
+                metadataCache.updateLedger(new Ledger(1, clusterId, 100, now, now, ""),
+                        Arrays.asList(new LedgerBookie(1, "bookie-a:3181", clusterId), new LedgerBookie(1, "bookie-b:3181", clusterId)),
+                        Collections.emptyList());
+                metadataCache.updateLedger(new Ledger(2, clusterId, 100, now, now, ""),
+                        Arrays.asList(new LedgerBookie(2, "bookie-b:3181", clusterId), new LedgerBookie(2, "bookie-c:3181", clusterId)),
+                        Collections.emptyList());
+            }
+            // ledger_bookie only stores the surrogates, a new cache resolves them with bookie_dictionary
+            try (MetadataCache metadataCache = new MetadataCache(datasource)) {
+                List<String> bookieIds = new ArrayList<>();
+                metadataCache.getBookieForLedger(clusterId, 2).forEach(lb -> bookieIds.add(lb.getBookieId()));
+                Collections.sort(bookieIds);
+                assertEquals(Arrays.asList("bookie-b:3181", "bookie-c:3181"), bookieIds);
+                assertEquals(Arrays.asList(1L, 2L), metadataCache.getLedgersForBookie(clusterId, "bookie-b:3181"));
+
+                LedgerSearchCriteria byBookie = LedgerSearchCriteria.builder().clusterId(clusterId).bookieId("bookie-c:3181").build();
+                assertEquals(new LedgerSearchSummary(1, 100), metadataCache.summarizeLedgers(byBookie));
+
+                // a new bookie gets the next surrogate
+                metadataCache.updateLedger(new Ledger(3, clusterId, 100, now, now, ""),
+                        Arrays.asList(new LedgerBookie(3, "bookie-d:3181", clusterId), new LedgerBookie(3, "bookie-a:3181", clusterId)),
+                        Collections.emptyList());
+                assertEquals(Arrays.asList(3L), metadataCache.getLedgersForBookie(clusterId, "bookie-d:3181"));
+                assertEquals(2, metadataCache.getBookieForLedger(clusterId, 3).size());
+            }
+        }
+    }
+
+    @Test
+    public void testIndexedKeys() {
+        try (HerdDBEmbeddedDataSource datasource = new HerdDBEmbeddedDataSource();) {
+            datasource.setUrl("jdbc:herddb:local");
+            int clusterId = 1;
+            java.sql.Timestamp now = new java.sql.Timestamp(System.currentTimeMillis());
+            try (MetadataCache metadataCache = new MetadataCache(datasource, Arrays.asList("application"))) {
+                metadataCache.updateLedger(new Ledger(1, clusterId, 100, now, now, ""), Collections.emptyList(), Arrays.asList(
+                        new LedgerMetadataEntry(1, clusterId, "application", "pulsar"),
+                        new LedgerMetadataEntry(1, clusterId, "component", "foo")));
+                metadataCache.updateLedger(new Ledger(2, clusterId, 100, now, now, ""), Collections.emptyList(), Arrays.asList(
+                        new LedgerMetadataEntry(2, clusterId, "application", "foo"),
+                        new LedgerMetadataEntry(2, clusterId, "component", "pulsar\nbar")));
+
+                Map<String, String> expected = new LinkedHashMap<>();
+                expected.put("application", "foo");
+                expected.put("component", "pulsar\nbar");
+                assertEquals(expected, metadataCache.getCustomMetadata(metadataCache.getLedgerMetadata(clusterId, 2)));
+
+                assertEquals(Arrays.asList(1L, 2L), searchLedgerIds(metadataCache, "pulsar", clusterId));
+                assertEquals(Arrays.asList(1L), searchLedgerIds(metadataCache, "application:pulsar", clusterId));
+                // component is not indexed, foo is a value of another name of ledger 2
+                assertEquals(Arrays.asList(1L), searchLedgerIds(metadataCache, "component:foo", clusterId));
+                assertEquals(Arrays.asList(2L), searchLedgerIds(metadataCache, "component:pulsar", clusterId));
+                assertEquals(Arrays.asList(2L), searchLedgerIds(metadataCache, "component:_ar", clusterId));
+                LedgerSearchCriteria byPair = LedgerSearchCriteria.builder().clusterId(clusterId).term("component:foo").build();
+                assertEquals(new LedgerSearchSummary(1, 100), metadataCache.summarizeLedgers(byPair));
+                assertEquals(Arrays.asList(new LedgerKey(1, clusterId)), toKeys(metadataCache.scanLedgers(byPair, null, 10)));
+                assertEquals(Collections.emptyList(), searchLedgerIds(metadataCache, "other:foo", clusterId));
+                // a wildcard does not match from one value to the next one
+                assertEquals(Arrays.asList(1L, 2L), searchLedgerIds(metadataCache, "pul%r", clusterId));
+                assertEquals(Collections.emptyList(), searchLedgerIds(metadataCache, "pulsar%foo", clusterId));
+                assertEquals(Collections.emptyList(), searchLedgerIds(metadataCache, "component:pulsar%foo", clusterId));
+
+                // escaped characters are searched as they are
+                metadataCache.updateLedger(new Ledger(3, clusterId, 100, now, now, ""), Collections.emptyList(), Arrays.asList(
+                        new LedgerMetadataEntry(3, clusterId, "component", "c:\\dir\u001c")));
+                assertEquals(Arrays.asList(3L), searchLedgerIds(metadataCache, "component:c:\\dir\u001c", clusterId));
+                assertEquals(Arrays.asList(3L), searchLedgerIds(metadataCache, "\\dir", clusterId));
+            }
+            try (MetadataCache metadataCache = new MetadataCache(datasource, Arrays.asList("component"))) {
+                assertEquals(Arrays.asList(1L), searchLedgerIds(metadataCache, "component:foo", clusterId));
+                // application is no more indexed, pulsar is a value of another name of ledger 2
+                assertEquals(Arrays.asList(1L), searchLedgerIds(metadataCache, "application:pulsar", clusterId));
+                assertEquals(Arrays.asList(1L, 2L), searchLedgerIds(metadataCache, "pulsar", clusterId));
+                assertEquals(Arrays.asList(1L), searchLedgerIds(metadataCache, "application:p%r", clusterId));
+                assertEquals(Collections.emptyList(), searchLedgerIds(metadataCache, "application:pulsar%foo", clusterId));
+            }
+        }
+    }
+
+    private static List<Long> searchLedgerIds(MetadataCache metadataCache, String term, int clusterId) {
+        List<Long> result = new ArrayList<>();
+        metadataCache.searchLedgers(term, null, clusterId, null).forEach(l -> result.add(l.getLedgerId()));
+        return result;
+    }
+
+    @Test
+    public void testSnapshot() {
+        try (HerdDBEmbeddedDataSource datasource = new HerdDBEmbeddedDataSource();) {
+            datasource.setUrl("jdbc:herddb:local");
+            int clusterId = 1;
+            long now = System.currentTimeMillis();
+            try (MetadataCache metadataCache = new MetadataCache(datasource)) {
+                metadataCache.updateCluster(new Cluster(clusterId, "test", "zk+null://localhost/ledgers"));
+                List<LedgerUpdate> updates = new ArrayList<>();
+                for (long ledgerId = 1; ledgerId <= 20; ledgerId++) {
+                    // ledger 4 has no ctime, it is never older than minAge
+                    java.sql.Timestamp ctime = ledgerId == 4 ? null
+                            : new java.sql.Timestamp(now - TimeUnit.MINUTES.toMillis(ledgerId));
+                    String bookieId = ledgerId % 2 == 0 ? "bookie-even:3181" : "bookie-odd:3181";
+                    updates.add(new LedgerUpdate(new Ledger(ledgerId, clusterId, ledgerId * 100, ctime, ctime, ""),
+                            Arrays.asList(new LedgerBookie(ledgerId, bookieId, clusterId)), Collections.emptyList()));
+                }
+                metadataCache.updateLedgers(updates);
+                metadataCache.updateBookie(new Bookie("bookie-odd:3181", clusterId, "desc", Bookie.STATE_AVAILABLE,
+                        new java.sql.Timestamp(now), 1, 1, null));
+                assertNull(metadataCache.getSnapshot());
+
+                MetadataSnapshot snapshot = metadataCache.refreshSnapshot();
+                assertEquals(1, snapshot.getGeneration());
+                assertEquals(1, snapshot.getClusters().size());
+                assertEquals(1, snapshot.getBookies().size());
+                assertEquals(Long.valueOf(10), snapshot.countLedgersByBookie(clusterId).get("bookie-even:3181"));
+                assertEquals(20, snapshot.getLedgersForBookies(clusterId,
+                        Arrays.asList("bookie-even:3181", "bookie-odd:3181"), false).getLongCardinality());
+                // nothing changed
+                assertSame(snapshot, metadataCache.refreshSnapshotIfChanged());
+
+                List<LedgerSearchCriteria> searches = Arrays.asList(
+                        LedgerSearchCriteria.builder().build(),
+                        LedgerSearchCriteria.builder().clusterId(clusterId).bookieId("bookie-odd:3181").build(),
+                        LedgerSearchCriteria.builder().clusterId(clusterId).minLength(500L).maxLength(1200L).build(),
+                        LedgerSearchCriteria.builder().ledgerIds(Arrays.asList(3L, 4L, 99L)).minAge(2).build(),
+                        LedgerSearchCriteria.builder().clusterId(clusterId).bookieId("bookie-even:3181")
+                                .ledgerIds(Arrays.asList(1L, 2L, 4L)).build(),
+                        LedgerSearchCriteria.builder().clusterId(clusterId + 1).build());
+                for (LedgerSearchCriteria criteria : searches) {
+                    assertEquals(criteria.toString(), metadataCache.summarizeLedgers(criteria), snapshot.summarize(criteria));
+                    assertEquals(criteria.toString(), toKeys(metadataCache.searchLedgers(criteria, 2, 5)),
+                            snapshot.findLedgers(criteria, null, 2, 5));
+                    LedgerKey after = new LedgerKey(6, clusterId);
+                    assertEquals(criteria.toString(), toKeys(metadataCache.scanLedgers(criteria, after, 3)),
+                            snapshot.findLedgers(criteria, after, 0, 3));
+                }
+                assertEquals(Arrays.asList(new LedgerKey(3, clusterId)), snapshot.findLedgers(searches.get(3), null, 0, -1));
+                List<LedgerKey> page = snapshot.findLedgers(searches.get(1), null, 0, 3);
+                assertEquals(page, toKeys(metadataCache.getLedgers(page)));
+
+                // the published generation is not affected by changes, until the next one
+                metadataCache.deleteLedgers(clusterId, Arrays.asList(1L, 2L));
+                assertEquals(20, snapshot.summarize(searches.get(0)).getTotalLedgers());
+                assertSame(snapshot, metadataCache.getSnapshot());
+                MetadataSnapshot next = metadataCache.refreshSnapshotIfChanged();
+                assertEquals(2, next.getGeneration());
+                assertEquals(new LedgerSearchSummary(18, 20700), next.summarize(searches.get(0)));
+                assertEquals(Long.valueOf(9), next.countLedgersByBookie(clusterId).get("bookie-even:3181"));
+                assertEquals(18, toKeys(metadataCache.getLedgers(next.findLedgers(searches.get(0), null, 0, -1))).size());
+
+                // changes are merged into the records of the previous generation
+                java.sql.Timestamp ctime = new java.sql.Timestamp(now);
+                metadataCache.updateLedgers(Arrays.asList(
+                        new LedgerUpdate(new Ledger(3, clusterId, 50, ctime, ctime, ""),
+                                Arrays.asList(new LedgerBookie(3, "bookie-odd:3181", clusterId)), Collections.emptyList()),
+                        new LedgerUpdate(new Ledger(25, clusterId, 1000, ctime, ctime, ""),
+                                Arrays.asList(new LedgerBookie(25, "bookie-odd:3181", clusterId)), Collections.emptyList())));
+                metadataCache.deleteLedgers(clusterId, Arrays.asList(20L));
+                MetadataSnapshot merged = metadataCache.refreshSnapshotIfChanged();
+                assertEquals(3, merged.getGeneration());
+                assertEquals(new LedgerSearchSummary(18, 20700 - 300 + 50 + 1000 - 2000), merged.summarize(searches.get(0)));
+                assertEquals(Arrays.asList(new LedgerKey(19, clusterId), new LedgerKey(25, clusterId)),
+                        merged.findLedgers(searches.get(0), new LedgerKey(18, clusterId), 0, -1));
+                assertEquals(Long.valueOf(10), merged.countLedgersByBookie(clusterId).get("bookie-odd:3181"));
+                for (LedgerSearchCriteria criteria : searches) {
+                    assertEquals(criteria.toString(), metadataCache.summarizeLedgers(criteria), merged.summarize(criteria));
+                }
+
+                // a change of the bookies keeps the ledgers of the published generation
+                metadataCache.updateBookie(new Bookie("bookie-even:3181", clusterId, "desc", Bookie.STATE_AVAILABLE,
+                        new java.sql.Timestamp(now), 1, 1, null));
+                MetadataSnapshot lists = metadataCache.refreshSnapshotLists();
+                assertEquals(4, lists.getGeneration());
+                assertEquals(2, lists.getBookies().size());
+                assertSame(merged.getClusterLedgers(clusterId), lists.getClusterLedgers(clusterId));
+            }
+        }
+    }
+
+    @Test
+    public void testSnapshotDirectory() throws Exception {
+        try (HerdDBEmbeddedDataSource datasource = new HerdDBEmbeddedDataSource();) {
+            datasource.setUrl("jdbc:herddb:local");
+            int clusterId = 1;
+            Path directory = folder.newFolder("snapshot").toPath();
+            java.sql.Timestamp now = new java.sql.Timestamp(System.currentTimeMillis());
+            LedgerSearchCriteria all = LedgerSearchCriteria.builder().build();
+            try (MetadataCache metadataCache = new MetadataCache(datasource, Collections.emptySet(), directory)) {
+                metadataCache.updateCluster(new Cluster(clusterId, "test", "zk+null://localhost/ledgers"));
+                List<LedgerUpdate> updates = new ArrayList<>();
+                for (long ledgerId = 1; ledgerId <= 10; ledgerId++) {
+                    updates.add(new LedgerUpdate(new Ledger(ledgerId, clusterId, ledgerId * 100, now, now, ""),
+                            Arrays.asList(new LedgerBookie(ledgerId, "bookie:3181", clusterId)), Collections.emptyList()));
+                }
+                metadataCache.updateLedgers(updates);
+                MetadataSnapshot snapshot = metadataCache.refreshSnapshot();
+                assertEquals(new LedgerSearchSummary(10, 5500), snapshot.summarize(all));
+                assertEquals(1, LedgerIndexFile.listFiles(directory, clusterId).size());
+
+                // a new file, the published generation keeps its own records
+                metadataCache.deleteLedgers(clusterId, Arrays.asList(1L));
+                MetadataSnapshot next = metadataCache.refreshSnapshot();
+                assertEquals(2, LedgerIndexFile.listFiles(directory, clusterId).size());
+                assertEquals(new LedgerSearchSummary(10, 5500), snapshot.summarize(all));
+                assertEquals(new LedgerSearchSummary(9, 5400), next.summarize(all));
+                assertEquals(Long.valueOf(9), next.countLedgersByBookie(clusterId).get("bookie:3181"));
+
+                // not in the file yet
+                metadataCache.deleteLedgers(clusterId, Arrays.asList(2L));
+            }
+
+            // after a restart the first generation is served from the last file, the next one reads the database again
+            try (MetadataCache metadataCache = new MetadataCache(datasource, Collections.emptySet(), directory)) {
+                assertEquals(1, LedgerIndexFile.listFiles(directory, clusterId).size());
+                MetadataSnapshot snapshot = metadataCache.refreshSnapshotIfChanged();
+                assertEquals(1, snapshot.getGeneration());
+                assertEquals(new LedgerSearchSummary(9, 5400), snapshot.summarize(all));
+                MetadataSnapshot next = metadataCache.refreshSnapshotIfChanged();
+                assertEquals(2, next.getGeneration());
+                assertEquals(new LedgerSearchSummary(8, 5200), next.summarize(all));
+                assertEquals(Arrays.asList(new LedgerKey(3, clusterId), new LedgerKey(4, clusterId)),
+                        next.findLedgers(all, null, 0, 2));
+
+                metadataCache.deleteCluster(clusterId);
+                assertNull(metadataCache.refreshSnapshot().getClusterLedgers(clusterId));
+                // the files are deleted once no generation references their records
+                snapshot = null;
+                next = null;
+                for (int i = 0; i < 100 && !LedgerIndexFile.listFiles(directory, clusterId).isEmpty(); i++) {
+                    System.gc();
+                    Thread.sleep(50);
+                    metadataCache.refreshSnapshotIfChanged();
+                }
+                assertEquals(Collections.emptyList(), LedgerIndexFile.listFiles(directory, clusterId));
+            }
+        }
+    }
+
+    private static List<LedgerKey> toKeys(List<Ledger> ledgers) {
+        List<LedgerKey> result = new ArrayList<>();
+        ledgers.forEach(l -> result.add(new LedgerKey(l.getLedgerId(), l.getClusterId())));
+        return result;
+    }
+
+    @Test
+    public void testDescriptions() {
+        try (HerdDBEmbeddedDataSource datasource = new HerdDBEmbeddedDataSource();) {
+            datasource.setUrl("jdbc:herddb:local");
+            java.sql.Timestamp now = new java.sql.Timestamp(System.currentTimeMillis());
+            try (MetadataCache metadataCache = new MetadataCache(datasource)) {
+                Cluster cluster = new Cluster(0, "test", "zk+null://localhost/ledgers");
+                cluster.setDescriptionPattern("application");
+                metadataCache.updateCluster(cluster);
+                int clusterId = cluster.getClusterId();
+                Ledger ledger = new Ledger(1, clusterId, 100, now, now, "");
+                ledger.setDescription("pulsar");
+                metadataCache.updateLedger(ledger, Collections.emptyList(), Collections.emptyList());
+                metadataCache.updateLedger(new Ledger(2, clusterId, 100, now, now, ""), Collections.emptyList(), Collections.emptyList());
+                assertEquals("pulsar", metadataCache.getLedgerMetadata(clusterId, 1).getDescription());
+
+                assertTrue(metadataCache.hasLedgersWithoutEnsembles(clusterId));
+
+                Map<Long, List<String>> ensembles = new LinkedHashMap<>();
+                ensembles.put(0L, Arrays.asList("bookie-a:3181"));
+                Ledger ledger1 = metadataCache.getLedgerMetadata(clusterId, 1);
+                ledger1.setDescription("bookkeeper");
+                Ledger ledger2 = metadataCache.getLedgerMetadata(clusterId, 2);
+                ledger2.setDescription("");
+                metadataCache.updateDescriptions(Arrays.asList(
+                        new LedgerUpdate(ledger1, Collections.emptyList(), Collections.emptyList(), ensembles),
+                        new LedgerUpdate(ledger2, Collections.emptyList(), Collections.emptyList(), ensembles)));
+                assertEquals("bookkeeper", metadataCache.getLedgerMetadata(clusterId, 1).getDescription());
+                assertEquals("", metadataCache.getLedgerMetadata(clusterId, 2).getDescription());
+                assertEquals(ensembles, metadataCache.getEnsembles(metadataCache.getLedgerMetadata(clusterId, 2)));
+                assertFalse(metadataCache.hasLedgersWithoutEnsembles(clusterId));
+
+                // an edit which does not carry the pattern keeps the stored one
+                metadataCache.updateCluster(new Cluster(clusterId, "renamed", "zk+null://localhost/ledgers"));
+                Cluster read = metadataCache.getCluster(clusterId);
+                assertEquals("renamed", read.getName());
+                assertEquals("application", read.getDescriptionPattern());
+            }
+        }
+    }
+
+    @Test
+    public void testSharedEnsembles() {
+        try (HerdDBEmbeddedDataSource datasource = new HerdDBEmbeddedDataSource();) {
+            datasource.setUrl("jdbc:herddb:local");
+            int clusterId = 1;
+            java.sql.Timestamp now = new java.sql.Timestamp(System.currentTimeMillis());
+            List<String> ensemble1 = Arrays.asList("bookie-a:3181", "bookie-b:3181");
+            List<String> ensemble2 = Arrays.asList("bookie-a:3181", "bookie-c:3181");
+            Map<Long, List<String>> oneSegment = new LinkedHashMap<>();
+            oneSegment.put(0L, ensemble1);
+            Map<Long, List<String>> twoSegments = new LinkedHashMap<>();
+            twoSegments.put(0L, ensemble1);
+            twoSegments.put(100L, ensemble2);
+            try (MetadataCache metadataCache = new MetadataCache(datasource)) {
+                metadataCache.updateLedgers(Arrays.asList(
+                        new LedgerUpdate(new Ledger(1, clusterId, 100, now, now, ""), Collections.emptyList(), Collections.emptyList(), oneSegment),
+                        new LedgerUpdate(new Ledger(2, clusterId, 100, now, now, ""), Collections.emptyList(), Collections.emptyList(), twoSegments)));
+                Ledger ledger1 = metadataCache.getLedgerMetadata(clusterId, 1);
+                Ledger ledger2 = metadataCache.getLedgerMetadata(clusterId, 2);
+                // the first ensemble is stored once
+                assertEquals("0:0", ledger1.getEnsembles());
+                assertEquals("0:0,100:1", ledger2.getEnsembles());
+                assertEquals(oneSegment, metadataCache.getEnsembles(ledger1));
+                metadataCache.updateLedger(new Ledger(3, clusterId, 100, now, now, ""), Collections.emptyList(), Collections.emptyList());
+                assertNull(metadataCache.getEnsembles(metadataCache.getLedgerMetadata(clusterId, 3)));
+            }
+            try (MetadataCache metadataCache = new MetadataCache(datasource)) {
+                assertEquals(twoSegments, metadataCache.getEnsembles(metadataCache.getLedgerMetadata(clusterId, 2)));
+            }
+        }
+    }
+
+    @Test
+    public void testSearchLedgersPaging() throws Exception {
+        try (HerdDBEmbeddedDataSource datasource = new HerdDBEmbeddedDataSource();) {
+            datasource.setUrl("jdbc:herddb:local");
+            try (MetadataCache metadataCache = new MetadataCache(datasource)) {
+                java.sql.Timestamp now = new java.sql.Timestamp(System.currentTimeMillis());
+                for (int clusterId = 1; clusterId <= 2; clusterId++) {
+                    metadataCache.updateCluster(new Cluster(clusterId, "test" + clusterId, "zk+null://localhost/ledgers"));
+                    for (long ledgerId = 0; ledgerId < 10; ledgerId++) {
+                        Ledger ledger = new Ledger(ledgerId, clusterId, 100, now, now, "");
+                        List<LedgerBookie> lb = Arrays.asList(new LedgerBookie(ledgerId, "bookie-" + (ledgerId % 2), clusterId));
+                        List<LedgerMetadataEntry> entries = Arrays.asList(new LedgerMetadataEntry(ledgerId, clusterId, "application", "app" + ledgerId));
+                        metadataCache.updateLedger(ledger, lb, entries);
+                    }
+                }
+
+                LedgerSearchCriteria all = new LedgerSearchCriteria();
+                List<Ledger> firstPage = metadataCache.searchLedgers(all, 0, 5);
+                assertEquals(5, firstPage.size());
+                assertEquals(1, firstPage.get(0).getClusterId());
+                assertEquals(0, firstPage.get(0).getLedgerId());
+                List<Ledger> lastPage = metadataCache.searchLedgers(all, 15, 5);
+                assertEquals(5, lastPage.size());
+                assertEquals(2, lastPage.get(4).getClusterId());
+                assertEquals(9, lastPage.get(4).getLedgerId());
+                assertEquals(new LedgerSearchSummary(20, 2000), metadataCache.summarizeLedgers(all));
+
+                // keyset scan, across clusters
+                List<Ledger> scanned = new ArrayList<>();
+                LedgerKey after = null;
+                while (true) {
+                    List<Ledger> scanPage = metadataCache.scanLedgers(all, after, 7);
+                    scanned.addAll(scanPage);
+                    if (scanPage.size() < 7) {
+                        break;
+                    }
+                    Ledger last = scanPage.get(scanPage.size() - 1);
+                    after = new LedgerKey(last.getLedgerId(), last.getClusterId());
+                }
+                assertEquals(20, scanned.size());
+                assertEquals(firstPage, scanned.subList(0, 5));
+                assertEquals(lastPage, scanned.subList(15, 20));
+
+                LedgerSearchCriteria byCluster = LedgerSearchCriteria.builder().clusterId(2).build();
+                assertEquals(10, metadataCache.summarizeLedgers(byCluster).getTotalLedgers());
+                assertEquals(2, metadataCache.searchLedgers(byCluster, 8, 5).size());
+
+                LedgerSearchCriteria byBookie = LedgerSearchCriteria.builder().clusterId(2).bookieId("bookie-1").build();
+                assertEquals(new LedgerSearchSummary(5, 500), metadataCache.summarizeLedgers(byBookie));
+                assertEquals(Long.valueOf(5), metadataCache.countLedgersByBookie(2).get("bookie-0"));
+                assertTrue(metadataCache.getLedgersForBookies(2, Arrays.asList("bookie-0", "bookie-1"), true).isEmpty());
+                assertEquals(10, metadataCache.getLedgersForBookies(2, Arrays.asList("bookie-0", "bookie-1"), false).getLongCardinality());
+
+                LedgerSearchCriteria nothing = LedgerSearchCriteria.builder().clusterId(3).build();
+                assertEquals(new LedgerSearchSummary(0, 0), metadataCache.summarizeLedgers(nothing));
+
+                LedgerSearchCriteria byTerm = LedgerSearchCriteria.builder().clusterId(1).term("application:app3").build();
+                List<Ledger> found = metadataCache.searchLedgers(byTerm, 0, -1);
+                assertEquals(1, found.size());
+                assertEquals(3, found.get(0).getLedgerId());
+
+                // substring search goes through the term index, deletions must be honoured
+                metadataCache.awaitTermIndex();
+                LedgerSearchCriteria byValue = LedgerSearchCriteria.builder().term("app7").build();
+                assertEquals(2, metadataCache.summarizeLedgers(byValue).getTotalLedgers());
+                metadataCache.deleteLedger(1, 7);
+                assertEquals(1, metadataCache.searchLedgers(byValue, 0, -1).size());
+                metadataCache.rebuildTermIndex(1);
+                assertEquals(1, metadataCache.searchLedgers(byValue, 0, -1).size());
+                assertEquals(0, metadataCache.summarizeLedgers(LedgerSearchCriteria.builder().term("zookeeper").build()).getTotalLedgers());
+                metadataCache.updateLedger(new Ledger(7, 1, 100, now, now, ""), Collections.emptyList(),
+                        Arrays.asList(new LedgerMetadataEntry(7, 1, "application", "app7")));
+
+                // size and age
+                java.sql.Timestamp monthAgo = new java.sql.Timestamp(System.currentTimeMillis() - 30L * 24 * 60 * 60 * 1000);
+                metadataCache.updateLedger(new Ledger(100, 3, 5000, monthAgo, now, ""), Collections.emptyList(), Collections.emptyList());
+                metadataCache.updateLedger(new Ledger(101, 3, 50, monthAgo, now, ""), Collections.emptyList(), Collections.emptyList());
+                metadataCache.updateLedger(new Ledger(102, 3, 5000, now, now, ""), Collections.emptyList(), Collections.emptyList());
+                LedgerSearchCriteria oldAndBig = LedgerSearchCriteria.builder().minLength(1000L).minAge(60 * 24).build();
+                List<Ledger> oldAndBigLedgers = metadataCache.searchLedgers(oldAndBig, 0, -1);
+                assertEquals(1, oldAndBigLedgers.size());
+                assertEquals(100, oldAndBigLedgers.get(0).getLedgerId());
+                LedgerSearchCriteria small = LedgerSearchCriteria.builder().clusterId(3).maxLength(100L).build();
+                assertEquals(new LedgerSearchSummary(1, 50), metadataCache.summarizeLedgers(small));
+            }
+        }
+    }
+
 }
@@ -0,0 +1,69 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+public class MetadataKeyDictionaryTest {
+
+    @Test
+    public void testEncoding() {
+        List<Integer> keyRefs = Arrays.asList(3, 12, 0);
+        String keys = MetadataKeyDictionary.encodeKeys(keyRefs);
+        assertEquals(",3,12,0,", keys);
+        assertEquals(keyRefs, MetadataKeyDictionary.decodeKeys(keys));
+        assertTrue(keys.contains(MetadataKeyDictionary.keyPattern(12).replace("%", "")));
+        assertFalse(keys.contains(MetadataKeyDictionary.keyPattern(1).replace("%", "")));
+
+        List<String> values = Arrays.asList("pulsar", "multi\nline \\n \u007f41\u001c", "");
+        String encoded = MetadataKeyDictionary.encodeValues(keyRefs, values);
+        assertEquals(-1, encoded.indexOf('\n'));
+        assertEquals(values, MetadataKeyDictionary.decodeValues(encoded, values.size()));
+
+        assertEquals("", MetadataKeyDictionary.encodeKeys(Collections.emptyList()));
+        assertEquals(Collections.emptyList(), MetadataKeyDictionary.decodeKeys(""));
+        assertEquals(Collections.emptyList(), MetadataKeyDictionary.decodeValues("", 0));
+        assertEquals(Collections.singletonList(""),
+                MetadataKeyDictionary.decodeValues(MetadataKeyDictionary.encodeValues(Arrays.asList(1), Arrays.asList("")), 1));
+    }
+
+    @Test
+    public void testDictionary() {
+        MetadataKeyDictionary dictionary = new MetadataKeyDictionary();
+        assertEquals(0, dictionary.nextRef());
+        dictionary.add(new MetadataKey(0, "pulsar/managed-ledger", false));
+        dictionary.add(new MetadataKey(1, "application", true));
+        assertEquals(2, dictionary.nextRef());
+        assertEquals(Integer.valueOf(1), dictionary.getRef("application"));
+        assertNull(dictionary.getRef("component"));
+        assertEquals("pulsar/managed-ledger", dictionary.getKey(0).getKeyName());
+        assertEquals(1, dictionary.findKeys("managed").size());
+        assertEquals(2, dictionary.findKeys("a").size());
+        assertTrue(dictionary.findKeys("component").isEmpty());
+    }
+
+}
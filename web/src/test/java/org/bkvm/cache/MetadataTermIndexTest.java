@@ -0,0 +1,88 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.util.Arrays;
+import java.util.Map;
+import org.junit.Test;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+
+public class MetadataTermIndexTest {
+
+    @Test
+    public void testFindCandidates() {
+        MetadataTermIndex index = new MetadataTermIndex();
+        index.addLedger(1, 10, Arrays.asList(new LedgerMetadataEntry(10, 1, "application", "pulsar"),
+                new LedgerMetadataEntry(10, 1, "component", "managed-ledger")));
+        index.addLedger(1, 11, Arrays.asList(new LedgerMetadataEntry(11, 1, "application", "herddb")));
+        index.addLedger(2, 10, Arrays.asList(new LedgerMetadataEntry(10, 2, "application", "pulsar-functions")));
+
+        Map<Integer, Roaring64NavigableMap> pulsar = index.findCandidates(null, null, "pulsar");
+        assertEquals(2, pulsar.size());
+        assertArrayEquals(new long[]{10}, pulsar.get(1).toArray());
+        assertArrayEquals(new long[]{10}, pulsar.get(2).toArray());
+
+        Map<Integer, Roaring64NavigableMap> inCluster = index.findCandidates(1, "application", "db");
+        // "db" is shorter than a trigram, only the name narrows down the search
+        assertArrayEquals(new long[]{10, 11}, inCluster.get(1).toArray());
+        assertEquals(1, inCluster.size());
+
+        assertTrue(index.findCandidates(null, null, "zookeeper").isEmpty());
+        assertNull(index.findCandidates(null, null, "ab"));
+        // wildcards split the pattern
+        assertArrayEquals(new long[]{10}, index.findCandidates(1, null, "man%ledger").get(1).toArray());
+    }
+
+    @Test
+    public void testDeleteAndReplace() {
+        MetadataTermIndex index = new MetadataTermIndex();
+        index.addLedger(1, 10, Arrays.asList(new LedgerMetadataEntry(10, 1, "application", "pulsar")));
+        index.addLedger(1, 11, Arrays.asList(new LedgerMetadataEntry(11, 1, "application", "pulsar")));
+        index.deleteLedger(1, 10);
+        index.deleteLedger(1, 10);
+        assertEquals(1, index.getStaleLedgers(1));
+        assertEquals(1, index.getLiveLedgers(1));
+        assertArrayEquals(new long[]{11}, index.findCandidates(1, null, "pulsar").get(1).toArray());
+
+        assertTrue(index.beginRebuild(1));
+        assertFalse(index.beginRebuild(1));
+        index.addRebuiltLedger(1, 11, Arrays.asList(new LedgerMetadataEntry(11, 1, "application", "pulsar")));
+        // changes during the rebuild reach both indexes
+        index.addLedger(1, 12, Arrays.asList(new LedgerMetadataEntry(12, 1, "application", "pulsar")));
+        assertEquals(1, index.getStaleLedgers(1));
+        index.finishRebuild(1);
+        assertEquals(0, index.getStaleLedgers(1));
+        assertEquals(2, index.getLiveLedgers(1));
+        assertArrayEquals(new long[]{11, 12}, index.findCandidates(1, null, "pulsar").get(1).toArray());
+
+        index.setReady(false);
+        assertNull(index.findCandidates(1, null, "pulsar"));
+        index.setReady(true);
+
+        index.deleteCluster(1);
+        assertTrue(index.findCandidates(null, null, "pulsar").isEmpty());
+    }
+
+}
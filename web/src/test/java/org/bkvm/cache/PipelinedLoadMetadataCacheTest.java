@@ -0,0 +1,75 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.cache;
+
+import static org.junit.Assert.assertEquals;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import org.apache.bookkeeper.client.BookKeeper;
+import org.apache.bookkeeper.client.api.WriteHandle;
+import org.apache.bookkeeper.conf.ClientConfiguration;
+import org.bkvm.bookkeeper.BookkeeperManager;
+import org.bkvm.config.ServerConfiguration;
+import org.bkvm.utils.BookkeeperManagerTestUtils;
+import org.junit.Test;
+
+public class PipelinedLoadMetadataCacheTest extends BookkeeperManagerTestUtils {
+
+    @Override
+    protected Properties getConfiguration() {
+        Properties properties = new Properties();
+        properties.setProperty(ServerConfiguration.PROPERTY_METADATA_REFRESH_MAX_INFLIGHT_READS, "3");
+        return properties;
+    }
+
+    @Test
+    public void testLoadWithSmallWindow() throws Exception {
+        ClientConfiguration bkConf = new ClientConfiguration();
+        bkConf.setMetadataServiceUri(getMetadataServiceUri());
+
+        try (BookKeeper bk = BookKeeper.forConfig(bkConf).build()) {
+            List<Long> ledgers = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                WriteHandle wr = bk.newCreateLedgerOp()
+                        .withAckQuorumSize(1)
+                        .withEnsembleSize(1)
+                        .withWriteQuorumSize(1)
+                        .withPassword("p".getBytes())
+                        .withCustomMetadata(Map.of("index", (i + "").getBytes()))
+                        .execute().get();
+                ledgers.add(wr.getId());
+            }
+            final BookkeeperManager bookkeeperManager = getBookkeeperManager();
+            bookkeeperManager.doRefreshMetadataCache();
+            assertEquals(20, bookkeeperManager.getAllLedgers().size());
+
+            for (int i = 0; i < 5; i++) {
+                bk.newDeleteLedgerOp()
+                        .withLedgerId(ledgers.get(i))
+                        .execute().get();
+            }
+            bookkeeperManager.doRefreshMetadataCache();
+            assertEquals(15, bookkeeperManager.getAllLedgers().size());
+        }
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.bkvm.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import java.util.Properties;
+import org.apache.bookkeeper.client.BookKeeper;
+import org.apache.bookkeeper.client.api.WriteHandle;
+import org.apache.bookkeeper.conf.ClientConfiguration;
+import org.bkvm.bookkeeper.BookkeeperManager;
+import org.bkvm.config.ServerConfiguration;
+import org.bkvm.utils.BookkeeperManagerTestUtils;
+import org.junit.Test;
+
+public class TieredRefreshTest extends BookkeeperManagerTestUtils {
+
+    @Override
+    protected Properties getConfiguration() {
+        Properties properties = new Properties();
+        // the test drives the refresh of open ledgers
+        properties.setProperty(ServerConfiguration.PROPERTY_METADATA_OPEN_LEDGERS_REFRESH_PERIOD, "0");
+        properties.setProperty(ServerConfiguration.PROPERTY_METADATA_CLOSED_LEDGERS_VERIFY_PERIOD, "86400");
+        return properties;
+    }
+
+    @Test
+    public void testOpenAndClosedLedgers() throws Exception {
+        ClientConfiguration bkConf = new ClientConfiguration();
+        bkConf.setMetadataServiceUri(getMetadataServiceUri());
+
+        try (BookKeeper bk = BookKeeper.forConfig(bkConf).build()) {
+            WriteHandle closed = createLedger(bk);
+            closed.close();
+            WriteHandle open = createLedger(bk);
+
+            final BookkeeperManager bookkeeperManager = getBookkeeperManager();
+            bookkeeperManager.doRefreshMetadataCache();
+            assertEquals(2, bookkeeperManager.getAllLedgers().size());
+            int clusterId = bookkeeperManager.getAllClusters().iterator().next().getClusterId();
+            assertEquals(Ledger.STATE_CLOSED, bookkeeperManager.getLedger(clusterId, closed.getId()).getState());
+            assertNotEquals(Ledger.STATE_CLOSED, bookkeeperManager.getLedger(clusterId, open.getId()).getState());
+
+            // only ledgers which are not closed are read
+            open.close();
+            bookkeeperManager.refreshOpenLedgers();
+            assertEquals(Ledger.STATE_CLOSED, bookkeeperManager.getLedger(clusterId, open.getId()).getState());
+
+            // closed ledgers are still checked for existence
+            bk.newDeleteLedgerOp()
+                    .withLedgerId(closed.getId())
+                    .execute().get();
+            bookkeeperManager.doRefreshMetadataCache();
+            assertEquals(1, bookkeeperManager.getAllLedgers().size());
+            assertNull(bookkeeperManager.getLedger(clusterId, closed.getId()));
+        }
+    }
+
+    private static WriteHandle createLedger(BookKeeper bk) throws Exception {
+        return bk.newCreateLedgerOp()
+                .withAckQuorumSize(1)
+                .withEnsembleSize(1)
+                .withWriteQuorumSize(1)
+                .withPassword("p".getBytes())
+                .execute().get();
+    }
+
+}
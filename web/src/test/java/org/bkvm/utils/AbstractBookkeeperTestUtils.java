@@ -146,6 +146,15 @@ public abstract class AbstractBookkeeperTestUtils implements AutoCloseable {
         removed.stop();
     }
 
+    /**
+     * Stop a bookie and release its resources, including its registration on the metadata service
+     */
+    public void closeOneBookie() throws Exception {
+        LifecycleComponentStack removed = bookies.remove(0);
+        removed.stop();
+        removed.close();
+    }
+
     public ZooKeeper getZookeeperServer() {
         return zkServer;
     }
@@ -54,11 +54,15 @@ public class BookkeeperManagerTestUtils extends AbstractBookkeeperTestUtils {
         datasource = new HerdDBEmbeddedDataSource();
         datasource.setUrl("jdbc:herddb:local");
         metadataCache = new MetadataCache(datasource);
-        ConfigurationStore config = new PropertiesConfigurationStore(new Properties());
+        ConfigurationStore config = new PropertiesConfigurationStore(getConfiguration());
         bookkeeperManager = new BookkeeperManager(config, metadataCache);
         init();
     }
 
+    protected Properties getConfiguration() {
+        return new Properties();
+    }
+
     protected void init() throws Exception {
         createCluster("cluster1", getMetadataServiceUri(), "");
     }
@@ -97,4 +101,8 @@ public class BookkeeperManagerTestUtils extends AbstractBookkeeperTestUtils {
         return bookkeeperManager;
     }
 
+    protected MetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
 }